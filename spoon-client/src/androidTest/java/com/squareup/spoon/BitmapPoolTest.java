@@ -0,0 +1,84 @@
+package com.squareup.spoon;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import java.io.File;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import static android.graphics.Bitmap.Config.ARGB_8888;
+import static android.graphics.Bitmap.Config.RGB_565;
+import static com.google.common.truth.Truth.assertThat;
+
+public final class BitmapPoolTest {
+  private final BitmapPool pool = new BitmapPool(2);
+
+  @Test public void reusesBitmapOfSameSize() {
+    Bitmap bitmap = pool.acquire(100, 200, ARGB_8888);
+    bitmap.eraseColor(Color.RED);
+    pool.release(bitmap);
+
+    Bitmap reused = pool.acquire(100, 200, ARGB_8888);
+
+    assertThat(reused).isSameAs(bitmap);
+    assertThat(reused.getPixel(0, 0)).isEqualTo(Color.TRANSPARENT);
+    assertThat(pool.requests()).isEqualTo(2);
+    assertThat(pool.hits()).isEqualTo(1);
+  }
+
+  @Test public void allocatesBitmapOfAnotherSizeOrConfig() {
+    Bitmap bitmap = pool.acquire(100, 200, ARGB_8888);
+    pool.release(bitmap);
+
+    Bitmap rotated = pool.acquire(200, 100, ARGB_8888);
+    Bitmap otherConfig = pool.acquire(100, 200, RGB_565);
+
+    assertThat(rotated).isNotSameAs(bitmap);
+    assertThat(rotated.getWidth()).isEqualTo(200);
+    assertThat(rotated.getHeight()).isEqualTo(100);
+    assertThat(otherConfig).isNotSameAs(bitmap);
+    assertThat(otherConfig.getConfig()).isEqualTo(RGB_565);
+    assertThat(pool.hits()).isEqualTo(0);
+    // The pooled bitmap is still there for a screenshot of its size.
+    assertThat(pool.acquire(100, 200, ARGB_8888)).isSameAs(bitmap);
+  }
+
+  @Test public void recyclesBitmapsBeyondPoolSize() {
+    Bitmap first = pool.acquire(100, 200, ARGB_8888);
+    Bitmap second = pool.acquire(100, 200, ARGB_8888);
+    Bitmap third = pool.acquire(100, 200, ARGB_8888);
+
+    pool.release(first);
+    pool.release(second);
+    pool.release(third);
+
+    assertThat(first.isRecycled()).isFalse();
+    assertThat(second.isRecycled()).isFalse();
+    assertThat(third.isRecycled()).isTrue();
+  }
+
+  @Test public void pooledBitmapsAreRecycledWhenTestEnds() throws Throwable {
+    final ScreenshotWriter writer = new ScreenshotWriter(new ScreenshotWriter.Encoder() {
+      @Override public void encode(Bitmap bitmap, File file, ScreenshotOptions options) {
+        pool.release(bitmap);
+      }
+    });
+    SpoonRule rule = new SpoonRule(new SpoonRule.Builder(), pool, writer);
+    final Bitmap[] bitmaps = new Bitmap[2];
+
+    rule.apply(new Statement() {
+      @Override public void evaluate() {
+        bitmaps[0] = pool.acquire(100, 200, ARGB_8888);
+        bitmaps[1] = pool.acquire(100, 200, ARGB_8888);
+        writer.writeAsync(bitmaps[0], new File("first.png"), null);
+        writer.write(bitmaps[1], new File("second.png"), null);
+      }
+    }, Description.createTestDescription("com.example.FooTest", "test")).evaluate();
+
+    assertThat(bitmaps[0].isRecycled()).isTrue();
+    assertThat(bitmaps[1].isRecycled()).isTrue();
+    // The next test starts from an empty pool.
+    assertThat(pool.acquire(100, 200, ARGB_8888)).isNotSameAs(bitmaps[0]);
+  }
+}
@@ -0,0 +1,75 @@
+package com.squareup.spoon;
+
+import android.graphics.Bitmap;
+import java.util.ArrayList;
+import java.util.List;
+
+import static android.graphics.Color.TRANSPARENT;
+
+/**
+ * Bitmaps of screenshots which were written, kept for the next screenshot of the same size rather
+ * than left to the garbage collector. Screenshots of one test are nearly always of the same window,
+ * so allocating a full-screen bitmap per capture is what this saves.
+ */
+final class BitmapPool {
+  private final int maxSize;
+  private final List<Bitmap> free = new ArrayList<>();
+  private int requests;
+  private int hits;
+
+  BitmapPool(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /** A cleared bitmap of the size and configuration, from the pool if it holds one. */
+  Bitmap acquire(int width, int height, Bitmap.Config config) {
+    Bitmap bitmap = take(width, height, config);
+    if (bitmap == null) {
+      return Bitmap.createBitmap(width, height, config);
+    }
+    bitmap.eraseColor(TRANSPARENT);
+    return bitmap;
+  }
+
+  private synchronized Bitmap take(int width, int height, Bitmap.Config config) {
+    requests++;
+    for (int i = free.size() - 1; i >= 0; i--) {
+      Bitmap bitmap = free.get(i);
+      if (bitmap.getWidth() == width && bitmap.getHeight() == height
+          && bitmap.getConfig() == config) {
+        hits++;
+        return free.remove(i);
+      }
+    }
+    return null;
+  }
+
+  /** Keep {@code bitmap} for reuse, or recycle it when the pool is full. */
+  void release(Bitmap bitmap) {
+    synchronized (this) {
+      if (free.size() < maxSize && !bitmap.isRecycled()) {
+        free.add(bitmap);
+        return;
+      }
+    }
+    bitmap.recycle();
+  }
+
+  /** Recycle every bitmap the pool holds. */
+  synchronized void clear() {
+    for (Bitmap bitmap : free) {
+      bitmap.recycle();
+    }
+    free.clear();
+  }
+
+  /** Number of bitmaps asked for. */
+  synchronized int requests() {
+    return requests;
+  }
+
+  /** Number of bitmaps asked for which were reused. */
+  synchronized int hits() {
+    return hits;
+  }
+}
@@ -10,29 +10,35 @@ import java.util.concurrent.CountDownLatch;
 import static android.graphics.Bitmap.Config.ARGB_8888;
 
 abstract class Screenshot {
-  static Bitmap capture(String tag, Activity activity) {
-    return drawCanvas(tag, activity);
+  static Bitmap capture(String tag, Activity activity, BitmapPool pool,
+      ScreenshotOptions options) {
+    return drawCanvas(tag, activity, pool, options);
   }
 
-  private static Bitmap drawCanvas(String tag, final Activity activity) {
+  private static Bitmap drawCanvas(String tag, final Activity activity, BitmapPool pool,
+      ScreenshotOptions options) {
     View view = activity.getWindow().getDecorView();
     if (view.getWidth() == 0 || view.getHeight() == 0) {
       throw new IllegalStateException("Your view has no height or width. Are you sure "
           + activity.getClass().getSimpleName()
           + " is the currently displayed activity?");
     }
-    final Bitmap bitmap = Bitmap.createBitmap(view.getWidth(), view.getHeight(), ARGB_8888);
+    // Drawing scaled down is cheaper than scaling a full-size bitmap down afterwards.
+    final float scale = options.scaleFor(view.getWidth(), view.getHeight());
+    int width = Math.max(1, Math.round(view.getWidth() * scale));
+    int height = Math.max(1, Math.round(view.getHeight() * scale));
+    final Bitmap bitmap = pool.acquire(width, height, ARGB_8888);
 
     if (Looper.myLooper() == Looper.getMainLooper()) {
       // On main thread already, Just Do It™.
-      drawDecorViewToBitmap(activity, bitmap);
+      drawDecorViewToBitmap(activity, bitmap, scale);
     } else {
       // On a background thread, post to main.
       final CountDownLatch latch = new CountDownLatch(1);
       activity.runOnUiThread(new Runnable() {
         @Override public void run() {
           try {
-            drawDecorViewToBitmap(activity, bitmap);
+            drawDecorViewToBitmap(activity, bitmap, scale);
           } finally {
             latch.countDown();
           }
@@ -47,8 +53,11 @@ abstract class Screenshot {
     return bitmap;
   }
 
-  private static void drawDecorViewToBitmap(Activity activity, Bitmap bitmap) {
+  private static void drawDecorViewToBitmap(Activity activity, Bitmap bitmap, float scale) {
     Canvas canvas = new Canvas(bitmap);
+    if (scale != 1) {
+      canvas.scale(scale, scale);
+    }
     activity.getWindow().getDecorView().draw(canvas);
   }
 }
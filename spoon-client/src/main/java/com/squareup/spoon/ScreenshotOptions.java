@@ -0,0 +1,182 @@
+package com.squareup.spoon;
+
+import android.graphics.Bitmap.CompressFormat;
+import android.os.Bundle;
+import android.util.Log;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.squareup.spoon.internal.Constants.SCREENSHOT_FORMAT_ARG;
+import static com.squareup.spoon.internal.Constants.SCREENSHOT_MAX_DIMENSION_ARG;
+import static com.squareup.spoon.internal.Constants.SCREENSHOT_QUALITY_ARG;
+import static com.squareup.spoon.internal.Constants.SCREENSHOT_SCALE_ARG;
+
+/** How screenshots are encoded and how far they are scaled down first. */
+final class ScreenshotOptions {
+  private static final String TAG = "Spoon";
+  /** Where runners of AndroidX and of the support library keep their arguments. */
+  private static final String[] REGISTRIES = {
+      "androidx.test.platform.app.InstrumentationRegistry",
+      "android.support.test.InstrumentationRegistry",
+  };
+  private static final String[] ARGUMENTS = {
+      SCREENSHOT_FORMAT_ARG, SCREENSHOT_QUALITY_ARG, SCREENSHOT_MAX_DIMENSION_ARG,
+      SCREENSHOT_SCALE_ARG,
+  };
+  private static final int LOSSLESS_QUALITY = 100;
+  private static final int DEFAULT_LOSSY_QUALITY = 90;
+
+  final CompressFormat format;
+  final int quality;
+  private final int maxDimension;
+  private final float scale;
+
+  private ScreenshotOptions(CompressFormat format, int quality, int maxDimension, float scale) {
+    this.format = format;
+    this.quality = quality;
+    this.maxDimension = maxDimension;
+    this.scale = scale;
+  }
+
+  /**
+   * The options set on the rule, falling back to those the runner passed as instrumentation
+   * arguments and then to full-size PNG. A null value is not set.
+   */
+  static ScreenshotOptions resolve(CompressFormat format, Integer quality, Integer maxDimension,
+      Float scale) {
+    return resolve(instrumentationArguments(), format, quality, maxDimension, scale);
+  }
+
+  /** The options set on the rule, falling back to {@code arguments} and then to full-size PNG. */
+  static ScreenshotOptions resolve(Map<String, String> arguments, CompressFormat format,
+      Integer quality, Integer maxDimension, Float scale) {
+    if (format == null) {
+      String name = arguments.get(SCREENSHOT_FORMAT_ARG);
+      format = name != null ? parseFormat(name) : CompressFormat.PNG;
+    }
+    if (quality == null) {
+      quality = parseInt(arguments, SCREENSHOT_QUALITY_ARG,
+          format == CompressFormat.PNG ? LOSSLESS_QUALITY : DEFAULT_LOSSY_QUALITY);
+    }
+    if (maxDimension == null) {
+      maxDimension = parseInt(arguments, SCREENSHOT_MAX_DIMENSION_ARG, 0);
+    }
+    if (scale == null) {
+      String value = arguments.get(SCREENSHOT_SCALE_ARG);
+      try {
+        scale = value != null ? Float.parseFloat(value) : 1f;
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException(SCREENSHOT_SCALE_ARG + " must be a number.", e);
+      }
+    }
+    checkQuality(quality);
+    checkMaxDimension(maxDimension);
+    checkScale(scale);
+    return new ScreenshotOptions(format, quality, maxDimension, scale);
+  }
+
+  /** The extension of files in {@link #format}. */
+  String extension() {
+    if (format == CompressFormat.PNG) {
+      return ".png";
+    }
+    if (format == CompressFormat.JPEG) {
+      return ".jpg";
+    }
+    return ".webp"; // Every other format is a kind of WebP.
+  }
+
+  /** The factor by which a window of the size is to be scaled down. */
+  float scaleFor(int width, int height) {
+    float scale = this.scale;
+    int longerSide = Math.max(width, height);
+    if (maxDimension > 0 && longerSide * scale > maxDimension) {
+      scale = (float) maxDimension / longerSide;
+    }
+    return scale;
+  }
+
+  static void checkQuality(int quality) {
+    if (quality < 0 || quality > 100) {
+      throw new IllegalArgumentException("Quality must be from 0 to 100.");
+    }
+  }
+
+  static void checkMaxDimension(int maxDimension) {
+    if (maxDimension < 0) {
+      throw new IllegalArgumentException("Maximum dimension cannot be negative.");
+    }
+  }
+
+  static void checkScale(float scale) {
+    if (!(scale > 0 && scale <= 1)) {
+      throw new IllegalArgumentException("Scale must be greater than 0 and at most 1.");
+    }
+  }
+
+  private static CompressFormat parseFormat(String name) {
+    switch (name.toLowerCase(Locale.US)) {
+      case "png":
+        return CompressFormat.PNG;
+      case "jpeg":
+        return CompressFormat.JPEG;
+      case "webp":
+        return CompressFormat.WEBP;
+      default:
+        throw new IllegalArgumentException(
+            SCREENSHOT_FORMAT_ARG + " must be png, jpeg or webp, not " + name + ".");
+    }
+  }
+
+  private static int parseInt(Map<String, String> arguments, String key, int defaultValue) {
+    String value = arguments.get(key);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(key + " must be a whole number.", e);
+    }
+  }
+
+  /**
+   * The screenshot arguments the runner passed, read from the registry of whichever test library
+   * ran the test. Without one there are none, which is logged since the runner's options are then
+   * ignored.
+   */
+  private static Map<String, String> instrumentationArguments() {
+    for (String registry : REGISTRIES) {
+      Bundle bundle = registryArguments(registry);
+      if (bundle != null) {
+        Map<String, String> arguments = new HashMap<>();
+        for (String key : ARGUMENTS) {
+          arguments.put(key, bundle.getString(key));
+        }
+        return arguments;
+      }
+    }
+    Log.w(TAG, "Unable to read instrumentation arguments, so screenshot options passed to the "
+        + "runner are ignored.");
+    return Collections.emptyMap();
+  }
+
+  /** The arguments held by {@code registry}, or null if it is missing or holds none. */
+  private static Bundle registryArguments(String registry) {
+    try {
+      return (Bundle) Class.forName(registry).getMethod("getArguments").invoke(null);
+    } catch (ClassNotFoundException e) {
+      return null; // The test library is not used.
+    } catch (InvocationTargetException e) {
+      // Thrown when the test was not run by the library's runner.
+      Log.d(TAG, "No instrumentation arguments in " + registry + ": " + e.getCause());
+      return null;
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      Log.w(TAG, "Unable to read instrumentation arguments from " + registry + ".", e);
+      return null;
+    }
+  }
+}
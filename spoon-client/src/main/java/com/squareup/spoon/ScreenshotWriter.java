@@ -0,0 +1,163 @@
+package com.squareup.spoon;
+
+import android.graphics.Bitmap;
+import android.os.Looper;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+import static android.os.Process.setThreadPriority;
+import static com.squareup.spoon.Chmod.chmodPlusR;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Encodes screenshots to files, either on the thread which took them or in the background, so that
+ * taking one only costs a test the time to copy the pixels. Once a couple of screenshots are
+ * waiting to be encoded, which bounds the memory held by their bitmaps, the thread taking the next
+ * one waits for room. The main thread must not wait, so it encodes the next one itself.
+ */
+final class ScreenshotWriter {
+  /** Encodes a screenshot to its file. */
+  interface Encoder {
+    void encode(Bitmap bitmap, File file, ScreenshotOptions options);
+  }
+
+  private static final int MAX_WAITING = 2;
+  private static final ThreadPoolExecutor EXECUTOR = newExecutor();
+
+  private final Encoder encoder;
+  private final List<Future<?>> pending = new ArrayList<>();
+
+  /** Encode bitmaps in the format of their options and return them to {@code pool}. */
+  ScreenshotWriter(final BitmapPool pool) {
+    this(new Encoder() {
+      @Override public void encode(Bitmap bitmap, File file, ScreenshotOptions options) {
+        writeBitmapToFile(bitmap, file, options, pool);
+      }
+    });
+  }
+
+  ScreenshotWriter(Encoder encoder) {
+    this.encoder = encoder;
+  }
+
+  /** Encode {@code bitmap} to {@code file} on this thread. */
+  void write(Bitmap bitmap, File file, ScreenshotOptions options) {
+    encoder.encode(bitmap, file, options);
+  }
+
+  /**
+   * Encode {@code bitmap} to {@code file} in the background, waiting for room if a couple of
+   * screenshots are already waiting. On the main thread it is instead encoded on this thread if
+   * there is no room. The returned future is done once the file is written.
+   */
+  Future<File> writeAsync(final Bitmap bitmap, final File file,
+      final ScreenshotOptions options) {
+    Future<File> future = EXECUTOR.submit(new Runnable() {
+      @Override public void run() {
+        encoder.encode(bitmap, file, options);
+      }
+    }, file);
+    synchronized (pending) {
+      pending.add(future);
+    }
+    return future;
+  }
+
+  /**
+   * Wait for every screenshot written in the background so far to be on disk. Throws the first
+   * failure to write one once the others are done.
+   */
+  void flush() {
+    List<Future<?>> futures;
+    synchronized (pending) {
+      futures = new ArrayList<>(pending);
+      pending.clear();
+    }
+    RuntimeException failure = null;
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause() instanceof RuntimeException
+              ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while writing screenshots.", e);
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private static void writeBitmapToFile(Bitmap bitmap, File file, ScreenshotOptions options,
+      BitmapPool pool) {
+    OutputStream fos = null;
+    try {
+      fos = new BufferedOutputStream(new FileOutputStream(file));
+      bitmap.compress(options.format, options.quality, fos);
+
+      chmodPlusR(file);
+    } catch (FileNotFoundException e) {
+      throw new RuntimeException("Cannot write screenshot to " + file, e);
+    } finally {
+      pool.release(bitmap);
+      if (fos != null) {
+        try {
+          fos.close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+  }
+
+  private static ThreadPoolExecutor newExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, SECONDS,
+        new ArrayBlockingQueue<Runnable>(MAX_WAITING), new ThreadFactory() {
+          @Override public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+              @Override public void run() {
+                setThreadPriority(THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+              }
+            }, "Spoon screenshot writer");
+            thread.setDaemon(true);
+            return thread;
+          }
+        }, new WaitForRoomPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /** Waits for room in the queue, except on the main thread, which runs the write itself. */
+  private static final class WaitForRoomPolicy implements RejectedExecutionHandler {
+    @Override public void rejectedExecution(Runnable write, ThreadPoolExecutor executor) {
+      if (Looper.myLooper() == Looper.getMainLooper()) {
+        write.run();
+        return;
+      }
+      try {
+        executor.getQueue().put(write);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RejectedExecutionException("Interrupted while waiting to write screenshot.", e);
+      }
+    }
+  }
+}
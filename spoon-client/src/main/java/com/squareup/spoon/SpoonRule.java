@@ -3,23 +3,22 @@ package com.squareup.spoon;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
 import android.util.Log;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 import org.junit.rules.TestRule;
 import org.junit.runner.Description;
 import org.junit.runners.model.Statement;
 
 import static android.content.Context.MODE_WORLD_READABLE;
-import static android.graphics.Bitmap.CompressFormat.PNG;
 import static android.os.Build.VERSION.SDK_INT;
 import static android.os.Build.VERSION_CODES.LOLLIPOP;
 import static android.os.Environment.getExternalStorageDirectory;
@@ -43,53 +42,130 @@ import static com.squareup.spoon.internal.Constants.SPOON_SCREENSHOTS;
  *   // ...
  * }
  * </code></pre>
+ *
+ * Screenshots are full-size PNGs unless the runner asks otherwise, or a {@link Builder} does.
  */
 public final class SpoonRule implements TestRule {
-  private static final String EXTENSION = ".png";
   private static final String TAG = "Spoon";
   private static final Pattern TAG_VALIDATION = Pattern.compile("[a-zA-Z0-9_-]+");
 
+  private static final int MAX_POOLED_BITMAPS = 3;
+
+  private final BitmapPool bitmapPool;
+  private final ScreenshotWriter writer;
+  private final CompressFormat screenshotFormat;
+  private final Integer screenshotQuality;
+  private final Integer maxScreenshotDimension;
+  private final Float screenshotScale;
+  private ScreenshotOptions screenshotOptions;
   private String className;
   private String methodName;
 
-  @Override public Statement apply(Statement base, Description description) {
+  public SpoonRule() {
+    this(new Builder());
+  }
+
+  private SpoonRule(Builder builder) {
+    this(builder, new BitmapPool(MAX_POOLED_BITMAPS));
+  }
+
+  private SpoonRule(Builder builder, BitmapPool bitmapPool) {
+    this(builder, bitmapPool, new ScreenshotWriter(bitmapPool));
+  }
+
+  SpoonRule(Builder builder, BitmapPool bitmapPool, ScreenshotWriter writer) {
+    this.bitmapPool = bitmapPool;
+    this.writer = writer;
+    this.screenshotFormat = builder.screenshotFormat;
+    this.screenshotQuality = builder.screenshotQuality;
+    this.maxScreenshotDimension = builder.maxScreenshotDimension;
+    this.screenshotScale = builder.screenshotScale;
+  }
+
+  @Override public Statement apply(final Statement base, Description description) {
     className = description.getClassName();
     methodName = description.getMethodName();
-    return base; // Pass-through. We're just here to capture the description information.
+    return new Statement() {
+      @Override public void evaluate() throws Throwable {
+        try {
+          try {
+            base.evaluate();
+          } catch (Throwable t) {
+            try {
+              writer.flush();
+            } catch (RuntimeException e) {
+              Log.e(TAG, "Unable to write screenshots.", e);
+            }
+            throw t;
+          }
+          // Screenshots are pulled once the test ends, so those written in the background must
+          // all be done by then.
+          writer.flush();
+        } finally {
+          releaseBitmaps();
+        }
+      }
+    };
   }
 
+  /** Capture the window of {@code activity} and write it to the returned file. */
   public File screenshot(Activity activity, String tag) {
+    checkTag(tag);
+    ScreenshotOptions options = screenshotOptions();
+    File screenshotFile = screenshotFile(activity, tag, options);
+    Bitmap bitmap = Screenshot.capture(tag, activity, bitmapPool, options);
+    writer.write(bitmap, screenshotFile, options);
+    Log.d(TAG, "Captured screenshot '" + tag + "'.");
+    return screenshotFile;
+  }
+
+  /**
+   * Capture the window of {@code activity}, leaving the screenshot to be written in the
+   * background. The file is complete once the returned future is done, and at the latest once the
+   * test ends, which a failure to write it fails.
+   * <p>
+   * Once a couple of screenshots are waiting to be written, this waits for room. Called on the main
+   * thread it cannot wait, so it instead encodes the screenshot there, which may take long enough
+   * to drop frames.
+   */
+  public Future<File> screenshotAsync(Activity activity, String tag) {
+    checkTag(tag);
+    ScreenshotOptions options = screenshotOptions();
+    File screenshotFile = screenshotFile(activity, tag, options);
+    Bitmap bitmap = Screenshot.capture(tag, activity, bitmapPool, options);
+    Future<File> written = writer.writeAsync(bitmap, screenshotFile, options);
+    Log.d(TAG, "Captured screenshot '" + tag + "'.");
+    return written;
+  }
+
+  private static void checkTag(String tag) {
     if (!TAG_VALIDATION.matcher(tag).matches()) {
       throw new IllegalArgumentException("Tag must match " + TAG_VALIDATION.pattern() + ".");
     }
+  }
+
+  private File screenshotFile(Activity activity, String tag, ScreenshotOptions options) {
     File screenshotDirectory =
         obtainDirectory(activity.getApplicationContext(), className, methodName, SPOON_SCREENSHOTS);
-    String screenshotName = System.currentTimeMillis() + NAME_SEPARATOR + tag + EXTENSION;
-    File screenshotFile = new File(screenshotDirectory, screenshotName);
-    Bitmap bitmap = Screenshot.capture(tag, activity);
-    writeBitmapToFile(bitmap, screenshotFile);
-    Log.d(TAG, "Captured screenshot '" + tag + "'.");
-    return screenshotFile;
+    String screenshotName =
+        System.currentTimeMillis() + NAME_SEPARATOR + tag + options.extension();
+    return new File(screenshotDirectory, screenshotName);
   }
 
-  private static void writeBitmapToFile(Bitmap bitmap, File file) {
-    OutputStream fos = null;
-    try {
-      fos = new BufferedOutputStream(new FileOutputStream(file));
-      bitmap.compress(PNG, 100 /* quality */, fos);
+  private ScreenshotOptions screenshotOptions() {
+    if (screenshotOptions == null) {
+      screenshotOptions = ScreenshotOptions.resolve(screenshotFormat, screenshotQuality,
+          maxScreenshotDimension, screenshotScale);
+    }
+    return screenshotOptions;
+  }
 
-      chmodPlusR(file);
-    } catch (FileNotFoundException e) {
-      throw new RuntimeException("Cannot write screenshot to " + file, e);
-    } finally {
-      bitmap.recycle();
-      if (fos != null) {
-        try {
-          fos.close();
-        } catch (IOException ignored) {
-        }
-      }
+  private void releaseBitmaps() {
+    if (bitmapPool.requests() > 0) {
+      Log.d(TAG, "Reused " + bitmapPool.hits() + " of " + bitmapPool.requests()
+          + " screenshot bitmaps.");
     }
+    bitmapPool.clear();
   }
 
   private static File obtainDirectory(Context context, String testClassName,
@@ -168,4 +244,49 @@ public final class SpoonRule implements TestRule {
     }
     chmodPlusRWX(dir);
   }
+
+  /**
+   * Options for the screenshots of a {@link SpoonRule}. Those not set are taken from the
+   * instrumentation arguments the runner passed, if any.
+   */
+  public static final class Builder {
+    private CompressFormat screenshotFormat;
+    private Integer screenshotQuality;
+    private Integer maxScreenshotDimension;
+    private Float screenshotScale;
+
+    /** Format to encode screenshots in. */
+    public Builder setScreenshotFormat(CompressFormat screenshotFormat) {
+      if (screenshotFormat == null) {
+        throw new NullPointerException("Screenshot format cannot be null.");
+      }
+      this.screenshotFormat = screenshotFormat;
+      return this;
+    }
+
+    /** Quality to encode screenshots at, from 0 to 100. Lossless formats ignore it. */
+    public Builder setScreenshotQuality(int screenshotQuality) {
+      ScreenshotOptions.checkQuality(screenshotQuality);
+      this.screenshotQuality = screenshotQuality;
+      return this;
+    }
+
+    /** Most pixels the longer side of a screenshot may have, or 0 for no limit. */
+    public Builder setMaxScreenshotDimension(int maxScreenshotDimension) {
+      ScreenshotOptions.checkMaxDimension(maxScreenshotDimension);
+      this.maxScreenshotDimension = maxScreenshotDimension;
+      return this;
+    }
+
+    /** Factor by which screenshots are scaled, greater than 0 and at most 1. */
+    public Builder setScreenshotScale(float screenshotScale) {
+      ScreenshotOptions.checkScale(screenshotScale);
+      this.screenshotScale = screenshotScale;
+      return this;
+    }
+
+    public SpoonRule build() {
+      return new SpoonRule(this);
+    }
+  }
 }
@@ -0,0 +1,99 @@
+package com.squareup.spoon;
+
+import android.graphics.Bitmap.CompressFormat;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.spoon.internal.Constants.SCREENSHOT_FORMAT_ARG;
+import static com.squareup.spoon.internal.Constants.SCREENSHOT_MAX_DIMENSION_ARG;
+import static com.squareup.spoon.internal.Constants.SCREENSHOT_QUALITY_ARG;
+import static com.squareup.spoon.internal.Constants.SCREENSHOT_SCALE_ARG;
+import static org.junit.Assert.fail;
+
+public final class ScreenshotOptionsTest {
+  private final Map<String, String> arguments = new HashMap<>();
+
+  @Test public void defaultsToFullSizePng() {
+    ScreenshotOptions options = resolve();
+
+    assertThat(options.format).isEqualTo(CompressFormat.PNG);
+    assertThat(options.quality).isEqualTo(100);
+    assertThat(options.extension()).isEqualTo(".png");
+    assertThat(options.scaleFor(1080, 1920)).isEqualTo(1f);
+  }
+
+  @Test public void defaultsApplyWithoutInstrumentationRegistry() {
+    // No test library's registry is on the class path of these tests.
+    ScreenshotOptions options = ScreenshotOptions.resolve(null, null, null, null);
+
+    assertThat(options.format).isEqualTo(CompressFormat.PNG);
+    assertThat(options.quality).isEqualTo(100);
+    assertThat(options.scaleFor(1080, 1920)).isEqualTo(1f);
+  }
+
+  @Test public void lossyFormatDefaultsToLowerQuality() {
+    arguments.put(SCREENSHOT_FORMAT_ARG, "jpeg");
+
+    ScreenshotOptions options = resolve();
+
+    assertThat(options.format).isEqualTo(CompressFormat.JPEG);
+    assertThat(options.quality).isEqualTo(90);
+    assertThat(options.extension()).isEqualTo(".jpg");
+  }
+
+  @Test public void parsesInstrumentationArguments() {
+    arguments.put(SCREENSHOT_FORMAT_ARG, "WebP");
+    arguments.put(SCREENSHOT_QUALITY_ARG, "75");
+    arguments.put(SCREENSHOT_MAX_DIMENSION_ARG, "800");
+    arguments.put(SCREENSHOT_SCALE_ARG, "0.5");
+
+    ScreenshotOptions options = resolve();
+
+    assertThat(options.format).isEqualTo(CompressFormat.WEBP);
+    assertThat(options.quality).isEqualTo(75);
+    assertThat(options.extension()).isEqualTo(".webp");
+    assertThat(options.scaleFor(1000, 500)).isEqualTo(0.5f);
+    // Scaled by half the longer side would still be over the maximum.
+    assertThat(options.scaleFor(1000, 2000)).isEqualTo(0.4f);
+  }
+
+  @Test public void ruleOptionsOverrideInstrumentationArguments() {
+    arguments.put(SCREENSHOT_FORMAT_ARG, "jpeg");
+    arguments.put(SCREENSHOT_QUALITY_ARG, "75");
+    arguments.put(SCREENSHOT_SCALE_ARG, "0.5");
+
+    ScreenshotOptions options =
+        ScreenshotOptions.resolve(arguments, CompressFormat.PNG, 100, null, 1f);
+
+    assertThat(options.format).isEqualTo(CompressFormat.PNG);
+    assertThat(options.quality).isEqualTo(100);
+    assertThat(options.scaleFor(1000, 500)).isEqualTo(1f);
+  }
+
+  @Test public void invalidArgumentsAreRejected() {
+    assertRejected(SCREENSHOT_FORMAT_ARG, "gif",
+        SCREENSHOT_FORMAT_ARG + " must be png, jpeg or webp, not gif.");
+    assertRejected(SCREENSHOT_QUALITY_ARG, "high", SCREENSHOT_QUALITY_ARG
+        + " must be a whole number.");
+    assertRejected(SCREENSHOT_QUALITY_ARG, "101", "Quality must be from 0 to 100.");
+    assertRejected(SCREENSHOT_MAX_DIMENSION_ARG, "-1", "Maximum dimension cannot be negative.");
+    assertRejected(SCREENSHOT_SCALE_ARG, "half", SCREENSHOT_SCALE_ARG + " must be a number.");
+    assertRejected(SCREENSHOT_SCALE_ARG, "2", "Scale must be greater than 0 and at most 1.");
+  }
+
+  private ScreenshotOptions resolve() {
+    return ScreenshotOptions.resolve(arguments, null, null, null, null);
+  }
+
+  private static void assertRejected(String key, String value, String message) {
+    try {
+      ScreenshotOptions.resolve(Collections.singletonMap(key, value), null, null, null, null);
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage(message);
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package com.squareup.spoon;
+
+import android.graphics.Bitmap;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.fail;
+
+public final class ScreenshotWriterTest {
+  private final List<File> written = new CopyOnWriteArrayList<>();
+  private final CountDownLatch encode = new CountDownLatch(1);
+  private final ScreenshotWriter writer = new ScreenshotWriter(new ScreenshotWriter.Encoder() {
+    @Override public void encode(Bitmap bitmap, File file, ScreenshotOptions options) {
+      try {
+        assertThat(encode.await(10, SECONDS)).isTrue();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      if (file.getName().startsWith("bad")) {
+        throw new RuntimeException("Cannot write screenshot to " + file);
+      }
+      written.add(file);
+    }
+  });
+
+  @Test public void writeEncodesOnCallingThread() {
+    encode.countDown();
+    File file = new File("first.png");
+
+    writer.write(null, file, null);
+
+    assertThat(written).containsExactly(file);
+  }
+
+  @Test public void flushWaitsForBackgroundWrites() throws Exception {
+    File first = new File("first.png");
+    File second = new File("second.png");
+
+    Future<File> firstWritten = writer.writeAsync(null, first, null);
+    Future<File> secondWritten = writer.writeAsync(null, second, null);
+    assertThat(written).isEmpty();
+    encode.countDown();
+    writer.flush();
+
+    assertThat(written).containsExactly(first, second);
+    assertThat(firstWritten.get()).isEqualTo(first);
+    assertThat(secondWritten.get()).isEqualTo(second);
+  }
+
+  @Test public void flushThrowsFailureOnceOtherWritesAreDone() {
+    File bad = new File("bad.png");
+    File good = new File("good.png");
+    writer.writeAsync(null, bad, null);
+    writer.writeAsync(null, good, null);
+    encode.countDown();
+
+    try {
+      writer.flush();
+      fail();
+    } catch (RuntimeException e) {
+      assertThat(e).hasMessage("Cannot write screenshot to " + bad);
+    }
+    assertThat(written).containsExactly(good);
+    // The failure was reported, and is not thrown again.
+    writer.flush();
+  }
+}
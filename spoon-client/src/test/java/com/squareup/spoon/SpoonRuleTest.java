@@ -1,14 +1,93 @@
 // Copyright 2012 Square, Inc.
 package com.squareup.spoon;
 
+import android.graphics.Bitmap;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
 
 public final class SpoonRuleTest {
   @Rule public final SpoonRule spoon = new SpoonRule();
 
+  private final List<File> written = new CopyOnWriteArrayList<>();
+  private final ScreenshotWriter writer = new ScreenshotWriter(new ScreenshotWriter.Encoder() {
+    @Override public void encode(Bitmap bitmap, File file, ScreenshotOptions options) {
+      try {
+        Thread.sleep(100); // Long enough for the test to end first unless the rule waits.
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      if (file.getName().startsWith("bad")) {
+        throw new IllegalStateException("Cannot write screenshot to " + file);
+      }
+      written.add(file);
+    }
+  });
+  private final SpoonRule rule = new SpoonRule(new SpoonRule.Builder(), new BitmapPool(1), writer);
+
   @Test(expected = IllegalArgumentException.class)
   public void invalidTagThrowsException() {
     spoon.screenshot(null, "!@#$%^&*()");
   }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidTagThrowsExceptionAsync() {
+    spoon.screenshotAsync(null, "!@#$%^&*()");
+  }
+
+  @Test public void backgroundWritesAreDoneWhenTestEnds() throws Throwable {
+    final File first = new File("first.png");
+    final File second = new File("second.png");
+
+    evaluate(new Statement() {
+      @Override public void evaluate() {
+        writer.writeAsync(null, first, null);
+        writer.writeAsync(null, second, null);
+      }
+    });
+
+    assertThat(written).containsExactly(first, second);
+  }
+
+  @Test public void failureToWriteFailsTest() throws Throwable {
+    try {
+      evaluate(new Statement() {
+        @Override public void evaluate() {
+          writer.writeAsync(null, new File("bad.png"), null);
+        }
+      });
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("Cannot write screenshot to bad.png");
+    }
+  }
+
+  @Test public void failureToWriteDoesNotHideTestFailure() throws Throwable {
+    final AssertionError failure = new AssertionError("Test failed.");
+    final File good = new File("good.png");
+    try {
+      evaluate(new Statement() {
+        @Override public void evaluate() {
+          writer.writeAsync(null, new File("bad.png"), null);
+          writer.writeAsync(null, good, null);
+          throw failure;
+        }
+      });
+      fail();
+    } catch (AssertionError e) {
+      assertThat(e).isSameAs(failure);
+    }
+    assertThat(written).containsExactly(good);
+  }
+
+  private void evaluate(Statement test) throws Throwable {
+    rule.apply(test, Description.createTestDescription("com.example.FooTest", "test")).evaluate();
+  }
 }
@@ -4,4 +4,13 @@ public interface Constants {
   String SPOON_SCREENSHOTS = "spoon-screenshots";
   String SPOON_FILES = "spoon-files";
   String NAME_SEPARATOR = "_";
+
+  /** Instrumentation argument naming the format of screenshots: png, jpeg or webp. */
+  String SCREENSHOT_FORMAT_ARG = "spoonScreenshotFormat";
+  /** Instrumentation argument with the quality of lossy screenshots, from 0 to 100. */
+  String SCREENSHOT_QUALITY_ARG = "spoonScreenshotQuality";
+  /** Instrumentation argument with the most pixels the longer side of a screenshot may have. */
+  String SCREENSHOT_MAX_DIMENSION_ARG = "spoonScreenshotMaxDimension";
+  /** Instrumentation argument with the factor by which screenshots are scaled, up to 1. */
+  String SCREENSHOT_SCALE_ARG = "spoonScreenshotScale";
 }
@@ -0,0 +1,86 @@
+package com.squareup.spoon;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.apache.commons.io.FileUtils;
+
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Deletes a directory off the critical path. The directory is renamed to a tombstone straight
+ * away, which frees its path, and the tombstone is deleted by a low-priority thread.
+ */
+final class BackgroundDeletion {
+  private static final String TOMBSTONE_PREFIX = ".spoon-tombstone-";
+
+  /**
+   * Move {@code directory} out of the way and start deleting it, along with any tombstones of it
+   * which an earlier run did not get to finish. If it cannot be renamed it is deleted before this
+   * returns.
+   */
+  static BackgroundDeletion start(File directory) throws IOException {
+    File parent = directory.getAbsoluteFile().getParentFile();
+    String prefix = TOMBSTONE_PREFIX + directory.getName() + "-";
+    List<File> tombstones = new ArrayList<>();
+    File[] earlier = parent.listFiles((dir, name) -> name.startsWith(prefix));
+    if (earlier != null) {
+      tombstones.addAll(Arrays.asList(earlier));
+    }
+    if (directory.exists()) {
+      File tombstone = new File(parent, prefix + System.nanoTime());
+      try {
+        Files.move(directory.toPath(), tombstone.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        tombstones.add(tombstone);
+      } catch (IOException e) {
+        logInfo("Unable to move %s aside (%s), deleting it in place.", directory, e);
+        FileUtils.deleteDirectory(directory);
+      }
+    }
+    return new BackgroundDeletion(tombstones);
+  }
+
+  private final FutureTask<Duration> task;
+
+  private BackgroundDeletion(List<File> tombstones) {
+    task = new FutureTask<>(() -> {
+      long start = System.nanoTime();
+      for (File tombstone : tombstones) {
+        FileUtils.deleteDirectory(tombstone);
+      }
+      return Duration.ofNanos(System.nanoTime() - start);
+    });
+    Thread thread = new Thread(task, "spoon-delete");
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  /**
+   * Wait for the deletion to finish and return how much of the time it took the run did not have
+   * to wait for, which is none of it if this is called before the deletion got anywhere.
+   */
+  Duration await() throws IOException {
+    try {
+      long start = System.nanoTime();
+      Duration took = task.get();
+      Duration saved = took.minusNanos(System.nanoTime() - start);
+      return saved.isNegative() ? Duration.ZERO : saved;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while deleting.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,183 @@
+package com.squareup.spoon;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Append-only record of the work a run has finished, from which an interrupted run can be
+ * resumed. Each line is one JSON entry: a test which ended on a device, where its log was spooled,
+ * or a device which ran all of its tests and had its output pulled. A later entry for the same
+ * test replaces an earlier one.
+ */
+final class CheckpointJournal implements Closeable {
+  static final String FILE_NAME = "checkpoint.jsonl";
+  private static final Gson GSON = SpoonUtils.gsonBuilder().create();
+
+  private static final class Entry {
+    String serial;
+    DeviceTest test;
+    DeviceTestResult testResult;
+    LogSlice logSlice;
+    DeviceResult deviceResult;
+  }
+
+  /** What an earlier run finished, by (sanitized) device serial. */
+  static final class State {
+    final Map<String, DeviceResult> completedDevices = new LinkedHashMap<>();
+    final Map<String, Map<DeviceTest, DeviceTestResult>> completedTests = new LinkedHashMap<>();
+
+    Map<DeviceTest, DeviceTestResult> completedTests(String serial) {
+      Map<DeviceTest, DeviceTestResult> tests = completedTests.get(serial);
+      return tests != null ? tests : Collections.emptyMap();
+    }
+  }
+
+  /**
+   * Read the journal of the run in {@code output}. A line cut short by the runner dying while
+   * writing it is skipped. Tests keep the log spooled for them, which the spool of the resumed run
+   * is appended after.
+   */
+  static State read(File output) throws IOException {
+    State state = new State();
+    Map<String, Map<DeviceTest, LogSlice>> logSlices = new HashMap<>();
+    File file = new File(output, FILE_NAME);
+    if (!file.exists()) {
+      return state;
+    }
+    try (BufferedReader reader =
+        new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        Entry entry;
+        try {
+          entry = GSON.fromJson(line, Entry.class);
+        } catch (JsonParseException e) {
+          logInfo("Ignoring a line of checkpoint journal %s: %s", file, e.getMessage());
+          continue;
+        }
+        if (entry == null || entry.serial == null) {
+          continue;
+        }
+        if (entry.deviceResult != null) {
+          state.completedDevices.put(entry.serial, entry.deviceResult);
+        } else if (entry.test != null && entry.testResult != null) {
+          state.completedTests.computeIfAbsent(entry.serial, serial -> new HashMap<>())
+              .put(entry.test, entry.testResult);
+        } else if (entry.test != null && entry.logSlice != null) {
+          logSlices.computeIfAbsent(entry.serial, serial -> new HashMap<>())
+              .put(entry.test, entry.logSlice);
+        }
+      }
+    }
+    // A test's log is only complete once logcat catches up, which may be after the test ended.
+    state.completedTests.forEach((serial, tests) -> {
+      Map<DeviceTest, LogSlice> slices = logSlices.getOrDefault(serial, Collections.emptyMap());
+      tests.replaceAll((test, result) ->
+          slices.containsKey(test) ? result.withLogSlice(slices.get(test)) : result);
+    });
+    return state;
+  }
+
+  private final Writer writer;
+
+  /** Open the journal in {@code output} for appending, creating it if needed. */
+  CheckpointJournal(File output) throws IOException {
+    output.mkdirs();
+    File file = new File(output, FILE_NAME);
+    dropLineCutShort(file);
+    this.writer = new OutputStreamWriter(new FileOutputStream(file, true), UTF_8);
+  }
+
+  /**
+   * Truncate {@code file} after its last complete line, so that the entries of a resumed run do
+   * not join a line cut short by the run it resumes.
+   */
+  private static void dropLineCutShort(File file) throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+    try (RandomAccessFile journal = new RandomAccessFile(file, "rw")) {
+      byte[] buffer = new byte[8192];
+      long end = journal.length();
+      while (end > 0) {
+        int length = (int) Math.min(buffer.length, end);
+        journal.seek(end - length);
+        journal.readFully(buffer, 0, length);
+        int newline = length - 1;
+        while (newline >= 0 && buffer[newline] != '\n') {
+          newline--;
+        }
+        if (newline >= 0) {
+          end = end - length + newline + 1;
+          break;
+        }
+        end -= length;
+      }
+      journal.setLength(end);
+    }
+  }
+
+  /**
+   * Record {@code test} as finished on {@code serial}. Ignored tests are left out, since tests
+   * cut short by a cancelled run are reported that way too.
+   */
+  void testCompleted(String serial, DeviceTest test, DeviceTestResult result) {
+    if (result.getStatus() == DeviceTestResult.Status.IGNORED) {
+      return;
+    }
+    Entry entry = new Entry();
+    entry.serial = checkNotNull(serial);
+    entry.test = checkNotNull(test);
+    entry.testResult = result;
+    append(entry);
+  }
+
+  /** Record where the log of {@code test} on {@code serial} was spooled. */
+  void logSpooled(String serial, DeviceTest test, LogSlice slice) {
+    Entry entry = new Entry();
+    entry.serial = checkNotNull(serial);
+    entry.test = checkNotNull(test);
+    entry.logSlice = checkNotNull(slice);
+    append(entry);
+  }
+
+  /** Record {@code serial} as having run all of its tests and pulled their output. */
+  void deviceCompleted(String serial, DeviceResult result) {
+    Entry entry = new Entry();
+    entry.serial = checkNotNull(serial);
+    entry.deviceResult = checkNotNull(result);
+    append(entry);
+  }
+
+  private synchronized void append(Entry entry) {
+    try {
+      writer.write(GSON.toJson(entry));
+      writer.write('\n');
+      writer.flush();
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to write to the checkpoint journal.", e);
+    }
+  }
+
+  @Override public synchronized void close() throws IOException {
+    writer.close();
+  }
+}
@@ -1,5 +1,6 @@
 package com.squareup.spoon
 
+import com.android.ddmlib.Log.LogLevel
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner.TestSize
 import com.xenomachina.argparser.ArgParser
 import com.xenomachina.argparser.SystemExitException
@@ -63,6 +64,26 @@ internal class CliArgs(parser: ArgParser) {
       help = "Maximum execution time per test. Parsed by java.time.Duration.",
       transform = Duration::parse).default(null)
 
+  val testTimeout by parser.storing("--test-timeout",
+      help = "Maximum wall-clock time per test before it is killed and failed. "
+          + "Parsed by java.time.Duration.",
+      transform = Duration::parse).default(null)
+
+  val sizeTimeouts by parser.option<MutableMap<TestSize, Duration>>("--size-timeout",
+      help = "Maximum wall-clock time per test of a size (small, medium or large), overriding "
+          + "--test-timeout. Parsed by java.time.Duration.",
+      argNames = listOf("SIZE", "TIMEOUT")) {
+    val size = TestSize.values().firstOrNull { it.name.equals(arguments.first(), true) }
+        ?: throw SystemExitException("Unknown test size: ${arguments.first()}", 2)
+    value.orElse { mutableMapOf<TestSize, Duration>() }
+        .apply { put(size, Duration.parse(arguments.last())) }
+  }.default(null)
+
+  val deviceProbeTimeout by parser.storing("--device-probe-timeout",
+      help = "Maximum time for a device to report its properties before it is left out of the "
+          + "run. Parsed by java.time.Duration.",
+      transform = Duration::parse).default(null)
+
   val serials by parser.adding("--serial",
       help = "Device serials to use. If empty all devices will be used.")
 
@@ -74,12 +95,70 @@ internal class CliArgs(parser: ArgParser) {
 
   val coverage by parser.flagging("Enable code coverage")
 
+  val coverageBatchSize by parser.storing("--coverage-batch-size",
+      help = "Leave the coverage of this many tests on the device and pull it together rather "
+          + "than after each test",
+      transform = String::toInt).default(null)
+
   val singleInstrumentationCall by parser.flagging("--single-instrumentation-call",
       help = "Run all tests in a single instrumentation call")
 
   val clearAppDataBeforeEachTest by parser.flagging("--clear-app-data",
       help = "Runs 'adb pm clear app.package.name' to clear app data before each test.")
 
+  val failFast by parser.flagging("--fail-fast",
+      help = "Cancel the remaining tests on all devices after the first failure")
+
+  val quarantine by parser.flagging("--quarantine",
+      help = "Stop running tests on a device which keeps failing or, unless sharding, runs them "
+          + "much slower than the other devices")
+
+  val resume by parser.flagging("--resume",
+      help = "Resume an interrupted run in the output directory, running only unfinished tests")
+
+  val rerunFailures by parser.flagging("--rerun-failures",
+      help = "Rerun only the failed tests of the run in the output directory and merge the results")
+
+  val changedClasses by parser.adding("--changed-class",
+      help = "Skip the indexed tests which did not touch this class according to the coverage "
+          + "index. Tests missing from the index always run")
+
+  val coverageIndex by parser.storing("--coverage-index",
+      help = "Coverage index to select tests by --changed-class from. Defaults to the one saved "
+          + "in the output directory by an earlier run with --coverage",
+      transform = ::File).default(null)
+
+  val screenshotFormat by parser.storing("--screenshot-format",
+      help = "Format screenshots are encoded in on the device: png, jpeg or webp").default(null)
+
+  val screenshotQuality by parser.storing("--screenshot-quality",
+      help = "Quality of jpeg and webp screenshots, from 0 to 100",
+      transform = String::toInt).default(null)
+
+  val screenshotMaxDimension by parser.storing("--screenshot-max-dimension",
+      help = "Most pixels the longer side of a screenshot may have before it is scaled down",
+      transform = String::toInt).default(null)
+
+  val screenshotScale by parser.storing("--screenshot-scale",
+      help = "Factor by which screenshots are scaled down on the device, up to 1",
+      transform = String::toFloat).default(null)
+
+  val logcatBufferSize by parser.storing("--logcat-buffer-size",
+      help = "Number of logcat messages per device held in memory before spooling to disk",
+      transform = String::toInt).default(null)
+
+  val logcatTags by parser.adding("--logcat-tag",
+      help = "Only capture device log messages with this tag (TestRunner is always captured)")
+
+  val logcatPriority by parser.storing("--logcat-priority",
+      help = "Lowest device log priority to capture (V, D, I, W, E or A)",
+      transform = { LogLevel.getByLetterString(this) ?: throw SystemExitException(
+          "Unknown logcat priority: $this", 2) }).default(null)
+
+  val logcatPidFilter by parser.flagging("--logcat-pid-filter",
+      help = "Only stream the instrumentation process's logs from API 24+ devices "
+          + "(requires --single-instrumentation-call)")
+
   private fun validateInstrumentationArgs() {
     val isTestRunPackageLimited = instrumentationArgs?.contains("package") ?: false
     val isTestRunClassLimited = instrumentationArgs?.contains("class") ?: false || className != null
@@ -0,0 +1,193 @@
+package com.squareup.spoon
+
+import com.google.gson.JsonParseException
+import com.squareup.spoon.SpoonDeviceRunner.COVERAGE_DIR
+import com.squareup.spoon.SpoonDeviceRunner.COVERAGE_FILE
+import org.jacoco.core.data.ExecutionDataReader
+import java.io.BufferedInputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.util.SortedMap
+import java.util.SortedSet
+import java.util.TreeMap
+import java.util.TreeSet
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+import java.util.function.Supplier
+import kotlin.text.Charsets.UTF_8
+
+private val GSON = SpoonUtils.gsonBuilder().create()
+
+/** Wait for the result of reading coverage, rethrowing the [IOException] which failed it. */
+@Throws(IOException::class)
+private fun <T> Future<T>.await(): T {
+  try {
+    return get()
+  } catch (e: ExecutionException) {
+    throw e.cause as? IOException ?: RuntimeException(e.cause)
+  } catch (e: InterruptedException) {
+    Thread.currentThread().interrupt()
+    throw IOException("Interrupted while reading coverage.", e)
+  }
+}
+
+/**
+ * Which classes each test of [testPackage] touched, from the coverage file pulled after it ran on
+ * its own. Classes are indexed rather than methods, since execution data only tells which probes
+ * of a class were hit. A run can skip the indexed tests which touch none of the classes that
+ * changed, though tests added since the index was saved are not in it and always run.
+ */
+internal class CoverageIndex(val testPackage: String,
+    private val touched: SortedMap<DeviceTest, SortedSet<String>>) {
+  /** Every indexed test, including those which touched no class. */
+  val tests: Set<DeviceTest> get() = touched.keys
+
+  /**
+   * The tests which touched any of [changedClasses] or a class nested in one, or which are in one
+   * of them. Class names are binary names, with dots or slashes between packages.
+   */
+  fun affectedTests(changedClasses: Collection<String>): SortedSet<DeviceTest> {
+    val changed = binaryNames(changedClasses)
+    return touched.filter { (test, classes) ->
+      touches(test.className, changed) || classes.any { touches(it, changed) }
+    }.keys.toSortedSet()
+  }
+
+  /**
+   * Those of [changedClasses] which no indexed test is in or touched, counting the classes nested
+   * in them. Which tests a change to them affects is unknown.
+   */
+  fun unindexedClasses(changedClasses: Collection<String>): SortedSet<String> {
+    val indexed = HashSet<String>()
+    touched.forEach { (test, classes) ->
+      addEnclosing(test.className, indexed)
+      classes.forEach { addEnclosing(it, indexed) }
+    }
+    return binaryNames(changedClasses).filterNotTo(TreeSet()) { it in indexed }
+  }
+
+  /** This index with the entries of the tests in [newer] replaced by those. */
+  fun update(newer: CoverageIndex): CoverageIndex {
+    val updated = TreeMap(touched)
+    updated.putAll(newer.touched)
+    return CoverageIndex(newer.testPackage, updated)
+  }
+
+  /** Write the index to [file] as JSON, listing for each class the indexes of its tests. */
+  @Throws(IOException::class)
+  fun save(file: File) {
+    val tests = touched.keys.toList()
+    val classes = TreeMap<String, MutableList<Int>>()
+    tests.forEachIndexed { index, test ->
+      touched[test]!!.forEach { classes.getOrPut(it, ::ArrayList) += index }
+    }
+    file.parentFile.mkdirs()
+    file.writer(UTF_8).use { writer ->
+      GSON.toJson(Json(VERSION, testPackage, tests, classes.mapValues { it.value.toIntArray() }),
+          writer)
+    }
+  }
+
+  /** Nullable throughout, since Gson leaves whatever is missing from the file null. */
+  private class Json(val version: Int, val testPackage: String?, val tests: List<DeviceTest?>?,
+      val classes: Map<String, IntArray?>?)
+
+  companion object {
+    const val FILE_NAME = "coverage-index.json"
+    /** Changes whenever what is indexed changes, so that older indexes are not trusted. */
+    private const val VERSION = 1
+    private const val TEST_COVERAGE_SUFFIX = "_$COVERAGE_FILE"
+
+    /**
+     * Index the coverage files of single tests of [testPackage] which the devices [serials] left
+     * in [outputDirectory], reading them in parallel on [executor]. Tests which ran on more than
+     * one device touched the classes they touched on any of them.
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun build(testPackage: String, serials: Set<String>, outputDirectory: File,
+        executor: ExecutorService): CoverageIndex {
+      val reads = serials.map(SpoonUtils::sanitizeSerial).flatMap { serial ->
+        val files = File(outputDirectory, "$COVERAGE_DIR/$serial").listFiles { _, name ->
+          name.endsWith(TEST_COVERAGE_SUFFIX)
+        }
+        files.orEmpty().mapNotNull { file ->
+          DeviceTest.parse(file.name.removeSuffix(TEST_COVERAGE_SUFFIX))?.let { test ->
+            test to CompletableFuture.supplyAsync(Supplier { touchedClasses(file) }, executor)
+          }
+        }
+      }
+      val touched = TreeMap<DeviceTest, SortedSet<String>>()
+      reads.forEach { (test, classes) -> touched.getOrPut(test, ::TreeSet) += classes.await() }
+      return CoverageIndex(testPackage, touched)
+    }
+
+    /** Read an index written by [save], failing if it was written by another version of Spoon. */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun read(file: File): CoverageIndex {
+      val json = try {
+        file.reader(UTF_8).use { GSON.fromJson(it, Json::class.java) }
+      } catch (e: JsonParseException) {
+        throw IOException("Malformed coverage index: $file", e)
+      } ?: throw IOException("Empty coverage index: $file")
+      if (json.version != VERSION || json.testPackage == null) {
+        throw IOException("Coverage index from another version of Spoon: $file")
+      }
+      // A stale or hand-edited index is rejected whole rather than trusted in part.
+      val tests = json.tests?.map { it ?: throw IOException("Malformed coverage index: $file") }
+          ?: throw IOException("Malformed coverage index: $file")
+      val touched = TreeMap<DeviceTest, SortedSet<String>>()
+      tests.associateTo(touched) { it to TreeSet<String>() }
+      json.classes.orEmpty().forEach { (name, indexes) ->
+        indexes?.forEach {
+          val test = tests.getOrNull(it)
+              ?: throw IOException("Malformed coverage index, no test $it: $file")
+          touched.getValue(test) += name
+        }
+      }
+      return CoverageIndex(json.testPackage, touched)
+    }
+
+    /** The names of the classes with a probe hit in the execution data [file]. */
+    private fun touchedClasses(file: File): List<String> {
+      val classes = ArrayList<String>()
+      BufferedInputStream(FileInputStream(file)).use { input ->
+        val reader = ExecutionDataReader(input)
+        reader.setSessionInfoVisitor { }
+        reader.setExecutionDataVisitor { data ->
+          if (data.probes.any { it }) classes += data.name.replace('/', '.')
+        }
+        reader.read()
+      }
+      return classes
+    }
+
+    private fun binaryNames(classes: Collection<String>) =
+        classes.mapTo(HashSet()) { it.replace('/', '.') }
+
+    /** Add the class [name] and every class it is nested in to [names]. */
+    private fun addEnclosing(name: String, names: MutableSet<String>) {
+      names += name
+      var end = name.indexOf('$')
+      while (end != -1) {
+        names += name.substring(0, end)
+        end = name.indexOf('$', end + 1)
+      }
+    }
+
+    /** Whether the class [name] is one of [changed] or nested in one of them. */
+    private fun touches(name: String, changed: Set<String>): Boolean {
+      if (name in changed) return true
+      var end = name.indexOf('$')
+      while (end != -1) {
+        if (name.substring(0, end) in changed) return true
+        end = name.indexOf('$', end + 1)
+      }
+      return false
+    }
+  }
+}
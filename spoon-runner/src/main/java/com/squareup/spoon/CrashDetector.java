@@ -0,0 +1,121 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Recognizes the logcat markers of a watched process dying: a Java {@code FATAL EXCEPTION}, an
+ * {@code ANR}, or a native crash tombstone.
+ * <p>
+ * Once a crash is recognized the rest of its report, such as the stack trace, is collected from
+ * the messages which follow it on the same thread.
+ */
+final class CrashDetector {
+  private static final int MAX_REPORT_LINES = 200;
+
+  private static final String ANDROID_RUNTIME = "AndroidRuntime";
+  private static final String ACTIVITY_MANAGER = "ActivityManager";
+  private static final String DEBUG = "DEBUG";
+  private static final String LIBC = "libc";
+  /** The tag of each marker and the logcat filter priority letter it is logged at. */
+  static final ImmutableMap<String, Character> MARKER_PRIORITIES = ImmutableMap.of(
+      ANDROID_RUNTIME, 'E', ACTIVITY_MANAGER, 'E', DEBUG, 'F', LIBC, 'F');
+  private static final String FATAL_EXCEPTION = "FATAL EXCEPTION";
+  private static final Pattern FATAL_PROCESS = Pattern.compile("Process: ([^,\\s]+), PID: \\d+");
+  private static final Pattern ANR = Pattern.compile("ANR in ([^\\s(]+).*");
+  private static final Pattern TOMBSTONE = Pattern.compile(".*>>> ([^\\s]+) <<<.*");
+  private static final Pattern FATAL_SIGNAL =
+      Pattern.compile("Fatal signal .* pid \\d+ \\(([^)]+)\\).*");
+
+  private final ImmutableSet<String> packages;
+  private StringBuilder pending;
+  private int pendingPid = -1;
+  private StringBuilder report;
+  private String reportTag;
+  private int reportTid = -1;
+  private int reportLines;
+
+  /** @param packages Packages whose processes are watched, including their named sub-processes. */
+  CrashDetector(Set<String> packages) {
+    this.packages = ImmutableSet.copyOf(packages);
+  }
+
+  /** Returns true when {@code message} confirms the crash of a watched process. */
+  boolean accept(LogCatMessage message) {
+    String tag = message.getTag();
+    String text = message.getMessage();
+    if (report != null) {
+      if (tag.equals(reportTag) && message.getTid() == reportTid
+          && reportLines < MAX_REPORT_LINES) {
+        report.append('\n').append(text);
+        reportLines++;
+      }
+      return false;
+    }
+
+    if (ANDROID_RUNTIME.equals(tag)) {
+      // The crashed process is only named on the line after the marker.
+      if (text.startsWith(FATAL_EXCEPTION)) {
+        pending = new StringBuilder(text);
+        pendingPid = message.getPid();
+        return false;
+      }
+      if (pending != null && message.getPid() == pendingPid) {
+        pending.append('\n').append(text);
+        Matcher match = FATAL_PROCESS.matcher(text);
+        if (match.matches()) {
+          StringBuilder marker = pending;
+          pending = null;
+          pendingPid = -1;
+          return isWatched(match.group(1)) && crashed(message, marker);
+        }
+      }
+      return false;
+    }
+
+    Pattern pattern;
+    if (ACTIVITY_MANAGER.equals(tag)) {
+      pattern = ANR;
+    } else if (DEBUG.equals(tag)) {
+      pattern = TOMBSTONE;
+    } else if (LIBC.equals(tag)) {
+      pattern = FATAL_SIGNAL;
+    } else {
+      return false;
+    }
+    Matcher match = pattern.matcher(text);
+    return match.matches() && isWatched(match.group(1))
+        && crashed(message, new StringBuilder(text));
+  }
+
+  /** The report of the recognized crash so far, or {@code null} if none was recognized. */
+  String getReport() {
+    return report != null ? report.toString() : null;
+  }
+
+  /** Forget any recognized crash and start watching again. */
+  void reset() {
+    pending = null;
+    pendingPid = -1;
+    report = null;
+    reportTag = null;
+    reportTid = -1;
+    reportLines = 0;
+  }
+
+  private boolean crashed(LogCatMessage message, StringBuilder marker) {
+    report = marker;
+    reportTag = message.getTag();
+    reportTid = message.getTid();
+    return true;
+  }
+
+  private boolean isWatched(String process) {
+    int colon = process.indexOf(':');
+    return packages.contains(colon == -1 ? process : process.substring(0, colon));
+  }
+}
@@ -0,0 +1,81 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.squareup.spoon.SpoonLogger.logDebug;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Watches a device's logcat for the app or test process crashing while instrumentation runs. The
+ * messages are those of the device's {@link SpoonDeviceLogger} stream, which always lets the crash
+ * markers through.
+ * <p>
+ * A dead process often leaves the instrumentation call hanging until the ADB timeout. When a crash
+ * is seen the watched run is aborted immediately, and the crash report is kept for the test which
+ * was in progress.
+ */
+final class CrashWatcher extends RunWatcher<CrashWatcher.Crash> {
+  /** A crash which aborted a run. */
+  static final class Crash {
+    /** The test in progress when the process died, or {@code null} if between tests. */
+    final TestIdentifier test;
+    final String report;
+
+    Crash(TestIdentifier test, String report) {
+      this.test = test;
+      this.report = report;
+    }
+  }
+
+  private final boolean debug;
+  private final CrashDetector detector;
+  private TestIdentifier inProgress;
+  private TestIdentifier crashedTest;
+
+  CrashWatcher(IDevice device, Set<String> packages, boolean debug) {
+    super(device, packages);
+    this.debug = debug;
+    this.detector = new CrashDetector(packages);
+  }
+
+  @Override void onWatch() {
+    inProgress = null;
+    crashedTest = null;
+    detector.reset();
+  }
+
+  @Override Crash abortReason() {
+    return new Crash(crashedTest, detector.getReport());
+  }
+
+  /** Look for a crash in newly captured messages, in the order the device logged them. */
+  synchronized void onMessages(List<LogCatMessage> messages) {
+    if (!isWatching()) {
+      return; // Messages from before or between runs cannot belong to them.
+    }
+    for (LogCatMessage message : messages) {
+      if (detector.accept(message) && !isAborted()) {
+        crashedTest = inProgress;
+        String serial = device.getSerialNumber();
+        logInfo("[%s] Process crashed during %s, aborting instrumentation.", serial,
+            inProgress != null ? inProgress : "instrumentation");
+        logDebug(debug, "[%s] %s", serial, detector.getReport());
+        abort();
+      }
+    }
+  }
+
+  @Override public synchronized void testStarted(TestIdentifier test) {
+    inProgress = test;
+  }
+
+  @Override public synchronized void testEnded(TestIdentifier test,
+      Map<String, String> testMetrics) {
+    inProgress = null;
+  }
+}
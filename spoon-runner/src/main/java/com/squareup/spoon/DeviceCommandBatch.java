@@ -0,0 +1,110 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.ddmlib.IDevice;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Runs independent shell commands on a device in a single ADB shell invocation instead of opening
+ * a shell channel for each of them.
+ * <p>
+ * Every command is followed by a marker line carrying its index and exit status, which is how the
+ * combined output is split back into per-command {@link Result results}. A failing command does
+ * not stop the ones after it.
+ */
+final class DeviceCommandBatch {
+  private static final String MARKER = "@@spoon";
+  private static final Pattern MARKER_LINE = Pattern.compile(MARKER + " (\\d+) (-?\\d+)");
+
+  /** The outcome of a single command in a batch. */
+  static final class Result {
+    final String command;
+    final int exitStatus;
+    final String output;
+
+    Result(String command, int exitStatus, String output) {
+      this.command = command;
+      this.exitStatus = exitStatus;
+      this.output = output;
+    }
+
+    boolean isSuccessful() {
+      return exitStatus == 0;
+    }
+  }
+
+  private final List<String> commands = new ArrayList<>();
+
+  DeviceCommandBatch add(String command) {
+    checkNotNull(command);
+    commands.add(command);
+    return this;
+  }
+
+  /** ADB shell round trips saved by running the commands together rather than one by one. */
+  int getSavedRoundTrips() {
+    return Math.max(0, commands.size() - 1);
+  }
+
+  /** Run every command in one shell invocation and return their results in order. */
+  List<Result> execute(IDevice device) throws Exception {
+    if (commands.isEmpty()) {
+      return Collections.emptyList();
+    }
+    CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+    device.executeShellCommand(script(), receiver);
+    return parse(receiver.getOutput());
+  }
+
+  /**
+   * The batch as one shell script. The blank line ahead of each marker keeps it on its own line
+   * even when the command's output does not end with a newline.
+   */
+  String script() {
+    StringBuilder script = new StringBuilder();
+    for (int i = 0; i < commands.size(); i++) {
+      if (i > 0) {
+        script.append("; ");
+      }
+      script.append(commands.get(i))
+          .append("; s=$?; echo; echo \"")
+          .append(MARKER)
+          .append(' ')
+          .append(i)
+          .append(" $s\"");
+    }
+    return script.toString();
+  }
+
+  /** Split the combined output of {@link #script()} into per-command results. */
+  List<Result> parse(String output) {
+    List<Result> results = new ArrayList<>();
+    StringBuilder commandOutput = new StringBuilder();
+    for (String line : output.replace("\r", "").split("\n", -1)) {
+      Matcher match = MARKER_LINE.matcher(line);
+      if (match.matches() && Integer.parseInt(match.group(1)) == results.size()) {
+        // Drop the blank line echoed ahead of the marker, then the command's own final newline.
+        String text = trimNewline(trimNewline(commandOutput.toString()));
+        results.add(new Result(commands.get(results.size()), Integer.parseInt(match.group(2)),
+            text));
+        commandOutput.setLength(0);
+      } else {
+        commandOutput.append(line).append('\n');
+      }
+    }
+    checkState(results.size() == commands.size(),
+        "Shell output ended after %s of %s commands.", results.size(), commands.size());
+    return results;
+  }
+
+  private static String trimNewline(String text) {
+    return text.endsWith("\n") ? text.substring(0, text.length() - 1) : text;
+  }
+}
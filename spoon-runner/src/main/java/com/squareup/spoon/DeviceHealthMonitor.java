@@ -0,0 +1,295 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Tracks how well each device of a run is doing and, if enabled, quarantines one which is
+ * degrading, either because ADB keeps failing on it or, when every device runs the same tests,
+ * because its tests have become much slower than those of the suite as a whole.
+ * <p>
+ * When tests are sharded, the work a quarantined device had not done yet is handed off as
+ * {@link Orphan orphans} to the devices which are still healthy.
+ */
+final class DeviceHealthMonitor {
+  /** Durations recorded across all devices before any device can be judged slow. */
+  static final int MIN_SUITE_SAMPLES = 10;
+  /** Recent durations of a device which are compared with the suite median. */
+  static final int RECENT_SAMPLES = 5;
+  /** How many times slower than the suite median a device's recent tests may run. */
+  static final int SLOW_FACTOR = 4;
+  /** ADB, shell and pull failures in a row a device may have before it is quarantined. */
+  static final int MAX_FAILURES = 3;
+
+  /** Work handed off by a quarantined device: a single test, or a whole shard never listed. */
+  static final class Orphan {
+    final TestIdentifier test;
+    final int shardIndex;
+
+    private Orphan(TestIdentifier test, int shardIndex) {
+      this.test = test;
+      this.shardIndex = shardIndex;
+    }
+
+    static Orphan test(TestIdentifier test) {
+      return new Orphan(checkNotNull(test), -1);
+    }
+
+    static Orphan shard(int shardIndex) {
+      checkArgument(shardIndex >= 0, "Shard index must not be negative.");
+      return new Orphan(null, shardIndex);
+    }
+
+    boolean isShard() {
+      return test == null;
+    }
+  }
+
+  private static final class Device {
+    final Deque<Long> recentMillis = new ArrayDeque<>();
+    int failures;
+    String quarantineReason;
+    /** Waiting for orphans, so not running anything which could be handed off. */
+    boolean waiting;
+    /** Done with its own work and with orphans, so it will not hand off any more. */
+    boolean finished;
+  }
+
+  private final Map<String, Device> devices = new LinkedHashMap<>();
+  private final boolean enabled;
+  private final boolean sharded;
+  private final boolean handOff;
+  /** All durations so far, split around their median so that it is always at hand. */
+  private final PriorityQueue<Long> lowerMillis = new PriorityQueue<>(Collections.reverseOrder());
+  private final PriorityQueue<Long> upperMillis = new PriorityQueue<>();
+  private final Deque<Orphan> orphans = new ArrayDeque<>();
+
+  /**
+   * @param enabled Whether devices may be quarantined at all.
+   * @param sharded Whether devices run different tests, whose durations cannot be compared.
+   * @param handOff Whether devices share the work, so that orphans can be run elsewhere.
+   */
+  DeviceHealthMonitor(Collection<String> serials, boolean enabled, boolean sharded,
+      boolean handOff) {
+    checkArgument(enabled || !handOff, "Only a quarantined device hands off work.");
+    for (String serial : serials) {
+      devices.put(serial, new Device());
+    }
+    this.enabled = enabled;
+    this.sharded = sharded;
+    this.handOff = handOff;
+  }
+
+  /** A listener which feeds the durations of tests run on {@code serial} to this monitor. */
+  ITestRunListener listener(String serial) {
+    device(serial);
+    return new TestTimer(serial);
+  }
+
+  synchronized void recordTest(String serial, long millis) {
+    Device device = device(serial);
+    device.failures = 0; // A test got to its end, so ADB is working again.
+    if (sharded) {
+      return;
+    }
+    addSuiteSample(millis);
+    device.recentMillis.addLast(millis);
+    if (device.recentMillis.size() > RECENT_SAMPLES) {
+      device.recentMillis.removeFirst();
+    }
+    int suiteSamples = lowerMillis.size() + upperMillis.size();
+    if (suiteSamples < MIN_SUITE_SAMPLES || device.recentMillis.size() < RECENT_SAMPLES) {
+      return;
+    }
+    long suiteMedian = lowerMillis.peek();
+    long deviceMedian = median(device.recentMillis);
+    if (deviceMedian > Math.max(suiteMedian, 1) * SLOW_FACTOR) {
+      quarantine(serial, String.format("Recent tests took %d ms at the median, over %d times the "
+          + "suite median of %d ms.", deviceMedian, SLOW_FACTOR, suiteMedian));
+    }
+  }
+
+  /** Record an ADB, shell or pull failure on {@code serial}. */
+  synchronized void recordFailure(String serial, String description) {
+    Device device = device(serial);
+    device.failures++;
+    if (device.failures >= MAX_FAILURES) {
+      quarantine(serial, String.format("%d device failures in a row, the last being: %s",
+          device.failures, description));
+    }
+  }
+
+  /** Record an ADB, shell or pull operation which succeeded on {@code serial}. */
+  synchronized void recordSuccess(String serial) {
+    device(serial).failures = 0;
+  }
+
+  /**
+   * Quarantine {@code serial} straight away, unless quarantine is disabled. Only the first reason
+   * given is kept.
+   */
+  synchronized void quarantine(String serial, String reason) {
+    checkNotNull(reason);
+    Device device = device(serial);
+    if (enabled && device.quarantineReason == null) {
+      device.quarantineReason = reason;
+      logInfo("[%s] Quarantined: %s", serial, reason);
+    }
+  }
+
+  /** Why {@code serial} was quarantined, or {@code null} if it is healthy. */
+  synchronized String getQuarantineReason(String serial) {
+    return device(serial).quarantineReason;
+  }
+
+  /** Why each quarantined device was quarantined, by serial. */
+  synchronized Map<String, String> getQuarantineReasons() {
+    Map<String, String> reasons = new LinkedHashMap<>();
+    for (Map.Entry<String, Device> entry : devices.entrySet()) {
+      if (entry.getValue().quarantineReason != null) {
+        reasons.put(entry.getKey(), entry.getValue().quarantineReason);
+      }
+    }
+    return reasons;
+  }
+
+  /**
+   * Hand off work a quarantined device will not do.
+   *
+   * @return Whether another device will pick it up.
+   */
+  synchronized boolean handOff(Collection<Orphan> work) {
+    if (!handOff || work.isEmpty()) {
+      return false;
+    }
+    orphans.addAll(work);
+    notifyAll();
+    return true;
+  }
+
+  /**
+   * Take the next orphan for healthy device {@code serial} to run, waiting while other devices
+   * are still working and might hand some off. Devices which are waiting too cannot, so once every
+   * other device is waiting or finished there is no more work.
+   *
+   * @return The next orphan, or {@code null} once there is no more work to pick up, after which
+   * {@code serial} counts as finished.
+   */
+  synchronized Orphan takeOrphan(String serial) throws InterruptedException {
+    if (!handOff) {
+      return null;
+    }
+    Device device = device(serial);
+    device.waiting = true;
+    notifyAll(); // Another waiting device may have been waiting only for this one.
+    try {
+      while (orphans.isEmpty() && device.quarantineReason == null && othersWorking(serial)) {
+        wait();
+      }
+    } finally {
+      device.waiting = false;
+    }
+    Orphan orphan = device.quarantineReason == null ? orphans.pollFirst() : null;
+    if (orphan == null) {
+      device.finished = true;
+      notifyAll();
+    }
+    return orphan;
+  }
+
+  /** Mark {@code serial} as having no more work, releasing devices waiting for orphans. */
+  synchronized void finish(String serial) {
+    device(serial).finished = true;
+    notifyAll();
+  }
+
+  private boolean othersWorking(String serial) {
+    for (Map.Entry<String, Device> entry : devices.entrySet()) {
+      Device device = entry.getValue();
+      if (!entry.getKey().equals(serial) && !device.finished && !device.waiting) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Device device(String serial) {
+    Device device = devices.get(serial);
+    checkArgument(device != null, "Unknown device serial: %s", serial);
+    return device;
+  }
+
+  private void addSuiteSample(long millis) {
+    if (lowerMillis.isEmpty() || millis <= lowerMillis.peek()) {
+      lowerMillis.add(millis);
+    } else {
+      upperMillis.add(millis);
+    }
+    if (lowerMillis.size() > upperMillis.size() + 1) {
+      upperMillis.add(lowerMillis.poll());
+    } else if (upperMillis.size() > lowerMillis.size()) {
+      lowerMillis.add(upperMillis.poll());
+    }
+  }
+
+  private static long median(Collection<Long> values) {
+    List<Long> sorted = new ArrayList<>(values);
+    Collections.sort(sorted);
+    return sorted.get(sorted.size() / 2);
+  }
+
+  private final class TestTimer implements ITestRunListener {
+    private final String serial;
+    private long started;
+
+    TestTimer(String serial) {
+      this.serial = serial;
+    }
+
+    @Override public void testStarted(TestIdentifier test) {
+      started = System.nanoTime();
+    }
+
+    @Override public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+      if (started != 0) {
+        recordTest(serial, (System.nanoTime() - started) / 1_000_000);
+        started = 0;
+      }
+    }
+
+    @Override public void testFailed(TestIdentifier test, String trace) {
+    }
+
+    @Override public void testAssumptionFailure(TestIdentifier test, String trace) {
+    }
+
+    @Override public void testIgnored(TestIdentifier test) {
+      started = 0; // An ignored test says nothing about how fast the device is.
+    }
+
+    @Override public void testRunStarted(String runName, int testCount) {
+    }
+
+    @Override public void testRunFailed(String errorMessage) {
+    }
+
+    @Override public void testRunStopped(long elapsedTime) {
+    }
+
+    @Override public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+    }
+  }
+}
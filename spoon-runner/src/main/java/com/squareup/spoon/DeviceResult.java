@@ -23,10 +23,15 @@ public final class DeviceResult {
   private final long started;
   private final long duration;
   private final List<StackTrace> exceptions;
+  private final long logcatBytes;
+  private final long logcatMessages;
+  private final int shellRoundTripsSaved;
+  private final int sessionCacheHits;
 
   private DeviceResult(boolean installFailed, String installMessage, DeviceDetails deviceDetails,
       Map<DeviceTest, DeviceTestResult> testResults, long started, long duration,
-      List<StackTrace> exceptions) {
+      List<StackTrace> exceptions, long logcatBytes, long logcatMessages,
+      int shellRoundTripsSaved, int sessionCacheHits) {
     this.installFailed = installFailed;
     this.installMessage = installMessage;
     this.deviceDetails = deviceDetails;
@@ -34,6 +39,10 @@ public final class DeviceResult {
     this.testResults = unmodifiableMap(new TreeMap<>(testResults));
     this.duration = duration;
     this.exceptions = unmodifiableList(new ArrayList<>(exceptions));
+    this.logcatBytes = logcatBytes;
+    this.logcatMessages = logcatMessages;
+    this.shellRoundTripsSaved = shellRoundTripsSaved;
+    this.sessionCacheHits = sessionCacheHits;
   }
 
   /**
@@ -80,6 +89,46 @@ public final class DeviceResult {
     return exceptions;
   }
 
+  /** Bytes of logcat output transferred from the device. */
+  public long getLogcatBytes() {
+    return logcatBytes;
+  }
+
+  /** Number of logcat messages parsed on the host. */
+  public long getLogcatMessages() {
+    return logcatMessages;
+  }
+
+  /** ADB shell round trips saved by batching device commands. */
+  public int getShellRoundTripsSaved() {
+    return shellRoundTripsSaved;
+  }
+
+  /** Shell commands answered from what the run already knew about the device. */
+  public int getSessionCacheHits() {
+    return sessionCacheHits;
+  }
+
+  /**
+   * This result with the tests of {@code rerun} in place of their earlier results. The device's
+   * installation state and exceptions are those of the rerun, and its counters add up.
+   */
+  DeviceResult mergeRerun(DeviceResult rerun) {
+    Map<DeviceTest, DeviceTestResult> merged = new HashMap<>(testResults);
+    rerun.testResults.forEach((test, result) -> {
+      // A rerun cancelled before the test ran does not make its earlier result any less true.
+      if (result.getStatus() != DeviceTestResult.Status.IGNORED || !merged.containsKey(test)) {
+        merged.put(test, result);
+      }
+    });
+    DeviceDetails details = rerun.deviceDetails != null ? rerun.deviceDetails : deviceDetails;
+    long mergedDuration = Math.max(duration, 0) + Math.max(rerun.duration, 0);
+    return new DeviceResult(rerun.installFailed, rerun.installMessage, details, merged, started,
+        mergedDuration, rerun.exceptions, logcatBytes + rerun.logcatBytes,
+        logcatMessages + rerun.logcatMessages, shellRoundTripsSaved + rerun.shellRoundTripsSaved,
+        sessionCacheHits + rerun.sessionCacheHits);
+  }
+
   static class Builder {
     private boolean installFailed = false;
     private String installMessage = null;
@@ -89,6 +138,10 @@ public final class DeviceResult {
     private long start;
     private long duration = -1;
     private final List<StackTrace> exceptions = new ArrayList<>();
+    private long logcatBytes;
+    private long logcatMessages;
+    private int shellRoundTripsSaved;
+    private int sessionCacheHits;
 
     public Builder addTestResultBuilder(DeviceTest test,
         DeviceTestResult.Builder methodResultBuilder) {
@@ -142,6 +195,24 @@ public final class DeviceResult {
       return this;
     }
 
+    public Builder setLogcatStats(long bytes, long messages) {
+      this.logcatBytes = bytes;
+      this.logcatMessages = messages;
+      return this;
+    }
+
+    public Builder addShellRoundTripsSaved(int count) {
+      checkArgument(count >= 0, "Count must not be negative.");
+      shellRoundTripsSaved += count;
+      return this;
+    }
+
+    public Builder addSessionCacheHits(int count) {
+      checkArgument(count >= 0, "Count must not be negative.");
+      sessionCacheHits += count;
+      return this;
+    }
+
     public DeviceResult build() {
       // Convert builders to actual instances.
       Map<DeviceTest, DeviceTestResult> testResults = new HashMap<>();
@@ -150,7 +221,8 @@ public final class DeviceResult {
       }
 
       return new DeviceResult(installFailed, installMessage, deviceDetails, testResults, started,
-          duration, exceptions);
+          duration, exceptions, logcatBytes, logcatMessages, shellRoundTripsSaved,
+          sessionCacheHits);
     }
   }
 }
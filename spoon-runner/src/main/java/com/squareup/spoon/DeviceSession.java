@@ -0,0 +1,78 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.ddmlib.IDevice;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Device state which does not change over a run, resolved once and shared by every phase which
+ * needs it instead of each phase asking the device again.
+ */
+final class DeviceSession {
+  private final IDevice device;
+  private DeviceDetails details;
+  private String externalStorage;
+  private int cacheHits;
+  /** Not guarded by the lock, which a device that stopped answering may be holding. */
+  private volatile String quarantineReason;
+
+  DeviceSession(IDevice device) {
+    this.device = checkNotNull(device);
+  }
+
+  IDevice getDevice() {
+    return device;
+  }
+
+  String getSerialNumber() {
+    return device.getSerialNumber();
+  }
+
+  synchronized DeviceDetails getDetails() {
+    if (details == null) {
+      details = DeviceDetails.createForDevice(device);
+    }
+    return details;
+  }
+
+  int getApiLevel() {
+    return getDetails().getApiLevel();
+  }
+
+  /** The value of {@code $EXTERNAL_STORAGE} on the device. */
+  synchronized String getExternalStorage() throws Exception {
+    if (externalStorage == null) {
+      CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+      device.executeShellCommand("echo $EXTERNAL_STORAGE", receiver);
+      externalStorage = receiver.getOutput().trim();
+    } else {
+      cacheHits++;
+    }
+    return externalStorage;
+  }
+
+  String getExternalStoragePath(String path) throws Exception {
+    return getExternalStorage() + "/" + path;
+  }
+
+  /** Take the device out of the run, giving {@code reason}. */
+  void quarantine(String reason) {
+    checkNotNull(reason);
+    if (quarantineReason == null) {
+      quarantineReason = reason;
+    }
+  }
+
+  /** Why the device was taken out of the run, or {@code null} if it was not. */
+  String getQuarantineReason() {
+    return quarantineReason;
+  }
+
+  /** Shell commands answered from this session since the last call, which resets the count. */
+  synchronized int takeCacheHits() {
+    int hits = cacheHits;
+    cacheHits = 0;
+    return hits;
+  }
+}
@@ -10,6 +10,15 @@ public final class DeviceTest implements Comparable<DeviceTest> {
     return new DeviceTest(testIdentifier.getClassName(), testIdentifier.getTestName());
   }
 
+  /** Parse a test written by {@link #toString()}, or return {@code null} if it is not one. */
+  static DeviceTest parse(String test) {
+    int separator = test.indexOf('#');
+    if (separator == -1) {
+      return null;
+    }
+    return new DeviceTest(test.substring(0, separator), test.substring(separator + 1));
+  }
+
   private final String className;
   private final String methodName;
 
@@ -3,6 +3,7 @@ package com.squareup.spoon;
 import com.android.ddmlib.logcat.LogCatMessage;
 import com.squareup.spoon.misc.StackTrace;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -26,9 +27,12 @@ public final class DeviceTestResult {
   private final List<File> files;
   private final File animatedGif;
   private final List<LogCatMessage> log;
+  /** Not serialized: {@link SpoonUtils#gsonBuilder()} writes the messages in place of a slice. */
+  private final transient LogSlice logSlice;
 
   private DeviceTestResult(Status status, StackTrace exception, long duration,
-      List<File> screenshots, File animatedGif, List<LogCatMessage> log, List<File> files) {
+      List<File> screenshots, File animatedGif, List<LogCatMessage> log, LogSlice logSlice,
+      List<File> files) {
     this.status = status;
     this.exception = exception;
     this.duration = duration;
@@ -36,6 +40,7 @@ public final class DeviceTestResult {
     this.files = unmodifiableList(new ArrayList<>(files));
     this.animatedGif = animatedGif;
     this.log = unmodifiableList(new ArrayList<>(log));
+    this.logSlice = logSlice;
   }
 
   /** Execution status. */
@@ -68,8 +73,43 @@ public final class DeviceTestResult {
     return files;
   }
 
+  /**
+   * Log messages written during the test. Logs which were spooled to disk are read from their
+   * {@link #getLogSlice() slice} on each call, so callers which need them more than once should
+   * keep the result. A slice which cannot be read is reported and leaves the log empty, rather than
+   * failing the report of every other test.
+   */
   public List<LogCatMessage> getLog() {
-    return log;
+    if (logSlice == null) {
+      return log;
+    }
+    try {
+      return logSlice.read();
+    } catch (IOException e) {
+      logError("Unable to read log slice %s: %s", logSlice, e);
+      return Collections.emptyList();
+    }
+  }
+
+  /** Location of the test's log in the device's logcat spool, or {@code null} if held in memory. */
+  public LogSlice getLogSlice() {
+    return logSlice;
+  }
+
+  /** This result with its log in {@code logSlice}, replacing any it had. */
+  DeviceTestResult withLogSlice(LogSlice logSlice) {
+    checkNotNull(logSlice);
+    return new DeviceTestResult(status, exception, duration, screenshots, animatedGif,
+        Collections.emptyList(), logSlice, files);
+  }
+
+  /** This result with its log read from its slice into memory, for it to be serialized. */
+  DeviceTestResult withInlineLog() {
+    if (logSlice == null) {
+      return this;
+    }
+    return new DeviceTestResult(status, exception, duration, screenshots, animatedGif, getLog(),
+        null, files);
   }
 
   public static class Builder {
@@ -81,6 +121,7 @@ public final class DeviceTestResult {
     private long duration = -1;
     private File animatedGif;
     private List<LogCatMessage> log;
+    private LogSlice logSlice;
 
     public Builder markTestAsFailed(String message) {
       checkNotNull(message);
@@ -110,13 +151,31 @@ public final class DeviceTestResult {
       return this;
     }
 
+    /**
+     * Mark the test as failed by its run being aborted, such as by its process dying. The reason
+     * replaces any less specific failure already reported by the instrumentation.
+     */
+    public Builder markTestAsAborted(String reason) {
+      checkNotNull(reason);
+      status = Status.FAIL;
+      exception = StackTrace.from(reason);
+      return this;
+    }
+
     public Builder setLog(List<LogCatMessage> log) {
       checkNotNull(log);
-      checkArgument(this.log == null, "Log already added.");
+      checkArgument(this.log == null && logSlice == null, "Log already added.");
       this.log = log;
       return this;
     }
 
+    public Builder setLogSlice(LogSlice logSlice) {
+      checkNotNull(logSlice);
+      checkArgument(log == null && this.logSlice == null, "Log already added.");
+      this.logSlice = logSlice;
+      return this;
+    }
+
     public Builder startTest() {
       checkArgument(start == 0, "Start already called.");
       start = System.nanoTime();
@@ -151,12 +210,24 @@ public final class DeviceTestResult {
       return this;
     }
 
+    /**
+     * A builder for a test which ended in an earlier run, carrying over its outcome and the log
+     * spooled for it. Its artifacts are pulled again with those of the current run.
+     */
+    static Builder restore(DeviceTestResult result) {
+      Builder builder = new Builder();
+      builder.status = result.getStatus();
+      builder.exception = result.getException();
+      builder.duration = result.getDuration();
+      builder.logSlice = result.getLogSlice();
+      return builder;
+    }
+
     public DeviceTestResult build() {
-      if (log == null) {
-        log = Collections.emptyList();
-      }
+      // Building leaves the builder untouched, so that a test can be checkpointed as it ends.
+      List<LogCatMessage> log = this.log != null ? this.log : Collections.emptyList();
       return new DeviceTestResult(status, exception, duration,
-              screenshots, animatedGif, log, files);
+              screenshots, animatedGif, log, logSlice, files);
     }
   }
 }
@@ -0,0 +1,144 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Cancels the work of every device once a test has failed on any of them. Devices check in with
+ * {@link #isTripped()} between steps, and register their running instrumentation with
+ * {@link #watch} so that it can be stopped straight away.
+ */
+final class FailFast {
+  private final boolean enabled;
+  private final Map<String, Runnable> aborts = new HashMap<>();
+  private final Map<String, Listener> listeners = new HashMap<>();
+  private String reason;
+
+  FailFast(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /** Why the run was cancelled, or {@code null} if it was not. */
+  synchronized String getReason() {
+    return reason;
+  }
+
+  boolean isTripped() {
+    return getReason() != null;
+  }
+
+  /**
+   * Call {@code abort} to stop the instrumentation {@code serial} is about to run if the run is
+   * cancelled before {@link #unwatch}.
+   *
+   * @return {@code false} if the run was already cancelled and the instrumentation should not
+   * start.
+   */
+  synchronized boolean watch(String serial, Runnable abort) {
+    checkNotNull(abort);
+    if (reason != null) {
+      return false;
+    }
+    aborts.put(serial, abort);
+    return true;
+  }
+
+  synchronized void unwatch(String serial) {
+    aborts.remove(serial);
+  }
+
+  /** Cancel the run, if enabled, because of a failure on {@code serial}. */
+  void trip(String serial, String failure) {
+    List<Runnable> running;
+    synchronized (this) {
+      if (!enabled || reason != null) {
+        return;
+      }
+      reason = String.format("Cancelled after %s failed on %s.", failure, serial);
+      running = new ArrayList<>(aborts.values());
+      aborts.clear();
+    }
+    logInfo("[%s] %s failed, cancelling remaining work on all devices.", serial, failure);
+    for (Runnable abort : running) {
+      abort.run();
+    }
+  }
+
+  /** A listener which trips on a failed test of {@code serial} once it has ended. */
+  synchronized ITestRunListener listener(String serial) {
+    Listener listener = new Listener(serial);
+    listeners.put(serial, listener);
+    return listener;
+  }
+
+  /** The test {@code serial} started but did not end, or {@code null}. */
+  TestIdentifier getCurrentTest(String serial) {
+    Listener listener;
+    synchronized (this) {
+      listener = listeners.get(serial);
+    }
+    return listener != null ? listener.getCurrentTest() : null;
+  }
+
+  /** Trips on failed tests and tracks the test in progress, which a cancellation interrupts. */
+  private final class Listener implements ITestRunListener {
+    private final String serial;
+    private TestIdentifier current;
+    private boolean failed;
+
+    private Listener(String serial) {
+      this.serial = serial;
+    }
+
+    synchronized TestIdentifier getCurrentTest() {
+      return current;
+    }
+
+    @Override public synchronized void testStarted(TestIdentifier test) {
+      current = test;
+      failed = false;
+    }
+
+    @Override public synchronized void testFailed(TestIdentifier test, String trace) {
+      failed = true;
+    }
+
+    @Override public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+      boolean trip;
+      synchronized (this) {
+        current = null;
+        trip = failed;
+        failed = false;
+      }
+      // Waiting for the end keeps the failure itself from being cut short.
+      if (trip) {
+        trip(serial, test.toString());
+      }
+    }
+
+    @Override public void testAssumptionFailure(TestIdentifier test, String trace) {
+    }
+
+    @Override public void testIgnored(TestIdentifier test) {
+    }
+
+    @Override public void testRunStarted(String runName, int testCount) {
+    }
+
+    @Override public void testRunFailed(String errorMessage) {
+    }
+
+    @Override public void testRunStopped(long elapsedTime) {
+    }
+
+    @Override public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+    }
+  }
+}
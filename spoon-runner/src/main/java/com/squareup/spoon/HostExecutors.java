@@ -0,0 +1,73 @@
+package com.squareup.spoon;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Thread pools of the host side of a run. Device workers spend nearly all of their time waiting
+ * on ADB, so they get a thread each. Image and report work is bound by the host's processors, so
+ * each such phase gets a pool no larger than their number.
+ */
+final class HostExecutors {
+  /**
+   * An executor with a worker for each of {@code deviceCount} devices, all running at the same
+   * time unless {@code sequential}. Workers are platform threads: they block in ddmlib's socket
+   * I/O, some of it while holding a monitor, which would pin the carrier of a virtual thread.
+   */
+  static ExecutorService newDeviceExecutor(int deviceCount, boolean sequential) {
+    checkArgument(deviceCount > 0, "Device count must be positive.");
+    if (sequential) {
+      return Executors.newSingleThreadExecutor(threadFactory("spoon-device"));
+    }
+    return Executors.newFixedThreadPool(deviceCount, threadFactory("spoon-device"));
+  }
+
+  /** A pool for CPU-bound {@code phase} work, with a thread for each of the host's processors. */
+  static ExecutorService newCpuExecutor(String phase) {
+    return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+        threadFactory("spoon-" + phase));
+  }
+
+  /** A single thread for background {@code phase} work which must happen in order. */
+  static ExecutorService newSerialExecutor(String phase) {
+    return Executors.newSingleThreadExecutor(threadFactory("spoon-" + phase));
+  }
+
+  /**
+   * The scheduler of test deadlines, shared by every device. Deadlines are nearly always cancelled
+   * when their test ends, so they are removed at once rather than kept until they would have fired.
+   */
+  static ScheduledExecutorService deadlineScheduler() {
+    return DeadlineScheduler.INSTANCE;
+  }
+
+  private static final class DeadlineScheduler {
+    static final ScheduledExecutorService INSTANCE = newDeadlineScheduler();
+
+    private static ScheduledExecutorService newDeadlineScheduler() {
+      ScheduledThreadPoolExecutor scheduler =
+          new ScheduledThreadPoolExecutor(1, threadFactory("spoon-watchdog"));
+      scheduler.setRemoveOnCancelPolicy(true);
+      return scheduler;
+    }
+  }
+
+  private static ThreadFactory threadFactory(String namePrefix) {
+    AtomicInteger index = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, namePrefix + "-" + index.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  private HostExecutors() {
+    // No instances.
+  }
+}
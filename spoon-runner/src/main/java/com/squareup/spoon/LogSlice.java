@@ -0,0 +1,74 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.logcat.LogCatMessage;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/** The byte range of a device's logcat spool file which holds a single test's messages. */
+public final class LogSlice {
+  private final File file;
+  private final long offset;
+  private final long length;
+  private final int count;
+
+  LogSlice(File file, long offset, long length, int count) {
+    checkNotNull(file);
+    this.file = file;
+    this.offset = offset;
+    this.length = length;
+    this.count = count;
+  }
+
+  /** Spool file containing the slice. */
+  public File getFile() {
+    return file;
+  }
+
+  /** Offset of the first byte of the slice. */
+  public long getOffset() {
+    return offset;
+  }
+
+  /** Length of the slice, in compressed bytes. */
+  public long getLength() {
+    return length;
+  }
+
+  /** Number of messages in the slice. */
+  public int getCount() {
+    return count;
+  }
+
+  /** Read and decode only the messages in this slice. */
+  public List<LogCatMessage> read() throws IOException {
+    List<LogCatMessage> messages = new ArrayList<>(count);
+    if (count == 0) {
+      return messages;
+    }
+    try (InputStream raw = new FileInputStream(file)) {
+      IOUtils.skipFully(raw, offset);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new GZIPInputStream(new BoundedInputStream(raw, length))));
+      LogCatMessage message;
+      while ((message = LogcatSpool.read(in)) != null) {
+        messages.add(message);
+      }
+    }
+    return messages;
+  }
+
+  @Override public String toString() {
+    return file + "@" + offset + "+" + length;
+  }
+}
@@ -0,0 +1,74 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.logcat.LogCatMessage;
+import java.io.IOException;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits a live stream of logcat messages into per-test logs as they arrive.
+ * <p>
+ * A test's log starts with the {@code TestRunner} "started" message and ends with the matching
+ * "finished" message, or with the next test's "started" message if the process was killed before
+ * the test could finish. Only messages from the process which announced the start are kept.
+ * Anything received outside of a test, or from another process, is dropped immediately. Kept
+ * messages go straight to the device's {@link LogcatSpool}.
+ */
+final class LogcatDemultiplexer {
+  private static final String TEST_RUNNER = "TestRunner";
+  private static final Pattern MESSAGE_START = Pattern.compile("started: ([^(]+)\\(([^)]+)\\)");
+  private static final Pattern MESSAGE_END = Pattern.compile("finished: [^(]+\\([^)]+\\)");
+
+  private final LogcatSpool spool;
+  private DeviceTest current;
+  private int pid = -1;
+
+  LogcatDemultiplexer(LogcatSpool spool) {
+    this.spool = spool;
+  }
+
+  synchronized void accept(LogCatMessage message) throws IOException {
+    boolean testRunner = TEST_RUNNER.equals(message.getTag());
+    Matcher start = MESSAGE_START.matcher(message.getMessage());
+    if (testRunner && start.matches()) {
+      if (current != null) {
+        // The previous test never finished, such as when its process was killed. Keep its
+        // partial log.
+        spool.finishTest();
+      }
+      current = new DeviceTest(start.group(2), start.group(1));
+      pid = message.getPid();
+      spool.startTest(current);
+      spool.append(message);
+      return;
+    }
+    if (current == null) {
+      return;
+    }
+
+    // Only log messages from the same PID.
+    if (pid == message.getPid()) {
+      spool.append(message);
+    }
+
+    if (testRunner && MESSAGE_END.matcher(message.getMessage()).matches()) {
+      spool.finishTest();
+      current = null;
+      pid = -1;
+    }
+  }
+
+  /** The process of the test in progress, or {@code -1} when between tests. */
+  synchronized int getPid() {
+    return pid;
+  }
+
+  /** Finish any test still in progress and return the log slices of every test seen. */
+  synchronized Map<DeviceTest, LogSlice> finish() throws IOException {
+    spool.close();
+    current = null;
+    pid = -1;
+    return spool.getIndex();
+  }
+}
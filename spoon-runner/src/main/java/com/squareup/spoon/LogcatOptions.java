@@ -0,0 +1,103 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.google.common.collect.ImmutableSet;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/** How device logs are captured: what the device sends and how much of it is kept in memory. */
+final class LogcatOptions {
+  /** First API level whose {@code logcat} supports {@code --pid}. */
+  static final int PID_FILTER_API_LEVEL = 24;
+  /** First API level whose {@code logcat} supports {@code -T} to skip old messages. */
+  static final int TAIL_API_LEVEL = 19;
+  /** Logcat filter spec priority letters, from lowest to highest. */
+  private static final String PRIORITY_LETTERS = "VDIWEF";
+  private static final String TEST_RUNNER = "TestRunner";
+
+  private final int bufferSize;
+  private final ImmutableSet<String> tags;
+  private final LogLevel minPriority;
+  private final boolean pidFilter;
+
+  /**
+   * @param bufferSize Number of messages held in memory before spooling to disk.
+   * @param tags Tags to capture, or empty for all tags.
+   * @param minPriority Lowest priority to capture, or {@code null} for all priorities.
+   * @param pidFilter Whether to only capture the instrumentation process once it is known.
+   */
+  LogcatOptions(int bufferSize, Set<String> tags, LogLevel minPriority, boolean pidFilter) {
+    checkArgument(bufferSize > 0, "Buffer size must be positive.");
+    this.bufferSize = bufferSize;
+    this.tags = ImmutableSet.copyOf(tags);
+    this.minPriority = minPriority;
+    this.pidFilter = pidFilter;
+  }
+
+  int getBufferSize() {
+    return bufferSize;
+  }
+
+  boolean isPidFilter() {
+    return pidFilter;
+  }
+
+  /**
+   * Build the {@code logcat} command for a device. Tag and priority filters are applied on the
+   * device at every API level, and always let the test runner's markers and those of a crash
+   * through. The PID filter is only applied when {@code pid} is known and the device is new
+   * enough; otherwise other processes are dropped on the host.
+   *
+   * @param pid Process to restrict output to, or {@code -1}.
+   * @param since Timestamp to resume output from, or {@code null} for only new messages.
+   */
+  String command(int apiLevel, int pid, String since) {
+    StringBuilder command = new StringBuilder("logcat -v long");
+    if (pid != -1 && pidFilter && apiLevel >= PID_FILTER_API_LEVEL) {
+      command.append(" --pid=").append(pid);
+    }
+    if (since != null) {
+      command.append(" -T '").append(since).append('\'');
+    } else if (apiLevel >= TAIL_API_LEVEL) {
+      // Skip the old messages in the device's buffer, whose crashes are not this run's.
+      command.append(" -T 1");
+    }
+    if (!tags.isEmpty() || minPriority != null) {
+      // The test runner's start and finish markers must always get through.
+      command.append(' ').append(TEST_RUNNER).append(":I");
+      char priority = priorityLetter(minPriority);
+      for (String tag : tags) {
+        if (!TEST_RUNNER.equals(tag)) {
+          command.append(' ').append(tag).append(':')
+              .append(lower(priority, CrashDetector.MARKER_PRIORITIES.get(tag)));
+        }
+      }
+      // So must crash markers, which abort the run.
+      CrashDetector.MARKER_PRIORITIES.forEach((tag, markerPriority) -> {
+        if (!tags.contains(tag) && (!tags.isEmpty() || isLower(markerPriority, priority))) {
+          command.append(' ').append(tag).append(':').append(markerPriority);
+        }
+      });
+      command.append(tags.isEmpty() ? " *:" + priority : " *:S");
+    }
+    return command.toString();
+  }
+
+  /** The lower of two filter spec priorities, the second of which may be {@code null}. */
+  private static char lower(char priority, Character other) {
+    return other != null && isLower(other, priority) ? other : priority;
+  }
+
+  private static boolean isLower(char priority, char other) {
+    return PRIORITY_LETTERS.indexOf(priority) < PRIORITY_LETTERS.indexOf(other);
+  }
+
+  /** Logcat filter specs call the assert level fatal. */
+  private static char priorityLetter(LogLevel level) {
+    if (level == null) {
+      return 'V';
+    }
+    return level == LogLevel.ASSERT ? 'F' : level.getPriorityLetter();
+  }
+}
@@ -0,0 +1,368 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.squareup.spoon.SpoonLogger.logError;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads logcat from every device over ADB shell channels using a single selector thread.
+ * <p>
+ * Complete lines are queued per stream and handed to the stream's {@link Listener} on a small
+ * shared worker pool. When a stream's queue fills up its channel is no longer read until the
+ * listener catches up, so a slow consumer pushes back on its own device rather than on the host.
+ */
+final class LogcatService implements Closeable {
+  /** Stop reading a stream once this many lines are waiting for its listener. */
+  private static final int HIGH_WATER_MARK = 8192;
+  /** Resume reading a paused stream once its queue drains to this many lines. */
+  private static final int LOW_WATER_MARK = 2048;
+  private static final int MAX_BATCH = 512;
+  private static final String OKAY = "OKAY";
+
+  /** Receives the output of a stream. Never called concurrently for the same stream. */
+  interface Listener {
+    void onLines(List<String> lines);
+
+    /** The stream ended, either by the device or because of {@code error}. */
+    void onClosed(IOException error);
+  }
+
+  private final InetSocketAddress adbAddress;
+  private final Selector selector;
+  private final ExecutorService workers;
+  private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+  private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+  private final Thread selectorThread;
+  private volatile boolean closed;
+
+  LogcatService() throws IOException {
+    this(AndroidDebugBridge.getSocketAddress(),
+        Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+  }
+
+  LogcatService(InetSocketAddress adbAddress, int workerCount) throws IOException {
+    this.adbAddress = adbAddress;
+    this.selector = Selector.open();
+    AtomicInteger workerIndex = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+      Thread thread = new Thread(runnable, "spoon-logcat-worker-" + workerIndex.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.selectorThread = new Thread(this::loop, "spoon-logcat-selector");
+    selectorThread.setDaemon(true);
+    selectorThread.start();
+  }
+
+  /** Start streaming the output of {@code command} from the device with {@code serial}. */
+  Stream open(String serial, String command, Listener listener) {
+    Stream stream = new Stream(serial, command, listener);
+    runOnSelector(stream::connect);
+    return stream;
+  }
+
+  @Override public void close() {
+    closed = true;
+    selector.wakeup();
+    try {
+      selectorThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    workers.shutdown();
+  }
+
+  private void runOnSelector(Runnable task) {
+    selectorTasks.add(task);
+    selector.wakeup();
+  }
+
+  private void loop() {
+    try {
+      while (!closed) {
+        selector.select();
+        Runnable task;
+        while ((task = selectorTasks.poll()) != null) {
+          task.run();
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          Stream stream = (Stream) key.attachment();
+          if (key.isValid()) {
+            stream.onReady(key);
+          }
+        }
+      }
+      for (SelectionKey key : selector.keys()) {
+        ((Stream) key.attachment()).close(null);
+      }
+      selector.close();
+    } catch (IOException | ClosedSelectorException e) {
+      logError("Logcat selector failed: %s", e.getMessage());
+    }
+  }
+
+  /** A single device's logcat shell channel. */
+  final class Stream {
+    private static final int CONNECTING = 0;
+    private static final int TRANSPORT = 1;
+    private static final int SHELL = 2;
+    private static final int STREAMING = 3;
+
+    private final String serial;
+    private final String command;
+    private final Listener listener;
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final ByteBuffer status = ByteBuffer.allocate(4);
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+    // Guarded by itself.
+    private final ArrayDeque<String> lines = new ArrayDeque<>();
+    private final CountDownLatch drained = new CountDownLatch(1);
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer request;
+    private int state = CONNECTING;
+    private boolean draining;
+    private boolean paused;
+    private boolean ended;
+    private IOException error;
+    private volatile boolean cancelled;
+
+    Stream(String serial, String command, Listener listener) {
+      this.serial = serial;
+      this.command = command;
+      this.listener = listener;
+    }
+
+    /** Bytes received from the device after the shell was opened. */
+    long getBytesRead() {
+      return bytesRead.get();
+    }
+
+    /** Stop reading. The listener receives no further calls. */
+    void cancel() {
+      cancelled = true;
+      runOnSelector(() -> close(null));
+    }
+
+    /**
+     * Stop reading, and wait for the listener to receive every line already read. Must not be
+     * called while holding a lock the listener takes.
+     *
+     * @return false if the lines were not all delivered within the timeout.
+     */
+    boolean finish(long timeout, TimeUnit unit) throws InterruptedException {
+      runOnSelector(() -> close(null));
+      return drained.await(timeout, unit);
+    }
+
+    private void connect() {
+      try {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+        if (channel.connect(adbAddress)) {
+          onConnected();
+        }
+      } catch (IOException e) {
+        close(e);
+      }
+    }
+
+    private void onReady(SelectionKey readyKey) {
+      try {
+        if (readyKey.isConnectable() && channel.finishConnect()) {
+          onConnected();
+        } else if (readyKey.isWritable()) {
+          channel.write(request);
+          if (!request.hasRemaining()) {
+            status.clear();
+            key.interestOps(SelectionKey.OP_READ);
+          }
+        } else if (readyKey.isReadable()) {
+          if (state == STREAMING) {
+            read();
+          } else {
+            readStatus();
+          }
+        }
+      } catch (IOException e) {
+        close(e);
+      }
+    }
+
+    private void onConnected() {
+      state = TRANSPORT;
+      send("host:transport:" + serial);
+    }
+
+    /** Queue an ADB request: its length as four hex digits followed by the payload. */
+    private void send(String payload) {
+      byte[] bytes = payload.getBytes(UTF_8);
+      request = ByteBuffer.wrap(
+          (String.format("%04x", bytes.length) + payload).getBytes(UTF_8));
+      key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void readStatus() throws IOException {
+      if (channel.read(status) == -1) {
+        throw new IOException("ADB closed the connection for " + serial);
+      }
+      if (status.hasRemaining()) {
+        return;
+      }
+      String response = new String(status.array(), US_ASCII);
+      if (!OKAY.equals(response)) {
+        String phase = state == TRANSPORT ? "transport" : "shell";
+        throw new IOException("ADB refused " + phase + " for " + serial + ": " + response);
+      }
+      if (state == TRANSPORT) {
+        state = SHELL;
+        send("shell:" + command);
+      } else {
+        state = STREAMING;
+      }
+    }
+
+    private void read() throws IOException {
+      readBuffer.clear();
+      int count = channel.read(readBuffer);
+      if (count == -1) {
+        if (partialLine.size() > 0) {
+          completeLine();
+        }
+        close(null);
+        return;
+      }
+      bytesRead.addAndGet(count);
+      byte[] data = readBuffer.array();
+      for (int i = 0; i < count; i++) {
+        if (data[i] == '\n') {
+          completeLine();
+        } else {
+          partialLine.write(data[i]);
+        }
+      }
+
+      boolean pause;
+      synchronized (lines) {
+        pause = lines.size() >= HIGH_WATER_MARK;
+        paused |= pause;
+      }
+      if (pause) {
+        key.interestOps(0);
+      }
+      scheduleDrain();
+    }
+
+    private void completeLine() {
+      byte[] bytes = partialLine.toByteArray();
+      partialLine.reset();
+      int length = bytes.length;
+      while (length > 0 && bytes[length - 1] == '\r') {
+        length--; // Older devices convert newlines to CRLF, some of them twice.
+      }
+      String line = new String(bytes, 0, length, UTF_8);
+      synchronized (lines) {
+        lines.add(line);
+      }
+    }
+
+    private void scheduleDrain() {
+      synchronized (lines) {
+        if (draining || lines.isEmpty() && !ended) {
+          return;
+        }
+        draining = true;
+      }
+      workers.execute(this::drain);
+    }
+
+    /** Hand queued lines to the listener on a worker thread. */
+    private void drain() {
+      while (true) {
+        List<String> batch = new ArrayList<>();
+        boolean resume = false;
+        boolean finished = false;
+        synchronized (lines) {
+          while (batch.size() < MAX_BATCH && !lines.isEmpty()) {
+            batch.add(lines.poll());
+          }
+          if (paused && lines.size() <= LOW_WATER_MARK) {
+            paused = false;
+            resume = true;
+          }
+          if (batch.isEmpty()) {
+            draining = false;
+            finished = ended;
+          }
+        }
+        if (resume) {
+          runOnSelector(() -> {
+            if (key.isValid()) {
+              key.interestOps(SelectionKey.OP_READ);
+            }
+          });
+        }
+        if (batch.isEmpty()) {
+          if (finished) {
+            if (!cancelled) {
+              listener.onClosed(error);
+            }
+            drained.countDown();
+          }
+          return;
+        }
+        if (!cancelled) {
+          listener.onLines(batch);
+        }
+      }
+    }
+
+    /** Must be called on the selector thread. */
+    private void close(IOException cause) {
+      if (ended) {
+        return;
+      }
+      if (key != null) {
+        key.cancel();
+      }
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+        }
+      }
+      synchronized (lines) {
+        ended = true;
+        error = cause;
+      }
+      scheduleDrain();
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.android.ddmlib.logcat.LogCatTimestamp;
+import com.google.common.io.CountingOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Append-only, per-device store of logcat messages on disk.
+ * <p>
+ * Each test's messages are written as their own gzip member so that a test's log can be read back
+ * from its {@link LogSlice} without touching the rest of the file. At most {@code windowSize}
+ * messages are held on the heap before being compressed to disk.
+ */
+final class LogcatSpool {
+  static final String FILE_NAME = "logcat.spool";
+
+  private final File file;
+  private final int windowSize;
+  private final BiConsumer<DeviceTest, LogSlice> finishedListener;
+  private final List<LogCatMessage> window = new ArrayList<>();
+  private final Map<DeviceTest, LogSlice> index = new LinkedHashMap<>();
+  private CountingOutputStream output;
+  private long base;
+  private GZIPOutputStream member;
+  private DataOutputStream data;
+  private DeviceTest current;
+  private long currentOffset;
+  private int currentCount;
+
+  LogcatSpool(File file, int windowSize) {
+    this(file, windowSize, (test, slice) -> { });
+  }
+
+  /** @param finishedListener Told of each test's slice once it is complete on disk. */
+  LogcatSpool(File file, int windowSize, BiConsumer<DeviceTest, LogSlice> finishedListener) {
+    checkArgument(windowSize > 0, "Window size must be positive.");
+    this.file = file;
+    this.windowSize = windowSize;
+    this.finishedListener = finishedListener;
+  }
+
+  /** Start a new slice for {@code test}, finishing the previous one if it never finished. */
+  void startTest(DeviceTest test) throws IOException {
+    if (current != null) {
+      finishTest();
+    }
+    if (output == null) {
+      file.getParentFile().mkdirs();
+      base = file.length();
+      output = new CountingOutputStream(new FileOutputStream(file, true));
+    }
+    current = test;
+    currentOffset = base + output.getCount();
+    currentCount = 0;
+    member = new GZIPOutputStream(new CloseShieldOutputStream(output));
+    data = new DataOutputStream(new BufferedOutputStream(member));
+  }
+
+  void append(LogCatMessage message) throws IOException {
+    checkState(current != null, "No test started.");
+    window.add(message);
+    currentCount++;
+    if (window.size() >= windowSize) {
+      flushWindow();
+    }
+  }
+
+  /** Complete the current test's slice and add it to the index. */
+  LogSlice finishTest() throws IOException {
+    checkState(current != null, "No test started.");
+    flushWindow();
+    data.flush();
+    member.finish();
+    output.flush();
+
+    long end = base + output.getCount();
+    LogSlice slice = new LogSlice(file, currentOffset, end - currentOffset, currentCount);
+    index.put(current, slice);
+    finishedListener.accept(current, slice);
+    current = null;
+    member = null;
+    data = null;
+    return slice;
+  }
+
+  /** Slices of every finished test, in the order they started. */
+  Map<DeviceTest, LogSlice> getIndex() {
+    return new LinkedHashMap<>(index);
+  }
+
+  void close() throws IOException {
+    if (current != null) {
+      finishTest();
+    }
+    if (output != null) {
+      output.close();
+    }
+  }
+
+  private void flushWindow() throws IOException {
+    for (LogCatMessage message : window) {
+      write(data, message);
+    }
+    window.clear();
+  }
+
+  private static void write(DataOutputStream out, LogCatMessage message) throws IOException {
+    out.writeChar(message.getLogLevel().getPriorityLetter());
+    out.writeInt(message.getPid());
+    out.writeInt(message.getTid());
+    writeString(out, message.getAppName());
+    writeString(out, message.getTag());
+    writeString(out, message.getTimestamp().toString());
+    writeString(out, message.getMessage());
+  }
+
+  /** Read the next message or return {@code null} at the end of the stream. */
+  static LogCatMessage read(DataInputStream in) throws IOException {
+    char level;
+    try {
+      level = in.readChar();
+    } catch (EOFException e) {
+      return null;
+    }
+    int pid = in.readInt();
+    int tid = in.readInt();
+    String appName = readString(in);
+    String tag = readString(in);
+    LogCatTimestamp timestamp = LogCatTimestamp.fromString(readString(in));
+    String message = readString(in);
+    return new LogCatMessage(LogLevel.getByLetter(level), pid, tid, appName, tag, timestamp,
+        message);
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    // Not writeUTF, which is limited to 64KB and logcat messages have no such guarantee.
+    byte[] bytes = value.getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
@@ -0,0 +1,106 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.google.common.collect.ImmutableSet;
+import java.util.Map;
+import java.util.Set;
+
+import static com.squareup.spoon.SpoonUtils.forceStop;
+
+/**
+ * Listens to an instrumentation run in order to abort it from another thread, by force-stopping
+ * the packages and cancelling the runner, when something goes wrong which the run itself would
+ * only notice at the ADB timeout.
+ *
+ * @param <T> Why a run was aborted.
+ */
+abstract class RunWatcher<T> implements ITestRunListener {
+  final IDevice device;
+  private final ImmutableSet<String> packages;
+  private RemoteAndroidTestRunner runner;
+  private boolean aborted;
+
+  RunWatcher(IDevice device, Set<String> packages) {
+    this.device = device;
+    this.packages = ImmutableSet.copyOf(packages);
+  }
+
+  /** Start watching {@code runner}, which is about to run. */
+  final synchronized void watch(RemoteAndroidTestRunner runner) {
+    this.runner = runner;
+    aborted = false;
+    onWatch();
+  }
+
+  /** Stop watching the current run and return why it was aborted, if it was. */
+  final synchronized T stopWatching() {
+    runner = null;
+    onStopWatching();
+    return aborted ? abortReason() : null;
+  }
+
+  /** Release the resources used to watch runs, if any. */
+  void stop() {
+  }
+
+  /** Must hold the lock. Called when a run is about to be watched. */
+  void onWatch() {
+  }
+
+  /** Must hold the lock. Called when a run is no longer watched. */
+  void onStopWatching() {
+  }
+
+  /** Must hold the lock. Why the run which was just watched was aborted. */
+  abstract T abortReason();
+
+  /** Must hold the lock. */
+  final boolean isWatching() {
+    return runner != null;
+  }
+
+  /** Must hold the lock. */
+  final boolean isAborted() {
+    return aborted;
+  }
+
+  /**
+   * Must hold the lock. Kill the instrumentation before cancelling its runner. Holding the lock
+   * keeps the next run from being watched, and so started, until the old processes are gone.
+   */
+  final void abort() {
+    aborted = true;
+    forceStop(device, packages);
+    runner.cancel();
+  }
+
+  @Override public void testStarted(TestIdentifier test) {
+  }
+
+  @Override public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+  }
+
+  @Override public void testFailed(TestIdentifier test, String trace) {
+  }
+
+  @Override public void testAssumptionFailure(TestIdentifier test, String trace) {
+  }
+
+  @Override public void testIgnored(TestIdentifier test) {
+  }
+
+  @Override public void testRunStarted(String runName, int testCount) {
+  }
+
+  @Override public void testRunFailed(String errorMessage) {
+  }
+
+  @Override public void testRunStopped(long elapsedTime) {
+  }
+
+  @Override public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+  }
+}
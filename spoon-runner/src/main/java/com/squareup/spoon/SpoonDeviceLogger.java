@@ -1,71 +1,249 @@
 package com.squareup.spoon;
 
 import com.android.ddmlib.IDevice;
-import com.android.ddmlib.logcat.LogCatListener;
 import com.android.ddmlib.logcat.LogCatMessage;
-import com.android.ddmlib.logcat.LogCatReceiverTask;
+import com.android.ddmlib.logcat.LogCatMessageParser;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
-final class SpoonDeviceLogger implements LogCatListener {
-  private static final String TEST_RUNNER = "TestRunner";
-  private static final Pattern MESSAGE_START = Pattern.compile("started: ([^(]+)\\(([^)]+)\\)");
-  private static final Pattern MESSAGE_END = Pattern.compile("finished: [^(]+\\([^)]+\\)");
+import static com.squareup.spoon.SpoonLogger.logDebug;
+import static com.squareup.spoon.SpoonLogger.logError;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
-  private final List<LogCatMessage> messages;
-  private final LogCatReceiverTask logCatReceiverTask;
+/**
+ * Streams a device's logcat into per-test logs. Filtering is pushed to the device where possible
+ * so that unwanted lines are never transferred or parsed.
+ */
+final class SpoonDeviceLogger {
+  private static final long FINISH_TIMEOUT_SECONDS = 10;
+  /** Times in a row a stream may be reopened without it delivering any output in between. */
+  static final int MAX_RECONNECTS = 3;
 
-  SpoonDeviceLogger(IDevice device) {
-    messages = new ArrayList<>();
-    logCatReceiverTask = new LogCatReceiverTask(device);
-    logCatReceiverTask.addLogCatListener(this);
+  private final IDevice device;
+  private final int apiLevel;
+  private final LogcatService service;
+  private final LogcatOptions options;
+  private boolean narrowToPid;
+  private final boolean debug;
+  private final LogcatDemultiplexer demultiplexer;
+  private final Consumer<List<LogCatMessage>> messageListener;
+  private final AtomicLong previousBytes = new AtomicLong();
+  private final AtomicLong messagesParsed = new AtomicLong();
+  private volatile IOException spoolFailure;
+  private volatile LogcatService.Stream stream;
+  private StreamListener current;
+  private int narrowedPid = -1;
+  private boolean stopping;
+  private boolean finished;
+  private int reconnects;
+  private String streamLoss;
 
-    // Start a background thread to monitor the device logs. This will exit when we call stop below.
-    new Thread(logCatReceiverTask).start();
+  // Messages at the newest timestamp, used to drop duplicates when the stream is restarted.
+  private String lastTimestamp;
+  private final List<String> lastTimestampMessages = new ArrayList<>();
+  private String resumeTimestamp;
+  private final List<String> resumeDuplicates = new ArrayList<>();
+
+  /**
+   * @param singleProcess Whether all tests run in one instrumentation process, allowing the
+   * stream to be narrowed to that process on the device once its PID is known.
+   * @param sliceListener Told of each test's log slice once it is complete in {@code spoolFile}.
+   * @param messageListener Given each batch of new messages, without those replayed by a
+   * restarted stream, such as to watch for crashes. Called without holding the logger's lock.
+   */
+  SpoonDeviceLogger(IDevice device, int apiLevel, boolean singleProcess, File spoolFile,
+      BiConsumer<DeviceTest, LogSlice> sliceListener,
+      Consumer<List<LogCatMessage>> messageListener, LogcatService service,
+      LogcatOptions options, boolean debug) {
+    this.device = device;
+    this.apiLevel = apiLevel;
+    this.service = service;
+    this.options = options;
+    this.narrowToPid = singleProcess && options.isPidFilter()
+        && apiLevel >= LogcatOptions.PID_FILTER_API_LEVEL;
+    this.debug = debug;
+    this.demultiplexer =
+        new LogcatDemultiplexer(
+            new LogcatSpool(spoolFile, options.getBufferSize(), sliceListener));
+    this.messageListener = messageListener;
+
+    synchronized (this) {
+      startStream(-1, null);
+    }
   }
 
-  @Override public void log(List<LogCatMessage> msgList) {
-    synchronized (messages) {
-      messages.addAll(msgList);
+  /** Stop capturing, finish the spool, and return the log slices of every test seen. */
+  public Map<DeviceTest, LogSlice> getParsedLogs() throws IOException {
+    LogcatService.Stream last;
+    synchronized (this) {
+      stopping = true; // No more restarts, so the stream is the last one.
+      last = stream;
+    }
+    // The lines still queued hold the end of the last test's output. They are delivered to
+    // onMessages, which takes the lock, so wait for them without holding it.
+    try {
+      if (!last.finish(FINISH_TIMEOUT_SECONDS, SECONDS)) {
+        logError("[%s] Timed out delivering the end of logcat", device.getSerialNumber());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while finishing logcat", e);
+    }
+    synchronized (this) {
+      finished = true;
+      logDebug(debug, "[%s] Logcat transferred %d bytes and parsed %d messages",
+          device.getSerialNumber(), getBytesTransferred(), messagesParsed.get());
+      if (spoolFailure != null) {
+        throw spoolFailure;
+      }
+      return demultiplexer.finish();
     }
   }
 
-  public Map<DeviceTest, List<LogCatMessage>> getParsedLogs() {
-    logCatReceiverTask.stop();
+  /**
+   * Stop narrowing the stream to the instrumentation process, which is about to be replaced by
+   * others. The stream is restarted unfiltered from the newest message already seen.
+   */
+  synchronized void releasePid() {
+    narrowToPid = false;
+    if (narrowedPid != -1 && !stopping) {
+      narrowedPid = -1;
+      restartStream(-1);
+    }
+  }
 
-    Map<DeviceTest, List<LogCatMessage>> logs = new HashMap<>();
-    DeviceTest current = null;
-    int pid = -1;
-    synchronized (messages) {
+  /** Why logcat stopped before capture did, losing the rest of it, or {@code null}. */
+  synchronized String getStreamLoss() {
+    return streamLoss;
+  }
+
+  /** Bytes of logcat output received from the device so far. */
+  long getBytesTransferred() {
+    return previousBytes.get() + stream.getBytesRead();
+  }
+
+  /** Logcat messages parsed on the host so far. */
+  long getMessagesParsed() {
+    return messagesParsed.get();
+  }
+
+  /** Must hold the lock so that no output is handled before the new stream is recorded. */
+  private void startStream(int pid, String since) {
+    String command = options.command(apiLevel, pid, since);
+    logDebug(debug, "[%s] Starting %s", device.getSerialNumber(), command);
+    current = new StreamListener();
+    current.stream = service.open(device.getSerialNumber(), command, current);
+    stream = current.stream;
+  }
+
+  /** Spool the messages of {@code source} and return those which are new. */
+  private synchronized List<LogCatMessage> onMessages(StreamListener source,
+      List<LogCatMessage> messages) {
+    if (finished || source != current || spoolFailure != null) {
+      // Output after capture stopped or from a stream which has been replaced.
+      return Collections.emptyList();
+    }
+    messagesParsed.addAndGet(messages.size());
+    reconnects = 0;
+    List<LogCatMessage> fresh = new ArrayList<>(messages.size());
+    try {
       for (LogCatMessage message : messages) {
-        if (current == null) {
-          Matcher match = MESSAGE_START.matcher(message.getMessage());
-          if (match.matches() && TEST_RUNNER.equals(message.getTag())) {
-            current = new DeviceTest(match.group(2), match.group(1));
-            pid = message.getPid();
-
-            List<LogCatMessage> deviceLogMessages = new ArrayList<>();
-            deviceLogMessages.add(message);
-            logs.put(current, deviceLogMessages);
-          }
-        } else {
-          // Only log messages from the same PID.
-          if (pid == message.getPid()) {
-            logs.get(current).add(message);
-          }
-
-          Matcher match = MESSAGE_END.matcher(message.getMessage());
-          if (match.matches() && TEST_RUNNER.equals(message.getTag())) {
-            current = null;
-            pid = -1;
-          }
+        if (isDuplicate(message)) {
+          continue;
         }
+        demultiplexer.accept(message);
+        fresh.add(message);
+      }
+    } catch (IOException e) {
+      logError("Unable to write logcat spool: %s", e.getMessage());
+      spoolFailure = e;
+      return fresh;
+    }
+
+    int pid = demultiplexer.getPid();
+    if (narrowToPid && narrowedPid == -1 && pid != -1 && !stopping) {
+      // The instrumentation process is known. Restart the stream with the device filtering out
+      // every other process, resuming from the newest message already seen.
+      narrowedPid = pid;
+      restartStream(pid);
+    }
+    return fresh;
+  }
+
+  /**
+   * Reopen a stream which ended before capture stopped, such as by a socket error or adbd
+   * restarting, resuming from the newest message seen. A device which keeps closing it is given up
+   * on, and the loss recorded.
+   */
+  private synchronized void onClosed(StreamListener source, IOException error) {
+    if (stopping || source != current) {
+      return;
+    }
+    String reason = error != null ? error.getMessage() : "the device closed the stream";
+    if (reconnects == MAX_RECONNECTS) {
+      streamLoss = String.format("Logcat stopped after %d attempts to reconnect: %s", reconnects,
+          reason);
+      logError("[%s] %s", device.getSerialNumber(), streamLoss);
+      return;
+    }
+    reconnects++;
+    logInfo("[%s] Logcat stopped, reconnecting: %s", device.getSerialNumber(), reason);
+    restartStream(narrowedPid);
+  }
+
+  /** Must hold the lock. Replace the current stream, resuming from the newest message seen. */
+  private void restartStream(int pid) {
+    resumeTimestamp = lastTimestamp;
+    resumeDuplicates.clear();
+    resumeDuplicates.addAll(lastTimestampMessages);
+    stream.cancel();
+    previousBytes.addAndGet(stream.getBytesRead());
+    startStream(pid, resumeTimestamp);
+  }
+
+  /** Track the newest timestamp and drop messages replayed by a resumed stream. */
+  private boolean isDuplicate(LogCatMessage message) {
+    String timestamp = message.getTimestamp().toString();
+    String key = message.getTid() + "/" + message.getTag() + ": " + message.getMessage();
+    if (resumeTimestamp != null) {
+      int compare = timestamp.compareTo(resumeTimestamp);
+      if (compare < 0 || compare == 0 && resumeDuplicates.remove(key)) {
+        return true;
       }
+      resumeTimestamp = null;
+      resumeDuplicates.clear();
+    }
+    if (!timestamp.equals(lastTimestamp)) {
+      lastTimestamp = timestamp;
+      lastTimestampMessages.clear();
+    }
+    lastTimestampMessages.add(key);
+    return false;
+  }
+
+  /** Parses one stream's lines. Each stream needs its own parser since lines span messages. */
+  private final class StreamListener implements LogcatService.Listener {
+    private final LogCatMessageParser parser = new LogCatMessageParser();
+    private LogcatService.Stream stream;
+
+    @Override public void onLines(List<String> lines) {
+      List<LogCatMessage> fresh =
+          onMessages(this, parser.processLogLines(lines.toArray(new String[lines.size()]), device));
+      if (!fresh.isEmpty()) {
+        messageListener.accept(fresh);
+      }
+    }
+
+    @Override public void onClosed(IOException error) {
+      SpoonDeviceLogger.this.onClosed(this, error);
     }
-    return logs;
   }
 }
@@ -1,18 +1,20 @@
 package com.squareup.spoon;
 
 import com.android.ddmlib.AndroidDebugBridge;
-import com.android.ddmlib.CollectingOutputReceiver;
 import com.android.ddmlib.DdmPreferences;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.InstallException;
-import com.android.ddmlib.logcat.LogCatMessage;
+import com.android.ddmlib.NullOutputReceiver;
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.TestIdentifier;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimap;
+import com.squareup.spoon.misc.StackTrace;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.TrueFileFilter;
@@ -22,12 +24,20 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import static com.android.ddmlib.FileListingService.FileEntry;
@@ -37,11 +47,14 @@ import static com.squareup.spoon.SpoonLogger.logDebug;
 import static com.squareup.spoon.SpoonLogger.logError;
 import static com.squareup.spoon.SpoonLogger.logInfo;
 import static com.squareup.spoon.SpoonUtils.createAnimatedGif;
+import static com.squareup.spoon.SpoonUtils.forceStop;
 import static com.squareup.spoon.SpoonUtils.obtainDirectoryFileEntry;
 import static com.squareup.spoon.SpoonUtils.obtainRealDevice;
 import static com.squareup.spoon.internal.Constants.SPOON_FILES;
 import static com.squareup.spoon.internal.Constants.SPOON_SCREENSHOTS;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.emptyMap;
+import static java.util.stream.Collectors.joining;
 
 /** Represents a single device and the test configuration to be executed. */
 public final class SpoonDeviceRunner {
@@ -54,6 +67,16 @@ public final class SpoonDeviceRunner {
   static final String FILE_DIR = "file";
   static final String COVERAGE_FILE = "coverage.ec";
   static final String COVERAGE_DIR = "coverage";
+  /** Directory on external storage where the coverage of single tests waits to be pulled. */
+  static final String DEVICE_COVERAGE_DIR = "spoon-coverage";
+  static final String LOG_DIR = "logs";
+  /**
+   * Longest class filter passed on the command line. Older devices cut ADB shell commands off at
+   * 4 KB, which the rest of the instrumentation command has to fit into too.
+   */
+  static final int MAX_CLASS_FILTER_LENGTH = 2048;
+  /** The tests to run or skip, one per line, when there are too many for the class filter. */
+  static final String TEST_FILE = "spoon-tests.txt";
 
   private final File testApk;
   private final List<File> otherApks;
@@ -63,17 +86,37 @@ public final class SpoonDeviceRunner {
   private final boolean debug;
   private final boolean noAnimations;
   private final Duration adbTimeout;
+  private final Duration testTimeout;
+  private final ImmutableMap<IRemoteAndroidTestRunner.TestSize, Duration> sizeTimeouts;
   private final ImmutableMap<String, String> instrumentationArgs;
   private final String className;
   private final String methodName;
+  private final ImmutableSet<DeviceTest> tests;
+  private final ImmutableSet<DeviceTest> skippedTests;
   private final IRemoteAndroidTestRunner.TestSize testSize;
   private final File work;
   private final File junitReport;
   private final File imageDir;
   private final File coverageDir;
   private final File fileDir;
+  private final File logcatSpool;
+  private final LogcatOptions logcatOptions;
+  private final LogcatService logcatService;
+  private final DeviceHealthMonitor healthMonitor;
+  private final ExecutorService gifExecutor;
+  private final FailFast failFast;
+  private final Map<DeviceTest, DeviceTestResult> checkpointedTests;
+  private final CheckpointJournal journal;
+  private final String safeSerial;
+  private final CoverageAccumulator coverage;
+  private final CoverageAccumulator deviceCoverage;
   private final SpoonInstrumentationInfo instrumentationInfo;
   private final boolean codeCoverage;
+  private final int coverageBatchSize;
+  /** Coverage files waiting on the device to be pulled, by name, with their tests. */
+  private final Map<String, String> pendingCoverage = new LinkedHashMap<>();
+  private int coverageDumps;
+  private boolean testFilePushed;
   private final boolean singleInstrumentationCall;
   private final List<ITestRunListener> testRunListeners;
   private final boolean grantAll;
@@ -88,18 +131,40 @@ public final class SpoonDeviceRunner {
    * @param serial Device to run the test on.
    * @param debug Whether or not debug logging is enabled.
    * @param adbTimeout time in ms for longest test execution
+   * @param testTimeout Wall-clock budget of each test, or {@code null} for no limit.
+   * @param sizeTimeouts Wall-clock budgets of tests by size, overriding {@code testTimeout}.
    * @param instrumentationInfo Test apk manifest information.
    * @param className Test class name to run or {@code null} to run all tests.
    * @param methodName Test method name to run or {@code null} to run all tests.  Must also pass
    * {@code className}.
+   * @param tests Tests to run in place of {@code className} and {@code methodName}, or
+   * {@code null} to run all tests.
+   * @param skippedTests Tests not to run, or {@code null} to skip none. Ignored with {@code tests}.
    * @param testRunListeners Additional TestRunListener or empty list.
+   * @param coverageBatchSize Number of tests whose coverage is left on the device to be pulled
+   * together, or 0 to pull it after each test.
+   * @param logcatOptions How device logs are filtered and buffered.
+   * @param logcatService Shared reader of device logs.
+   * @param healthMonitor Judges whether the device is still fit to run tests.
+   * @param gifExecutor Bounded pool which animated GIFs are encoded on.
+   * @param failFast Cancels the work of all devices once a test fails, if enabled.
+   * @param checkpointedTests Tests which ended on the device in the run being resumed.
+   * @param journal Records the tests and the device as they finish.
+   * @param coverage Coverage of the whole run, which that of the device is folded into, or
+   * {@code null} without code coverage.
    */
   SpoonDeviceRunner(File testApk, List<File> otherApks, File output, String serial, int shardIndex,
       int numShards, boolean debug, boolean noAnimations, Duration adbTimeout,
+      Duration testTimeout, Map<IRemoteAndroidTestRunner.TestSize, Duration> sizeTimeouts,
       SpoonInstrumentationInfo instrumentationInfo, Map<String, String> instrumentationArgs,
-      String className, String methodName, IRemoteAndroidTestRunner.TestSize testSize,
-      List<ITestRunListener> testRunListeners, boolean codeCoverage, boolean grantAll,
-      boolean singleInstrumentationCall, boolean clearAppDataBeforeEachTest) {
+      String className, String methodName, Set<DeviceTest> tests, Set<DeviceTest> skippedTests,
+      IRemoteAndroidTestRunner.TestSize testSize, List<ITestRunListener> testRunListeners,
+      boolean codeCoverage, int coverageBatchSize, boolean grantAll,
+      boolean singleInstrumentationCall, boolean clearAppDataBeforeEachTest,
+      LogcatOptions logcatOptions, LogcatService logcatService,
+      DeviceHealthMonitor healthMonitor, ExecutorService gifExecutor, FailFast failFast,
+      Map<DeviceTest, DeviceTestResult> checkpointedTests, CheckpointJournal journal,
+      CoverageAccumulator coverage) {
     this.testApk = testApk;
     this.otherApks = otherApks;
     this.serial = serial;
@@ -108,13 +173,18 @@ public final class SpoonDeviceRunner {
     this.debug = debug;
     this.noAnimations = noAnimations;
     this.adbTimeout = adbTimeout;
+    this.testTimeout = testTimeout;
+    this.sizeTimeouts = ImmutableMap.copyOf(sizeTimeouts);
     this.instrumentationArgs = ImmutableMap.copyOf(instrumentationArgs != null
         ? instrumentationArgs : Collections.emptyMap());
     this.className = className;
     this.methodName = methodName;
+    this.tests = tests != null ? ImmutableSet.copyOf(tests) : null;
+    this.skippedTests = skippedTests != null ? ImmutableSet.copyOf(skippedTests) : null;
     this.testSize = testSize;
     this.instrumentationInfo = instrumentationInfo;
     this.codeCoverage = codeCoverage;
+    this.coverageBatchSize = coverageBatchSize;
     this.singleInstrumentationCall = singleInstrumentationCall;
     serial = SpoonUtils.sanitizeSerial(serial);
     this.work = FileUtils.getFile(output, TEMP_DIR, serial);
@@ -122,6 +192,17 @@ public final class SpoonDeviceRunner {
     this.imageDir = FileUtils.getFile(output, IMAGE_DIR, serial);
     this.fileDir = FileUtils.getFile(output, FILE_DIR, serial);
     this.coverageDir = FileUtils.getFile(output, COVERAGE_DIR, serial);
+    this.logcatSpool = FileUtils.getFile(output, LOG_DIR, serial, LogcatSpool.FILE_NAME);
+    this.logcatOptions = logcatOptions;
+    this.logcatService = logcatService;
+    this.healthMonitor = healthMonitor;
+    this.gifExecutor = gifExecutor;
+    this.failFast = failFast;
+    this.checkpointedTests = ImmutableMap.copyOf(checkpointedTests);
+    this.journal = journal;
+    this.safeSerial = serial;
+    this.coverage = coverage;
+    this.deviceCoverage = coverage != null ? coverage.newAccumulator() : null;
     this.testRunListeners = testRunListeners;
     this.grantAll = grantAll;
     this.clearAppDataBeforeEachTest = clearAppDataBeforeEachTest;
@@ -138,6 +219,11 @@ public final class SpoonDeviceRunner {
 
   /** Execute instrumentation on the target device and return a result summary. */
   public DeviceResult run(AndroidDebugBridge adb) {
+    return run(new DeviceSession(obtainRealDevice(adb, serial)));
+  }
+
+  /** Execute instrumentation on the device of {@code session} and return a result summary. */
+  DeviceResult run(DeviceSession session) {
     String testPackage = instrumentationInfo.getInstrumentationPackage();
     String testRunner = instrumentationInfo.getTestRunnerClass();
 
@@ -147,12 +233,15 @@ public final class SpoonDeviceRunner {
     }
 
     DeviceResult.Builder result = new DeviceResult.Builder();
+    if (failFast.isTripped()) {
+      return result.addException(failFast.getReason()).build();
+    }
 
-    IDevice device = obtainRealDevice(adb, serial);
+    IDevice device = session.getDevice();
     logDebug(debug, "Got realDevice for [%s]", serial);
 
     // Get relevant device information.
-    final DeviceDetails deviceDetails = DeviceDetails.createForDevice(device);
+    final DeviceDetails deviceDetails = session.getDetails();
     result.setDeviceDetails(deviceDetails);
     logDebug(debug, "[%s] setDeviceDetails %s", serial, deviceDetails);
 
@@ -166,6 +255,7 @@ public final class SpoonDeviceRunner {
       } catch (InstallException e) {
         logInfo("InstallException while install other apk on device [%s]", serial);
         e.printStackTrace(System.out);
+        abandonShard("Unable to install other APK: " + e.getMessage());
         return result.markInstallAsFailed("Unable to install other APK.").addException(e).build();
       }
     }
@@ -175,90 +265,88 @@ public final class SpoonDeviceRunner {
     } catch (InstallException e) {
       logInfo("InstallException while install test apk on device [%s]", serial);
       e.printStackTrace(System.out);
+      abandonShard("Unable to install instrumentation APK: " + e.getMessage());
       return result.markInstallAsFailed("Unable to install instrumentation APK.")
           .addException(e)
           .build();
     }
 
     try {
-      cleanScreenshotsDirectoriesOnDevice(device);
-      cleanFilesDirectoriesOnDevice(device);
-    } catch (Exception e) {
-      logInfo("Exception while cleaning storage directories on device [%s]", serial);
-      e.printStackTrace(System.out);
-      return result.markInstallAsFailed(
-          "Unable to delete storage directories").addException(e).build();
-    }
-
-    try {
-      grantReadWriteExternalStorage(deviceDetails, device);
+      prepareDevice(deviceDetails, device, !checkpointedTests.isEmpty(), result);
     } catch (Exception e) {
-      logInfo("Exception while granting external storage access to application apk"
-              + "on device [%s]", serial);
+      logInfo("Exception while preparing storage directories on device [%s]", serial);
       e.printStackTrace(System.out);
+      abandonShard("Unable to prepare storage directories: " + e);
       return result.markInstallAsFailed(
-          "Unable to grant external storage access to application APK.").addException(e).build();
+          "Unable to prepare storage directories on device.").addException(e).build();
     }
 
     // Create the output directory, if it does not already exist.
     work.mkdirs();
+    deleteStaleOutput(result);
 
     // Determine the test set that is applicable for this device.
     LogRecordingTestRunListener recorder;
     List<TestIdentifier> activeTests;
     List<TestIdentifier> ignoredTests;
     try {
-      recorder = queryTestSet(testPackage, testRunner, device);
+      recorder = queryTestSet(testPackage, testRunner, session);
       activeTests = recorder.activeTests();
       ignoredTests = recorder.ignoredTests();
       logDebug(debug, "Active tests: %s", activeTests);
       logDebug(debug, "Ignored tests: %s", ignoredTests);
     } catch (Exception e) {
+      abandonShard("Unable to list tests: " + e);
       return result
           .addException(e)
           .build();
     }
 
-    // Initiate device logging.
-    SpoonDeviceLogger deviceLogger = new SpoonDeviceLogger(device);
+    // Initiate device logging, which crash detection watches.
+    Set<String> packages = instrumentedPackages();
+    CrashWatcher crashWatcher = new CrashWatcher(device, packages, debug);
+    SpoonDeviceLogger deviceLogger = new SpoonDeviceLogger(device, deviceDetails.getApiLevel(),
+        singleInstrumentationCall, logcatSpool,
+        (test, slice) -> journal.logSpooled(safeSerial, test, slice), crashWatcher::onMessages,
+        logcatService, logcatOptions, debug);
+    TestWatchdog watchdog = new TestWatchdog(device, packages, testTimeout,
+        testBudgets(activeTests, testPackage, testRunner, session, result));
 
-    List<ITestRunListener> listeners = new ArrayList<>();
-    listeners.add(new SpoonTestRunListener(result, debug));
-    listeners.add(new XmlTestRunListener(junitReport));
-    if (testRunListeners != null) {
-      listeners.addAll(testRunListeners);
-    }
+    XmlTestRunListener junitListener = new XmlTestRunListener(junitReport);
+    List<ITestRunListener> listeners = listeners(crashWatcher, watchdog, junitListener, result);
 
     result.startTests();
-    if (singleInstrumentationCall) {
+    List<TestIdentifier> pendingTests =
+        restoreCheckpointedTests(activeTests, result, junitListener);
+    if (singleInstrumentationCall && pendingTests.size() == activeTests.size()) {
       try {
         logDebug(debug, "Running all tests in a single instrumentation call on [%s]", serial);
-        RemoteAndroidTestRunner runner = createConfiguredRunner(testPackage, testRunner, device);
-        runner.run(listeners);
+        RemoteAndroidTestRunner runner = createConfiguredRunner(testPackage, testRunner, session);
+        boolean aborted =
+            runInstrumentation(session, runner, activeTests, listeners, crashWatcher, watchdog,
+                result);
+        if (failFast.isTripped()) {
+          markNotRun(remainingTests(activeTests, result), listeners);
+        } else if (aborted) {
+          // The call was aborted. Carry on with the tests which did not get to run, each in a new
+          // process which the log stream must no longer be narrowed away from.
+          deviceLogger.releasePid();
+          runIndividually(remainingTests(activeTests, result), testPackage, testRunner, session,
+              listeners, crashWatcher, watchdog, result);
+        }
       } catch (Exception e) {
-        result.addException(e);
+        recordException(result, e);
       }
+      runOrphans(testPackage, testRunner, session, listeners, crashWatcher, watchdog,
+          deviceLogger, result);
     } else {
       MultiRunITestListener multiRunListener = new MultiRunITestListener(listeners);
       multiRunListener.multiRunStarted(recorder.runName(), recorder.testCount());
 
-      for (TestIdentifier test : activeTests) {
-        try {
-          logDebug(debug, "Running %s on [%s]", test, serial);
-          RemoteAndroidTestRunner runner = createConfiguredRunner(testPackage, testRunner, device);
-          runner.removeInstrumentationArg("package");
-          runner.removeInstrumentationArg("class");
-          runner.setMethodName(test.getClassName(), test.getTestName());
-          runner.run(listeners);
-
-          if (codeCoverage) { // pull coverage file for each test execution
-            pullCoverageFile(device, test.toString());
-          }
-
-        } catch (Exception e) {
-          result.addException(e);
-        }
-      }
+      runIndividually(pendingTests, testPackage, testRunner, session, listeners, crashWatcher,
+          watchdog, result);
+      runOrphans(testPackage, testRunner, session, listeners, crashWatcher, watchdog,
+          deviceLogger, result);
       for (TestIdentifier ignoredTest : ignoredTests) {
         multiRunListener.testStarted(ignoredTest);
         multiRunListener.testIgnored(ignoredTest);
@@ -268,18 +356,55 @@ public final class SpoonDeviceRunner {
       multiRunListener.multiRunEnded();
     }
     result.endTests();
+    watchdog.stop();
 
     mapLogsToTests(deviceLogger, result);
 
+    if (failFast.isTripped()) {
+      // Only the outcome matters now, so leave the artifacts on the device.
+      logDebug(debug, "Skipping output of [%s]: %s", serial, failFast.getReason());
+    } else {
+      pullOutput(session, result);
+    }
+    result.addSessionCacheHits(session.takeCacheHits());
+    logDebug(debug, "Done running for [%s]", serial);
+    DeviceResult deviceResult = result.build();
+    if (!failFast.isTripped() && deviceResult.getExceptions().isEmpty()) {
+      journal.deviceCompleted(safeSerial, deviceResult);
+    }
+    return deviceResult;
+  }
+
+  /** Everything which follows the tests run on the device, in the order they are told. */
+  private List<ITestRunListener> listeners(CrashWatcher crashWatcher, TestWatchdog watchdog,
+      XmlTestRunListener junitListener, DeviceResult.Builder result) {
+    List<ITestRunListener> listeners = new ArrayList<>();
+    listeners.add(crashWatcher);
+    listeners.add(watchdog);
+    listeners.add(healthMonitor.listener(serial));
+    listeners.add(new SpoonTestRunListener(result, debug, journal, safeSerial));
+    listeners.add(junitListener);
+    if (testRunListeners != null) {
+      listeners.addAll(testRunListeners);
+    }
+    listeners.add(failFast.listener(serial));
+    return listeners;
+  }
+
+  /** Pull screenshots, files and coverage from the device and attach them to their tests. */
+  private void pullOutput(DeviceSession session, DeviceResult.Builder result) {
     try {
       logDebug(debug, "About to grab screenshots and prepare output for [%s]", serial);
-      pullDeviceFiles(device);
+      pullDeviceFiles(session);
       if (codeCoverage) {
         if (singleInstrumentationCall) {
-          pullCoverageFile(device);
-        } else { // merge all coverage files generated from non single instrumentation calls
-          SpoonCoverageMerger.mergeAllCoverageFiles(coverageDir);
+          pullCoverageFile(session);
+        } else {
+          pullCoverageBatch(session);
         }
+        // Per-test coverage files were folded in as they were pulled.
+        deviceCoverage.save(new File(coverageDir, COVERAGE_FILE));
+        coverage.add(safeSerial, deviceCoverage);
       }
 
       cleanScreenshotsDirectory(result);
@@ -288,31 +413,320 @@ public final class SpoonDeviceRunner {
     } catch (Exception e) {
       result.addException(e);
     }
-    logDebug(debug, "Done running for [%s]", serial);
-    return result.build();
   }
 
-  private void grantReadWriteExternalStorage(DeviceDetails deviceDetails, IDevice device)
-      throws Exception {
-    // If this is Android Marshmallow or above grant WRITE_EXTERNAL_STORAGE
+  /**
+   * Delete output left on the device by earlier runs, unless {@code resuming} one, and, on
+   * Marshmallow and above, grant the application external storage access. All of it happens in a
+   * single shell invocation.
+   * <p>
+   * Coverage left on the device is always deleted, since which tests it came from is lost.
+   */
+  private void prepareDevice(DeviceDetails deviceDetails, IDevice device, boolean resuming,
+      DeviceResult.Builder result) throws Exception {
+    DeviceCommandBatch batch = new DeviceCommandBatch();
+    if (!resuming) {
+      for (String dir : DEVICE_DIRS) {
+        batch.add("rm -rf $EXTERNAL_STORAGE/" + dir);
+        batch.add("rm -rf " + getInternalPath(dir));
+      }
+    }
+    if (batchesCoverage()) {
+      batch.add("rm -rf $EXTERNAL_STORAGE/" + DEVICE_COVERAGE_DIR);
+      batch.add("mkdir -p $EXTERNAL_STORAGE/" + DEVICE_COVERAGE_DIR);
+    }
     if (deviceDetails.getApiLevel() >= DeviceDetails.MARSHMALLOW_API_LEVEL) {
       String appPackage = instrumentationInfo.getApplicationPackage();
-      CollectingOutputReceiver grantOutputReceiver = new CollectingOutputReceiver();
-      device.executeShellCommand(
-              "pm grant " + appPackage + " android.permission.READ_EXTERNAL_STORAGE",
-              grantOutputReceiver);
-      device.executeShellCommand(
-              "pm grant " + appPackage + " android.permission.WRITE_EXTERNAL_STORAGE",
-              grantOutputReceiver);
+      batch.add("pm grant " + appPackage + " android.permission.READ_EXTERNAL_STORAGE");
+      batch.add("pm grant " + appPackage + " android.permission.WRITE_EXTERNAL_STORAGE");
+    }
+    for (DeviceCommandBatch.Result commandResult : batch.execute(device)) {
+      if (!commandResult.isSuccessful()) {
+        logDebug(debug, "[%s] '%s' exited with %d: %s", serial, commandResult.command,
+            commandResult.exitStatus, commandResult.output);
+      }
+    }
+    result.addShellRoundTripsSaved(batch.getSavedRoundTrips());
+  }
+
+  /** Run each test in its own instrumentation call. */
+  private void runIndividually(List<TestIdentifier> tests, String testPackage, String testRunner,
+      DeviceSession session, List<ITestRunListener> listeners, CrashWatcher crashWatcher,
+      TestWatchdog watchdog, DeviceResult.Builder result) {
+    for (int i = 0; i < tests.size(); i++) {
+      if (failFast.isTripped()) {
+        markNotRun(tests.subList(i, tests.size()), listeners);
+        return;
+      }
+      if (healthMonitor.getQuarantineReason(serial) != null) {
+        List<DeviceHealthMonitor.Orphan> orphans = new ArrayList<>();
+        for (TestIdentifier test : tests.subList(i, tests.size())) {
+          orphans.add(DeviceHealthMonitor.Orphan.test(test));
+        }
+        if (healthMonitor.handOff(orphans)) {
+          logInfo("[%s] Handed off %d tests to healthy devices.", serial, orphans.size());
+        } else {
+          // Every other device runs these tests too, but they must not go missing from this one.
+          markNotRun(tests.subList(i, tests.size()), listeners);
+          result.addException(String.format("Quarantined with %d tests left to run: %s",
+              orphans.size(), healthMonitor.getQuarantineReason(serial)));
+        }
+        return;
+      }
+      TestIdentifier test = tests.get(i);
+      try {
+        logDebug(debug, "Running %s on [%s]", test, serial);
+        RemoteAndroidTestRunner runner = createConfiguredRunner(testPackage, testRunner, session);
+        runner.removeInstrumentationArg("package");
+        runner.removeInstrumentationArg("class");
+        runner.removeInstrumentationArg("testFile");
+        runner.removeInstrumentationArg("notClass");
+        runner.removeInstrumentationArg("notTestFile");
+        // The test may come from another device's shard.
+        runner.removeInstrumentationArg("numShards");
+        runner.removeInstrumentationArg("shardIndex");
+        runner.setMethodName(test.getClassName(), test.getTestName());
+        if (batchesCoverage()) {
+          addCoverageFile(session, runner, test);
+        }
+        runInstrumentation(session, runner, Collections.singletonList(test), listeners,
+            crashWatcher, watchdog, result);
+        pullCoverage(session, test);
+      } catch (Exception e) {
+        recordException(result, e);
+      }
+    }
+  }
+
+  /** Run work handed off by quarantined devices for as long as this device stays healthy. */
+  private void runOrphans(String testPackage, String testRunner, DeviceSession session,
+      List<ITestRunListener> listeners, CrashWatcher crashWatcher, TestWatchdog watchdog,
+      SpoonDeviceLogger deviceLogger, DeviceResult.Builder result) {
+    DeviceHealthMonitor.Orphan orphan;
+    try {
+      while ((orphan = healthMonitor.takeOrphan(serial)) != null) {
+        // Orphans each run in a new process, which the log stream must not be narrowed away from.
+        deviceLogger.releasePid();
+        List<TestIdentifier> tests;
+        if (orphan.isShard()) {
+          logInfo("[%s] Taking over shard %d.", serial, orphan.shardIndex);
+          tests = listShard(testPackage, testRunner, session, orphan.shardIndex, result);
+        } else {
+          tests = Collections.singletonList(orphan.test);
+        }
+        runIndividually(tests, testPackage, testRunner, session, listeners, crashWatcher,
+            watchdog, result);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
   }
 
+  /** The active tests of a shard other than this device's own. */
+  private List<TestIdentifier> listShard(String testPackage, String testRunner,
+      DeviceSession session, int shard, DeviceResult.Builder result) {
+    try {
+      LogRecordingTestRunListener recorder = new LogRecordingTestRunListener();
+      RemoteAndroidTestRunner runner = createConfiguredRunner(testPackage, testRunner, session);
+      runner.addInstrumentationArg("shardIndex", Integer.toString(shard));
+      runner.addBooleanArg("log", true);
+      runner.run(recorder);
+      return recorder.activeTests();
+    } catch (Exception e) {
+      recordException(result, e);
+      return Collections.emptyList();
+    }
+  }
+
+  /** Quarantine the device before it ran any tests, handing off its whole shard. */
+  private void abandonShard(String reason) {
+    healthMonitor.quarantine(serial, reason);
+    if (numShards != 0) {
+      healthMonitor.handOff(
+          Collections.singletonList(DeviceHealthMonitor.Orphan.shard(shardIndex)));
+    }
+  }
+
+  private void recordException(DeviceResult.Builder result, Exception e) {
+    result.addException(e);
+    healthMonitor.recordFailure(serial, e.toString());
+  }
+
+  /**
+   * Run instrumentation while watching for the app or test process crashing and for tests which
+   * overrun their budget.
+   *
+   * @param tests The tests {@code runner} runs, which are marked not run if the whole run was
+   * cancelled before it could start.
+   * @return Whether the run was aborted.
+   */
+  boolean runInstrumentation(DeviceSession session, RemoteAndroidTestRunner runner,
+      List<TestIdentifier> tests, List<ITestRunListener> listeners, CrashWatcher crashWatcher,
+      TestWatchdog watchdog, DeviceResult.Builder result) throws Exception {
+    if (!failFast.watch(serial, () -> {
+      forceStop(session.getDevice(), instrumentedPackages());
+      runner.cancel();
+    })) {
+      // Cancelled since the caller last checked, which leaves no one else to account for them.
+      markNotRun(tests, listeners);
+      return false;
+    }
+    crashWatcher.watch(runner);
+    watchdog.watch(runner);
+    CrashWatcher.Crash crash;
+    TestWatchdog.Timeout timeout;
+    try {
+      runner.run(listeners);
+    } finally {
+      failFast.unwatch(serial);
+      crash = crashWatcher.stopWatching();
+      timeout = watchdog.stopWatching();
+      if (crash != null) {
+        recordAbort(crash.test, crash.report, listeners, result);
+      } else if (timeout != null) {
+        recordAbort(timeout.test, timeout.getMessage(), listeners, result);
+      }
+      TestIdentifier interrupted = failFast.getCurrentTest(serial);
+      if (interrupted != null && failFast.isTripped()) {
+        markNotRun(Collections.singletonList(interrupted), listeners);
+      }
+    }
+    return crash != null || timeout != null;
+  }
+
+  /** Report {@code tests} as not run because the run was cancelled or the device quarantined. */
+  private static void markNotRun(List<TestIdentifier> tests, List<ITestRunListener> listeners) {
+    for (TestIdentifier test : tests) {
+      for (ITestRunListener listener : listeners) {
+        listener.testStarted(test);
+        listener.testIgnored(test);
+        listener.testEnded(test, emptyMap());
+      }
+    }
+  }
+
+  private Set<String> instrumentedPackages() {
+    return ImmutableSet.of(instrumentationInfo.getApplicationPackage(),
+        instrumentationInfo.getInstrumentationPackage());
+  }
+
+  /** Fail the test which was in progress when its run was aborted. */
+  private void recordAbort(TestIdentifier test, String reason, List<ITestRunListener> listeners,
+      DeviceResult.Builder result) {
+    failFast.trip(serial, test != null ? test.toString() : "instrumentation");
+    if (test == null) {
+      result.addException("Instrumentation aborted outside of a test:\n" + reason);
+      return;
+    }
+    DeviceTestResult.Builder builder = result.getMethodResultBuilder(DeviceTest.from(test));
+    if (builder != null) {
+      builder.markTestAsAborted(reason);
+      journal.testCompleted(safeSerial, DeviceTest.from(test), builder.build());
+    } else {
+      // The aborted instrumentation never finished the test.
+      for (ITestRunListener listener : listeners) {
+        listener.testFailed(test, reason);
+        listener.testEnded(test, emptyMap());
+      }
+    }
+  }
+
+  /**
+   * Wall-clock budgets of tests whose size has its own budget. Unless the run is already limited
+   * to one size, the tests of each such size are listed with one extra log-only call.
+   */
+  private Map<TestIdentifier, Duration> testBudgets(List<TestIdentifier> activeTests,
+      String testPackage, String testRunner, DeviceSession session, DeviceResult.Builder result) {
+    Map<TestIdentifier, Duration> budgets = new HashMap<>();
+    if (testSize != null) {
+      Duration budget = sizeTimeouts.get(testSize);
+      if (budget != null) {
+        activeTests.forEach(test -> budgets.put(test, budget));
+      }
+      return budgets;
+    }
+    for (Map.Entry<IRemoteAndroidTestRunner.TestSize, Duration> entry : sizeTimeouts.entrySet()) {
+      try {
+        LogRecordingTestRunListener recorder = new LogRecordingTestRunListener();
+        RemoteAndroidTestRunner runner = createConfiguredRunner(testPackage, testRunner, session);
+        runner.setTestSize(entry.getKey());
+        runner.addBooleanArg("log", true);
+        runner.run(recorder);
+        recorder.activeTests().forEach(test -> budgets.put(test, entry.getValue()));
+      } catch (Exception e) {
+        result.addException(e);
+      }
+    }
+    return budgets;
+  }
+
+  /**
+   * Add the results of tests which ended before the run being resumed was interrupted, also
+   * reporting them to {@code junitListener}, and return those of {@code activeTests} which are
+   * left to run.
+   */
+  private List<TestIdentifier> restoreCheckpointedTests(List<TestIdentifier> activeTests,
+      DeviceResult.Builder result, ITestRunListener junitListener) {
+    checkpointedTests.forEach((test, testResult) -> {
+      result.addTestResultBuilder(test, DeviceTestResult.Builder.restore(testResult));
+      replay(new TestIdentifier(test.getClassName(), test.getMethodName()), testResult,
+          junitListener);
+    });
+    List<TestIdentifier> pendingTests = remainingTests(activeTests, result);
+    if (pendingTests.size() < activeTests.size()) {
+      logInfo("[%s] Resuming with %d of %d tests left to run.", serial, pendingTests.size(),
+          activeTests.size());
+    }
+    return pendingTests;
+  }
+
+  /** Report a test which ended in an earlier run to {@code listener} the way it ended. */
+  private static void replay(TestIdentifier test, DeviceTestResult result,
+      ITestRunListener listener) {
+    listener.testStarted(test);
+    if (result.getStatus() == DeviceTestResult.Status.FAIL) {
+      listener.testFailed(test, trace(result.getException()));
+    } else if (result.getStatus() == DeviceTestResult.Status.ASSUMPTION_FAILURE) {
+      listener.testAssumptionFailure(test, trace(result.getException()));
+    } else if (result.getStatus() == DeviceTestResult.Status.IGNORED) {
+      listener.testIgnored(test);
+    }
+    listener.testEnded(test, emptyMap());
+  }
+
+  /** Render {@code exception} back into the text of a stack trace. */
+  private static String trace(StackTrace exception) {
+    StringBuilder trace = new StringBuilder();
+    for (StackTrace cause = exception; cause != null; cause = cause.getCause()) {
+      if (cause != exception) {
+        trace.append("Caused by: ");
+      }
+      trace.append(cause).append('\n');
+      for (StackTrace.Element element : cause.getElements()) {
+        trace.append("\tat ").append(element).append('\n');
+      }
+    }
+    return trace.toString();
+  }
+
+  /** Tests which have no result yet. */
+  private static List<TestIdentifier> remainingTests(List<TestIdentifier> tests,
+      DeviceResult.Builder result) {
+    List<TestIdentifier> remaining = new ArrayList<>();
+    for (TestIdentifier test : tests) {
+      if (result.getMethodResultBuilder(DeviceTest.from(test)) == null) {
+        remaining.add(test);
+      }
+    }
+    return remaining;
+  }
+
   private LogRecordingTestRunListener queryTestSet(final String testPackage,
-      final String testRunner, final IDevice device) throws Exception {
+      final String testRunner, final DeviceSession session) throws Exception {
 
     LogRecordingTestRunListener recorder = new LogRecordingTestRunListener();
     logDebug(debug, "Querying a list of tests on [%s]", serial);
-    RemoteAndroidTestRunner runner = createConfiguredRunner(testPackage, testRunner, device);
+    RemoteAndroidTestRunner runner = createConfiguredRunner(testPackage, testRunner, session);
     runner.addBooleanArg("log", true);
     runner.run(recorder);
     return recorder;
@@ -322,11 +736,12 @@ public final class SpoonDeviceRunner {
    * Create a configured Test Runner.
    * This method adds sharding, class name, method name, test size and coverage, if available.
    */
-  private RemoteAndroidTestRunner createConfiguredRunner(String testPackage, String testRunner,
-      IDevice device) throws Exception {
+  RemoteAndroidTestRunner createConfiguredRunner(String testPackage, String testRunner,
+      DeviceSession session) throws Exception {
 
     RemoteAndroidTestRunner runner = new SpoonAndroidTestRunner(
-            instrumentationInfo.getApplicationPackage(), testPackage, testRunner, device,
+            instrumentationInfo.getApplicationPackage(), testPackage, testRunner,
+            session.getDevice(),
             clearAppDataBeforeEachTest, debug);
     runner.setMaxTimeToOutputResponse(adbTimeout.toMillis(), TimeUnit.MILLISECONDS);
 
@@ -344,12 +759,16 @@ public final class SpoonDeviceRunner {
       addShardingInstrumentationArgs(runner);
     }
 
-    if (!isNullOrEmpty(className)) {
+    if (tests != null) {
+      addTestFilter(runner, "class", "testFile", tests, session);
+    } else if (!isNullOrEmpty(className)) {
       if (isNullOrEmpty(methodName)) {
         runner.setClassName(className);
       } else {
         runner.setMethodName(className, methodName);
       }
+    } else if (skippedTests != null && !skippedTests.isEmpty()) {
+      addTestFilter(runner, "notClass", "notTestFile", skippedTests, session);
     }
 
     if (testSize != null) {
@@ -357,15 +776,50 @@ public final class SpoonDeviceRunner {
     }
 
     if (codeCoverage) {
-      addCodeCoverageInstrumentationArgs(runner, device);
+      addCodeCoverageInstrumentationArgs(runner, session);
     }
 
     return runner;
   }
 
-  private void addCodeCoverageInstrumentationArgs(RemoteAndroidTestRunner runner, IDevice device)
-          throws Exception {
-    String coveragePath = getExternalStoragePath(device, COVERAGE_FILE);
+  /**
+   * Filter the tests {@code runner} runs by {@code tests}, either on the command line as
+   * {@code classArg} or, when too long for it, from a file on the device named by {@code fileArg}.
+   */
+  private void addTestFilter(RemoteAndroidTestRunner runner, String classArg, String fileArg,
+      Set<DeviceTest> tests, DeviceSession session) throws Exception {
+    String classNames = tests.stream().map(DeviceTest::toString).collect(joining(","));
+    if (classNames.length() <= MAX_CLASS_FILTER_LENGTH) {
+      runner.addInstrumentationArg(classArg, classNames);
+    } else {
+      runner.addInstrumentationArg(fileArg, pushTestFile(tests, session));
+    }
+  }
+
+  /**
+   * Write {@code tests} to a file on the device, once per run, and return its path. The
+   * instrumentation reads it in place of a class filter too long for the command line.
+   */
+  private String pushTestFile(Set<DeviceTest> tests, DeviceSession session) throws Exception {
+    String remotePath = session.getExternalStoragePath(TEST_FILE);
+    if (!testFilePushed) {
+      File testFile = new File(work, TEST_FILE);
+      work.mkdirs();
+      // The device reads it, so lines end the same on every host.
+      Files.write(testFile.toPath(), tests.stream()
+          .map(test -> test + "\n")
+          .collect(joining())
+          .getBytes(UTF_8));
+      logDebug(debug, "Pushing %d tests to %s on [%s]", tests.size(), remotePath, serial);
+      session.getDevice().pushFile(testFile.getAbsolutePath(), remotePath);
+      testFilePushed = true;
+    }
+    return remotePath;
+  }
+
+  private void addCodeCoverageInstrumentationArgs(RemoteAndroidTestRunner runner,
+      DeviceSession session) throws Exception {
+    String coveragePath = session.getExternalStoragePath(COVERAGE_FILE);
     runner.addInstrumentationArg("coverage", "true");
     runner.addInstrumentationArg("coverageFile", coveragePath);
   }
@@ -375,6 +829,25 @@ public final class SpoonDeviceRunner {
     runner.addInstrumentationArg("shardIndex", Integer.toString(shardIndex));
   }
 
+  /**
+   * Delete the screenshots and files which tests run again left behind the last time, and fold in
+   * the coverage of the run being resumed or rerun before pulls replace it.
+   */
+  private void deleteStaleOutput(DeviceResult.Builder result) {
+    if (codeCoverage) {
+      loadEarlierCoverage(result);
+    }
+    if (tests == null) {
+      return;
+    }
+    for (DeviceTest test : tests) {
+      FileUtils.deleteQuietly(FileUtils.getFile(imageDir, test.getClassName(),
+          test.getMethodName()));
+      FileUtils.deleteQuietly(FileUtils.getFile(fileDir, test.getClassName(),
+          test.getMethodName()));
+    }
+  }
+
   private void cleanScreenshotsDirectory(DeviceResult.Builder result) throws IOException {
     File screenshotDir = new File(work, DEVICE_SCREENSHOT_DIR);
     if (screenshotDir.exists()) {
@@ -393,28 +866,108 @@ public final class SpoonDeviceRunner {
     }
   }
 
-  private void pullCoverageFile(IDevice device) {
-    doPullCoverageFile(device, COVERAGE_FILE);
+  private void pullCoverageFile(DeviceSession session) {
+    doPullCoverageFile(session, COVERAGE_FILE);
   }
 
-  private void pullCoverageFile(IDevice device, String testIdentifier) {
-    doPullCoverageFile(device, testIdentifier + "_" + COVERAGE_FILE);
+  private void pullCoverageFile(DeviceSession session, String testIdentifier) {
+    doPullCoverageFile(session, testIdentifier + "_" + COVERAGE_FILE);
+  }
+
+  /** Pull the coverage of {@code test}, which just ran, or of its batch once that is full. */
+  void pullCoverage(DeviceSession session, TestIdentifier test) throws Exception {
+    if (batchesCoverage()) {
+      if (pendingCoverage.size() >= coverageBatchSize) {
+        pullCoverageBatch(session);
+      }
+    } else if (codeCoverage) { // pull coverage file for each test execution
+      pullCoverageFile(session, test.toString());
+    }
+  }
+
+  /** Whether the coverage of single tests is left on the device and pulled in batches. */
+  private boolean batchesCoverage() {
+    return codeCoverage && !singleInstrumentationCall && coverageBatchSize > 0;
+  }
+
+  /** Have {@code test} write its coverage to a file of its own, to be pulled with the batch. */
+  void addCoverageFile(DeviceSession session, RemoteAndroidTestRunner runner,
+      TestIdentifier test) throws Exception {
+    String name = (coverageDumps++) + "." + COVERAGE_FILE;
+    runner.addInstrumentationArg("coverageFile",
+        session.getExternalStoragePath(DEVICE_COVERAGE_DIR + "/" + name));
+    pendingCoverage.put(name, test.toString());
+  }
+
+  /**
+   * Pull the coverage files of the tests run since the last batch in one sync, name them after
+   * their tests, and delete them from the device.
+   */
+  void pullCoverageBatch(DeviceSession session) throws Exception {
+    if (pendingCoverage.isEmpty()) {
+      return;
+    }
+    logInfo("Pulling Code Coverage of %d tests from [%s]", pendingCoverage.size(), serial);
+    FileEntry remoteDir = getDirectoryOnExternalStorage(session, DEVICE_COVERAGE_DIR);
+    File localDir = new File(work, DEVICE_COVERAGE_DIR);
+    work.mkdirs();
+    coverageDir.mkdirs();
+    try {
+      session.getDevice().getSyncService().pull(new FileEntry[] {remoteDir},
+          work.getAbsolutePath(), getNullProgressMonitor());
+      for (Map.Entry<String, String> pending : pendingCoverage.entrySet()) {
+        File pulled = new File(localDir, pending.getKey());
+        if (!pulled.exists()) {
+          continue; // The test did not get to write its coverage.
+        }
+        File coverageFile = new File(coverageDir, pending.getValue() + "_" + COVERAGE_FILE);
+        Files.move(pulled.toPath(), coverageFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        deviceCoverage.add(coverageFile);
+      }
+    } finally {
+      pendingCoverage.clear();
+      FileUtils.deleteQuietly(localDir);
+    }
+    // The only command of the teardown, so there is nothing to batch it with. Screenshots and
+    // files are left for the next run's prepareDevice batch to delete, and force-stopping joins
+    // every package into one command already.
+    session.getDevice().executeShellCommand("rm -f " + remoteDir.getFullPath() + "/*",
+        new NullOutputReceiver());
+  }
+
+  private void loadEarlierCoverage(DeviceResult.Builder result) {
+    File[] earlier = coverageDir.listFiles((dir, name) -> name.endsWith(COVERAGE_FILE));
+    if (earlier == null || earlier.length == 0) {
+      return;
+    }
+    for (File file : earlier) {
+      deviceCoverage.add(file);
+    }
+    try {
+      deviceCoverage.await();
+    } catch (IOException e) {
+      result.addException(e);
+    }
   }
 
   /**
-   * Pulls coverage file from device storage and saves it locally
+   * Pulls coverage file from device storage and saves it locally, folding it into the device's
+   * coverage in the background.
    */
-  private void doPullCoverageFile(IDevice device, String localFileName) {
+  private void doPullCoverageFile(DeviceSession session, String localFileName) {
     coverageDir.mkdirs();
     File coverageFile = new File(coverageDir, localFileName);
     logInfo("Pulling Code Coverage file %s", coverageFile.getAbsolutePath());
     String remotePath;
     try {
-      remotePath = getExternalStoragePath(device, COVERAGE_FILE);
+      remotePath = session.getExternalStoragePath(COVERAGE_FILE);
     } catch (Exception exception) {
       throw new RuntimeException("error while calculating coverage file path.", exception);
     }
-    adbPullFile(device, remotePath, coverageFile.getAbsolutePath());
+    adbPullFile(session.getDevice(), remotePath, coverageFile.getAbsolutePath());
+    if (coverageFile.exists()) {
+      deviceCoverage.add(coverageFile);
+    }
   }
 
   private void handleImages(DeviceResult.Builder result, File screenshotDir) throws IOException {
@@ -452,6 +1005,7 @@ public final class SpoonDeviceRunner {
       // Don't generate animations if the switch is present
       if (!noAnimations) {
         // Make animated GIFs for all the tests which have screenshots.
+        Map<DeviceTest, Future<File>> animatedGifs = new LinkedHashMap<>();
         for (DeviceTest deviceTest : testScreenshots.keySet()) {
           List<File> screenshots = new ArrayList<>(testScreenshots.get(deviceTest));
           if (screenshots.size() == 1) {
@@ -459,13 +1013,31 @@ public final class SpoonDeviceRunner {
           }
           File animatedGif = FileUtils.getFile(imageDir, deviceTest.getClassName(),
               deviceTest.getMethodName() + ".gif");
-          createAnimatedGif(screenshots, animatedGif);
-          result.getMethodResultBuilder(deviceTest).setAnimatedGif(animatedGif);
+          animatedGifs.put(deviceTest, gifExecutor.submit(
+              () -> createAnimatedGif(screenshots, animatedGif) ? animatedGif : null));
+        }
+        for (Map.Entry<DeviceTest, Future<File>> entry : animatedGifs.entrySet()) {
+          File animatedGif = awaitGif(entry.getValue());
+          if (animatedGif != null) {
+            result.getMethodResultBuilder(entry.getKey()).setAnimatedGif(animatedGif);
+          }
         }
       }
     }
   }
 
+  private static File awaitGif(Future<File> animatedGif) throws IOException {
+    try {
+      return animatedGif.get();
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new RuntimeException("Unable to create animated GIF.", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while creating animated GIFs.", e);
+    }
+  }
+
   private void handleFiles(DeviceResult.Builder result, File testFileDir) throws IOException {
     File[] classNameDirs = testFileDir.listFiles();
     if (classNameDirs != null) {
@@ -500,27 +1072,27 @@ public final class SpoonDeviceRunner {
   }
 
   /** Download all files from a single device to the local machine. */
-  private void pullDeviceFiles(IDevice device) throws Exception {
+  private void pullDeviceFiles(DeviceSession session) throws Exception {
     for (String dir : DEVICE_DIRS) {
-      pullDirectory(device, dir);
+      pullDirectory(session, dir);
     }
   }
 
-  private void pullDirectory(final IDevice device, final String name) throws Exception {
+  private void pullDirectory(final DeviceSession session, final String name) throws Exception {
     // Output path on private internal storage, for KitKat and below.
     FileEntry internalDir = getDirectoryOnInternalStorage(name);
     logDebug(debug, "Internal path is " + internalDir.getFullPath());
 
     // Output path on public external storage, for Lollipop and above.
-    FileEntry externalDir = getDirectoryOnExternalStorage(device, name);
+    FileEntry externalDir = getDirectoryOnExternalStorage(session, name);
     logDebug(debug, "External path is " + externalDir.getFullPath());
 
     // Sync test output files to the local filesystem.
     logDebug(debug, "Pulling files from external dir on [%s]", serial);
     String localDirName = work.getAbsolutePath();
-    adbPull(device, externalDir, localDirName);
+    adbPull(session.getDevice(), externalDir, localDirName);
     logDebug(debug, "Pulling files from internal dir on [%s]", serial);
-    adbPull(device, internalDir, localDirName);
+    adbPull(session.getDevice(), internalDir, localDirName);
     logDebug(debug, "Done pulling %s from on [%s]", name, serial);
   }
 
@@ -537,8 +1109,10 @@ public final class SpoonDeviceRunner {
     try {
       device.getSyncService()
           .pullFile(remoteFile, localDir, getNullProgressMonitor());
+      healthMonitor.recordSuccess(serial);
     } catch (Exception e) {
       logDebug(debug, e.getMessage(), e);
+      healthMonitor.recordFailure(serial, "Unable to pull " + remoteFile + ": " + e);
     }
   }
 
@@ -552,50 +1126,34 @@ public final class SpoonDeviceRunner {
     return "/data/data/" + appPackage + "/" + path;
   }
 
-  private FileEntry getDirectoryOnExternalStorage(IDevice device, final String dir)
+  private FileEntry getDirectoryOnExternalStorage(DeviceSession session, final String dir)
       throws Exception {
-    String externalPath = getExternalStoragePath(device, dir);
+    String externalPath = session.getExternalStoragePath(dir);
     return obtainDirectoryFileEntry(externalPath);
   }
 
-  private String getExternalStoragePath(IDevice device, final String path) throws Exception {
-    CollectingOutputReceiver pathNameOutputReceiver = new CollectingOutputReceiver();
-    device.executeShellCommand("echo $EXTERNAL_STORAGE", pathNameOutputReceiver);
-    return pathNameOutputReceiver.getOutput().trim() + "/" + path;
-  }
-
-  /** Grab all the parsed logs and map them to individual tests. */
+  /** Grab all the spooled logs and map them to individual tests. */
   private static void mapLogsToTests(SpoonDeviceLogger deviceLogger, DeviceResult.Builder result) {
-    Map<DeviceTest, List<LogCatMessage>> logs = deviceLogger.getParsedLogs();
-    for (Map.Entry<DeviceTest, List<LogCatMessage>> entry : logs.entrySet()) {
+    Map<DeviceTest, LogSlice> logs;
+    try {
+      logs = deviceLogger.getParsedLogs();
+      if (deviceLogger.getStreamLoss() != null) {
+        result.addException(deviceLogger.getStreamLoss());
+      }
+    } catch (IOException e) {
+      result.addException(e);
+      return;
+    } finally {
+      result.setLogcatStats(deviceLogger.getBytesTransferred(), deviceLogger.getMessagesParsed());
+    }
+    for (Map.Entry<DeviceTest, LogSlice> entry : logs.entrySet()) {
       DeviceTestResult.Builder builder = result.getMethodResultBuilder(entry.getKey());
       if (builder != null) {
-        builder.setLog(entry.getValue());
+        builder.setLogSlice(entry.getValue());
       }
     }
   }
 
-  private void cleanScreenshotsDirectoriesOnDevice(IDevice device) throws Exception {
-    FileEntry externalScreenShotDir = getDirectoryOnExternalStorage(device, DEVICE_SCREENSHOT_DIR);
-    cleanDirectoryOnDevice(externalScreenShotDir.getFullPath(), device);
-
-    FileEntry internalScreenShotDir = getDirectoryOnInternalStorage(DEVICE_SCREENSHOT_DIR);
-    cleanDirectoryOnDevice(internalScreenShotDir.getFullPath(), device);
-  }
-
-  private void cleanFilesDirectoriesOnDevice(IDevice device) throws Exception {
-    FileEntry externalFileDir = getDirectoryOnExternalStorage(device, DEVICE_FILE_DIR);
-    cleanDirectoryOnDevice(externalFileDir.getFullPath(), device);
-
-    FileEntry internalFileDir = getDirectoryOnInternalStorage(DEVICE_FILE_DIR);
-    cleanDirectoryOnDevice(internalFileDir.getFullPath(), device);
-  }
-
-  private void cleanDirectoryOnDevice(String fullPath, IDevice device) throws Exception {
-    CollectingOutputReceiver deleteDirOutputReceiver = new CollectingOutputReceiver();
-    device.executeShellCommand("rm -rf " + fullPath, deleteDirOutputReceiver);
-  }
-
   /**
    * @param deviceDetails details for current device
    * @return optional argument for grantAll permissions, or empty string if not required
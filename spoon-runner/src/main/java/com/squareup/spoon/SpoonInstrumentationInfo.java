@@ -1,9 +1,11 @@
 package com.squareup.spoon;
 
+import com.google.common.io.ByteStreams;
 import com.squareup.spoon.internal.thirdparty.axmlparser.AXMLParser;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import org.apache.commons.lang3.builder.ToStringBuilder;
@@ -49,9 +51,12 @@ final class SpoonInstrumentationInfo {
   static SpoonInstrumentationInfo parseFromFile(File apkTestFile) {
     try (ZipFile zip = new ZipFile(apkTestFile)) {
       ZipEntry entry = zip.getEntry("AndroidManifest.xml");
-      InputStream is = zip.getInputStream(entry);
+      ByteBuffer manifest;
+      try (InputStream is = zip.getInputStream(entry)) {
+        manifest = ByteBuffer.wrap(ByteStreams.toByteArray(is));
+      }
 
-      AXMLParser parser = new AXMLParser(is);
+      AXMLParser parser = new AXMLParser(manifest);
       int eventType = parser.getType();
 
       String appPackage = null;
@@ -1,29 +1,39 @@
 package com.squareup.spoon;
 
 import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.ITestRunListener;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.gson.JsonParseException;
 import com.squareup.spoon.html.HtmlRenderer;
 
 import org.apache.commons.io.FileUtils;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -32,6 +42,11 @@ import static com.squareup.spoon.DeviceTestResult.Status;
 import static com.squareup.spoon.SpoonInstrumentationInfo.parseFromFile;
 import static com.squareup.spoon.SpoonLogger.logDebug;
 import static com.squareup.spoon.SpoonLogger.logInfo;
+import static com.squareup.spoon.internal.Constants.SCREENSHOT_FORMAT_ARG;
+import static com.squareup.spoon.internal.Constants.SCREENSHOT_MAX_DIMENSION_ARG;
+import static com.squareup.spoon.internal.Constants.SCREENSHOT_QUALITY_ARG;
+import static com.squareup.spoon.internal.Constants.SCREENSHOT_SCALE_ARG;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.emptyMap;
 import static java.util.Collections.synchronizedSet;
 
@@ -40,7 +55,8 @@ public final class SpoonRunner {
   private static final String DEFAULT_TITLE = "Spoon Execution";
   public static final String DEFAULT_OUTPUT_DIRECTORY = "spoon-output";
   private static final Duration DEFAULT_ADB_TIMEOUT = Duration.ofMinutes(10);
-  private final ExecutorService threadExecutor;
+  private static final int DEFAULT_LOGCAT_BUFFER_SIZE = 1000;
+  private final boolean sequential;
 
   private final String title;
   private final File androidSdk;
@@ -50,6 +66,9 @@ public final class SpoonRunner {
   private final boolean debug;
   private final boolean noAnimations;
   private final Duration adbTimeout;
+  private final Duration testTimeout;
+  private final ImmutableMap<IRemoteAndroidTestRunner.TestSize, Duration> sizeTimeouts;
+  private final Duration deviceProbeTimeout;
   private final ImmutableMap<String, String> instrumentationArgs;
   private final String className;
   private final String methodName;
@@ -58,6 +77,7 @@ public final class SpoonRunner {
   private final boolean shard;
   private final IRemoteAndroidTestRunner.TestSize testSize;
   private boolean codeCoverage;
+  private final int coverageBatchSize;
   private final boolean allowNoDevices;
   private final List<ITestRunListener> testRunListeners;
   private final boolean terminateAdb;
@@ -65,14 +85,25 @@ public final class SpoonRunner {
   private final boolean grantAll;
   private final boolean singleInstrumentationCall;
   private final boolean clearAppDataBeforeEachTest;
+  private final boolean failFast;
+  private final boolean quarantine;
+  private final boolean resume;
+  private final boolean rerunFailures;
+  private final ImmutableSet<String> changedClasses;
+  private final File coverageIndex;
+  private final LogcatOptions logcatOptions;
 
   private SpoonRunner(String title, File androidSdk, File testApk, List<File> otherApks,
-      File output, boolean debug, boolean noAnimations, Duration adbTimeout, Set<String> serials,
-      Set<String> skipDevices, boolean shard, Map<String, String> instrumentationArgs,
-      String className, String methodName, IRemoteAndroidTestRunner.TestSize testSize,
+      File output, boolean debug, boolean noAnimations, Duration adbTimeout,
+      Duration testTimeout, Map<IRemoteAndroidTestRunner.TestSize, Duration> sizeTimeouts,
+      Duration deviceProbeTimeout, Set<String> serials, Set<String> skipDevices, boolean shard,
+      Map<String, String> instrumentationArgs, String className, String methodName,
+      IRemoteAndroidTestRunner.TestSize testSize,
       boolean allowNoDevices, List<ITestRunListener> testRunListeners, boolean sequential,
       File initScript, boolean grantAll, boolean terminateAdb, boolean codeCoverage,
-      boolean singleInstrumentationCall, boolean clearAppDataBeforeEachTest) {
+      int coverageBatchSize, boolean singleInstrumentationCall, boolean clearAppDataBeforeEachTest,
+      boolean failFast, boolean quarantine, boolean resume, boolean rerunFailures,
+      Set<String> changedClasses, File coverageIndex, LogcatOptions logcatOptions) {
     this.title = title;
     this.androidSdk = androidSdk;
     this.otherApks = otherApks;
@@ -81,6 +112,9 @@ public final class SpoonRunner {
     this.debug = debug;
     this.noAnimations = noAnimations;
     this.adbTimeout = adbTimeout;
+    this.testTimeout = testTimeout;
+    this.sizeTimeouts = ImmutableMap.copyOf(sizeTimeouts);
+    this.deviceProbeTimeout = deviceProbeTimeout;
     this.instrumentationArgs = ImmutableMap.copyOf(instrumentationArgs != null
         ? instrumentationArgs : emptyMap());
     this.className = className;
@@ -88,6 +122,7 @@ public final class SpoonRunner {
     this.testSize = testSize;
     this.skipDevices = skipDevices;
     this.codeCoverage = codeCoverage;
+    this.coverageBatchSize = coverageBatchSize;
     this.shard = shard;
     this.allowNoDevices = allowNoDevices;
     this.testRunListeners = testRunListeners;
@@ -96,12 +131,15 @@ public final class SpoonRunner {
     this.grantAll = grantAll;
     this.singleInstrumentationCall = singleInstrumentationCall;
     this.clearAppDataBeforeEachTest = clearAppDataBeforeEachTest;
-
-    if (sequential) {
-      this.threadExecutor = Executors.newSingleThreadExecutor();
-    } else {
-      this.threadExecutor = Executors.newCachedThreadPool();
-    }
+    this.failFast = failFast;
+    this.quarantine = quarantine;
+    this.resume = resume;
+    this.rerunFailures = rerunFailures;
+    this.changedClasses = changedClasses != null ? ImmutableSet.copyOf(changedClasses) : null;
+    this.coverageIndex = coverageIndex;
+    this.logcatOptions = logcatOptions;
+
+    this.sequential = sequential;
     this.serials = ImmutableSet.copyOf(serials);
   }
 
@@ -116,56 +154,168 @@ public final class SpoonRunner {
     });
     checkArgument(testApk.exists(), "Could not find test APK: " + testApk);
 
+    SpoonSummary previous = null;
+    Map<String, Set<DeviceTest>> rerunTests = null;
+    if (rerunFailures) {
+      previous = readSummary(output);
+      rerunTests = failedTests(previous);
+      if (rerunTests.isEmpty()) {
+        logInfo("No failed tests to rerun in %s.", output);
+        return parseOverallSuccess(previous);
+      }
+    }
     AndroidDebugBridge adb = SpoonUtils.initAdb(androidSdk, adbTimeout);
+    ExecutorService coverageExecutor = HostExecutors.newSerialExecutor("coverage");
 
     try {
       final SpoonInstrumentationInfo testInfo = parseFromFile(testApk);
+      CoverageIndex previousIndex = null;
+      Set<DeviceTest> skippedTests = null;
+      if (changedClasses != null) {
+        previousIndex = readCoverageIndex(coverageIndex, testInfo.getInstrumentationPackage());
+        skippedTests = unaffectedTests(previousIndex);
+      }
+
+      // Devices are only asked once for what does not change over the run.
+      Map<String, DeviceSession> sessions = new ConcurrentHashMap<>();
 
       // If we were given an empty serial set, load all available devices.
       Set<String> serials = this.serials;
       if (serials.isEmpty()) {
-        serials = SpoonUtils.findAllDevices(adb, testInfo.getMinSdkVersion());
+        for (IDevice device : adb.getDevices()) {
+          sessions.put(device.getSerialNumber(), new DeviceSession(device));
+        }
+        serials = SpoonUtils.findAllDevices(sessions.values(), testInfo.getMinSdkVersion(),
+            deviceProbeTimeout);
+        for (DeviceSession session : sessions.values()) {
+          if (session.getQuarantineReason() != null) {
+            logInfo("[%s] Quarantined: %s", session.getSerialNumber(),
+                session.getQuarantineReason());
+          }
+        }
       }
       if (this.skipDevices != null && !this.skipDevices.isEmpty()) {
         serials = new LinkedHashSet<>(serials);
         serials.removeAll(this.skipDevices);
       }
+      if (rerunTests != null) {
+        Set<String> failedSerials = rerunTests.keySet();
+        serials = new LinkedHashSet<>(serials);
+        serials.removeIf(serial -> !failedSerials.contains(SpoonUtils.sanitizeSerial(serial)));
+      }
       if (serials.isEmpty() && !allowNoDevices) {
         throw new RuntimeException("No device(s) found.");
       }
 
       // Execute all the things...
-      SpoonSummary summary = runTests(adb, serials, testInfo);
+      SpoonSummary summary;
+      FailFast failFast = new FailFast(this.failFast);
+      ExecutorService gifExecutor = HostExecutors.newCpuExecutor("gif");
+      // Coverage is folded in as it is pulled, on a thread of its own.
+      CoverageAccumulator coverage =
+          codeCoverage ? new CoverageAccumulator(coverageExecutor) : null;
+      try (LogcatService logcatService = new LogcatService()) {
+        summary = runTests(adb, sessions, serials, testInfo, logcatService, gifExecutor, failFast,
+            coverage, rerunTests, skippedTests);
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to start logcat service.", e);
+      } finally {
+        gifExecutor.shutdownNow();
+      }
       // ...and render to HTML
-      new HtmlRenderer(summary, SpoonUtils.GSON, output).render();
-      if (codeCoverage) {
+      ExecutorService renderExecutor = HostExecutors.newCpuExecutor("render");
+      try {
+        if (previous != null) {
+          Map<String, Set<DeviceTest>> updated = new HashMap<>();
+          summary.getResults().forEach((serial, result) ->
+              updated.put(serial, result.getTestResults().keySet()));
+          summary = previous.mergeRerun(summary);
+          new HtmlRenderer(summary, SpoonUtils.GSON, output, renderExecutor).render(updated);
+        } else {
+          new HtmlRenderer(summary, SpoonUtils.GSON, output, renderExecutor).render();
+        }
+      } finally {
+        renderExecutor.shutdownNow();
+      }
+      if (codeCoverage && !failFast.isTripped()) {
         try {
-          SpoonCoverageMerger.mergeCoverageFiles(serials, output);
+          SpoonCoverageMerger.mergeCoverage(coverage, summary.getResults().keySet(), output);
           logDebug(debug, "Merging of coverage files done.");
         } catch (IOException exception) {
           throw new RuntimeException("Error while merging coverage files. "
               + "Did you set the \"testCoverageEnabled\" flag in your build.gradle?", exception);
         }
       }
+      // Single instrumentation calls leave no coverage of single tests to index.
+      saveCoverageIndex(testInfo.getInstrumentationPackage(), summary.getResults().keySet(),
+          previousIndex,
+          codeCoverage && !singleInstrumentationCall && !failFast.isTripped());
 
       return parseOverallSuccess(summary);
     } finally {
+      coverageExecutor.shutdownNow();
       if (terminateAdb) {
         AndroidDebugBridge.terminate();
       }
     }
   }
 
-  private SpoonSummary runTests(AndroidDebugBridge adb, Set<String> serials,
-      final SpoonInstrumentationInfo testInfo) {
-    int targetCount = serials.size();
-    logInfo("Executing instrumentation suite on %d device(s).", targetCount);
+  private SpoonSummary runTests(AndroidDebugBridge adb, Map<String, DeviceSession> sessions,
+      Set<String> serials, final SpoonInstrumentationInfo testInfo,
+      final LogcatService logcatService, final ExecutorService gifExecutor,
+      final FailFast failFast, CoverageAccumulator coverage,
+      Map<String, Set<DeviceTest>> rerunTests, Set<DeviceTest> skippedTests) {
+    logInfo("Executing instrumentation suite on %d device(s).", serials.size());
 
+    CheckpointJournal.State checkpoint;
+    BackgroundDeletion previousOutput = null;
     try {
-      FileUtils.deleteDirectory(output);
+      if (resume) {
+        checkpoint = CheckpointJournal.read(output);
+        logInfo("Resuming with %d device(s) already done.", checkpoint.completedDevices.size());
+      } else if (rerunTests != null) {
+        // The report being rerun is complete, so its journal has nothing left to resume.
+        FileUtils.deleteQuietly(new File(output, CheckpointJournal.FILE_NAME));
+        checkpoint = new CheckpointJournal.State();
+      } else {
+        // Deleting a large earlier output can take minutes, so it happens while devices run.
+        previousOutput = BackgroundDeletion.start(output);
+        checkpoint = new CheckpointJournal.State();
+      }
     } catch (IOException e) {
-      throw new RuntimeException("Unable to clean output directory: " + output, e);
+      throw new RuntimeException("Unable to prepare output directory: " + output, e);
     }
+    try (CheckpointJournal journal = new CheckpointJournal(output)) {
+      return runTests(adb, sessions, serials, testInfo, logcatService, gifExecutor, failFast,
+          checkpoint, journal, coverage, rerunTests, skippedTests);
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to write checkpoint journal in: " + output, e);
+    } finally {
+      if (previousOutput != null) {
+        awaitDeletion(previousOutput);
+      }
+    }
+  }
+
+  private void awaitDeletion(BackgroundDeletion deletion) {
+    try {
+      Duration took = deletion.await();
+      logInfo("Deleted the previous output in the background, saving %d ms.", took.toMillis());
+    } catch (IOException e) {
+      // What is left is swept up along with the next run's previous output.
+      logInfo("Unable to finish deleting the previous output of %s: %s", output, e);
+    }
+  }
+
+  private SpoonSummary runTests(AndroidDebugBridge adb, Map<String, DeviceSession> sessions,
+      Set<String> serials, final SpoonInstrumentationInfo testInfo,
+      final LogcatService logcatService, final ExecutorService gifExecutor,
+      final FailFast failFast, CheckpointJournal.State checkpoint, CheckpointJournal journal,
+      CoverageAccumulator coverage, Map<String, Set<DeviceTest>> rerunTests,
+      Set<DeviceTest> skippedTests) {
+    int targetCount = serials.size();
+    // Each device reruns its own failures rather than a shard of them.
+    boolean shard = this.shard && rerunTests == null;
 
     logDebug(debug, "Instrumentation: %s from %s", testInfo.getInstrumentationPackage(),
         testApk.getAbsolutePath());
@@ -178,25 +328,41 @@ public final class SpoonRunner {
     if (testSize != null) {
       summary.setTestSize(testSize);
     }
+    // Devices which finished before the interruption keep their results, attached or not.
+    checkpoint.completedDevices.forEach(summary::addResult);
 
     executeInitScript();
 
+    // A device is only quarantined when what it leaves undone still runs: unsharded, every other
+    // device runs the same tests, and a shard can be handed off to devices running alongside.
+    boolean handOff = quarantine && shard && !sequential && targetCount > 1;
+    final DeviceHealthMonitor healthMonitor = new DeviceHealthMonitor(serials,
+        handOff || (quarantine && !shard && targetCount > 1), shard, handOff);
+
     if (targetCount == 1) {
       // Since there is only one device just execute it synchronously in this process.
       String serial = Iterables.getOnlyElement(serials);
       String safeSerial = SpoonUtils.sanitizeSerial(serial);
       try {
-        logDebug(debug, "[%s] Starting execution.", serial);
-        summary.addResult(safeSerial, getTestRunner(serial, 0, 0, testInfo).run(adb));
+        if (!checkpoint.completedDevices.containsKey(safeSerial)) {
+          logDebug(debug, "[%s] Starting execution.", serial);
+          summary.addResult(safeSerial,
+              getTestRunner(serial, 0, 0, testInfo, logcatService, healthMonitor, gifExecutor,
+                  failFast, checkpoint.completedTests(safeSerial), journal, coverage,
+                  rerunTests != null ? rerunTests.get(safeSerial) : null, skippedTests)
+                  .run(session(adb, sessions, serial)));
+        }
       } catch (Exception e) {
         logDebug(debug, "[%s] Execution exception!", serial);
         e.printStackTrace(System.out);
         summary.addResult(safeSerial, new DeviceResult.Builder().addException(e).build());
       } finally {
+        healthMonitor.finish(serial);
         logDebug(debug, "[%s] Execution done.", serial);
       }
     } else {
-      // Spawn a new thread for each device and wait for them all to finish.
+      // Start a worker for each device and wait for them all to finish.
+      ExecutorService deviceExecutor = HostExecutors.newDeviceExecutor(targetCount, sequential);
       final CountDownLatch done = new CountDownLatch(targetCount);
       final Set<String> remaining = synchronizedSet(new HashSet<>(serials));
 
@@ -209,12 +375,19 @@ public final class SpoonRunner {
         Runnable runnable = new Runnable() {
           @Override public void run() {
             try {
-              summary.addResult(safeSerial,
-                  getTestRunner(serial, safeShardIndex, numShards, testInfo).run(adb));
+              if (!checkpoint.completedDevices.containsKey(safeSerial)) {
+                summary.addResult(safeSerial,
+                    getTestRunner(serial, safeShardIndex, numShards, testInfo, logcatService,
+                        healthMonitor, gifExecutor, failFast,
+                        checkpoint.completedTests(safeSerial), journal, coverage,
+                        rerunTests != null ? rerunTests.get(safeSerial) : null, skippedTests)
+                        .run(session(adb, sessions, serial)));
+              }
             } catch (Exception e) {
               e.printStackTrace(System.out);
               summary.addResult(safeSerial, new DeviceResult.Builder().addException(e).build());
             } finally {
+              healthMonitor.finish(serial);
               done.countDown();
               remaining.remove(serial);
               logDebug(debug, "[%s] Execution done. (%s remaining %s)", serial, done.getCount(),
@@ -226,17 +399,26 @@ public final class SpoonRunner {
           shardIndex++;
           logDebug(debug, "shardIndex [%d]", shardIndex);
         }
-        threadExecutor.execute(runnable);
+        deviceExecutor.execute(runnable);
       }
 
       try {
         done.await();
-        threadExecutor.shutdown();
+        deviceExecutor.shutdown();
       } catch (InterruptedException e) {
         throw new RuntimeException(e);
       }
     }
 
+    for (DeviceSession session : sessions.values()) {
+      if (session.getQuarantineReason() != null) {
+        summary.addQuarantinedDevice(SpoonUtils.sanitizeSerial(session.getSerialNumber()),
+            session.getQuarantineReason());
+      }
+    }
+    healthMonitor.getQuarantineReasons().forEach((serial, reason) ->
+        summary.addQuarantinedDevice(SpoonUtils.sanitizeSerial(serial), reason));
+
     if (!debug) {
       // Clean up anything in the work directory.
       try {
@@ -293,12 +475,119 @@ public final class SpoonRunner {
     return true;
   }
 
+  /** The tests which failed on each device of {@code summary}, by serial. */
+  static Map<String, Set<DeviceTest>> failedTests(SpoonSummary summary) {
+    Map<String, Set<DeviceTest>> failed = new LinkedHashMap<>();
+    summary.getResults().forEach((serial, result) ->
+        result.getTestResults().forEach((test, methodResult) -> {
+          if (methodResult.getStatus() == Status.FAIL) {
+            failed.computeIfAbsent(serial, unused -> new TreeSet<>()).add(test);
+          }
+        }));
+    return failed;
+  }
+
+  /** Read the summary an earlier run left in {@code output}. */
+  private static SpoonSummary readSummary(File output) {
+    File resultJson = new File(output, HtmlRenderer.RESULT_FILENAME);
+    try (Reader reader = new InputStreamReader(new FileInputStream(resultJson), UTF_8)) {
+      return SpoonUtils.GSON.fromJson(reader, SpoonSummary.class);
+    } catch (IOException | JsonParseException e) {
+      throw new RuntimeException("Unable to read earlier results: " + resultJson, e);
+    }
+  }
+
+  /**
+   * The coverage index at {@code file}, or {@code null} if it is missing, unreadable or was saved
+   * for another test package.
+   */
+  private static CoverageIndex readCoverageIndex(File file, String testPackage) {
+    if (!file.exists()) {
+      logInfo("Running all tests since there is no coverage index at %s", file);
+      return null;
+    }
+    try {
+      CoverageIndex index = CoverageIndex.read(file);
+      if (!index.getTestPackage().equals(testPackage)) {
+        logInfo("Running all tests since the coverage index %s is of %s, not %s", file,
+            index.getTestPackage(), testPackage);
+        return null;
+      }
+      return index;
+    } catch (IOException e) {
+      logInfo("Running all tests since the coverage index is unusable: %s", e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * The indexed tests which touch none of the changed classes, and so can be skipped. Tests
+   * missing from the index still run. Returns {@code null} to run all tests when there is no
+   * index, or it cannot tell which tests a changed class affects.
+   */
+  private Set<DeviceTest> unaffectedTests(CoverageIndex index) {
+    if (index == null) {
+      return null;
+    }
+    if (changedClasses.isEmpty()) {
+      logInfo("Running all tests since no changed classes were given.");
+      return null;
+    }
+    Set<String> unindexed = index.unindexedClasses(changedClasses);
+    if (!unindexed.isEmpty()) {
+      logInfo("Running all tests since no indexed test touches %s", unindexed);
+      return null;
+    }
+    Set<DeviceTest> affected = index.affectedTests(changedClasses);
+    Set<DeviceTest> skipped = new LinkedHashSet<>(index.getTests());
+    skipped.removeAll(affected);
+    logInfo("%d of %d indexed test(s) touch the %d changed class(es). Skipping the other %d.",
+        affected.size(), index.getTests().size(), changedClasses.size(), skipped.size());
+    return skipped;
+  }
+
+  /**
+   * Save which classes each test touched next to the results. Tests which ran replace their entries
+   * in {@code previous}, the index they were selected from, which carries over to the new output.
+   */
+  private void saveCoverageIndex(String testPackage, Set<String> serials, CoverageIndex previous,
+      boolean indexed) {
+    if (!indexed && previous == null) {
+      return;
+    }
+    ExecutorService indexExecutor = HostExecutors.newCpuExecutor("coverage-index");
+    try {
+      CoverageIndex index = previous;
+      if (indexed) {
+        CoverageIndex ran = CoverageIndex.build(testPackage, serials, output, indexExecutor);
+        index = previous != null ? previous.update(ran) : ran;
+      }
+      index.save(new File(output, CoverageIndex.FILE_NAME));
+      logDebug(debug, "Indexed the coverage of %d test(s).", index.getTests().size());
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to save coverage index in: " + output, e);
+    } finally {
+      indexExecutor.shutdownNow();
+    }
+  }
+
+  private static DeviceSession session(AndroidDebugBridge adb,
+      Map<String, DeviceSession> sessions, String serial) {
+    return sessions.computeIfAbsent(serial,
+        unused -> new DeviceSession(SpoonUtils.obtainRealDevice(adb, serial)));
+  }
+
   private SpoonDeviceRunner getTestRunner(String serial, int shardIndex, int numShards,
-      SpoonInstrumentationInfo testInfo) {
+      SpoonInstrumentationInfo testInfo, LogcatService logcatService,
+      DeviceHealthMonitor healthMonitor, ExecutorService gifExecutor, FailFast failFast,
+      Map<DeviceTest, DeviceTestResult> checkpointedTests, CheckpointJournal journal,
+      CoverageAccumulator coverage, Set<DeviceTest> tests, Set<DeviceTest> skippedTests) {
     return new SpoonDeviceRunner(testApk, otherApks, output, serial, shardIndex, numShards, debug,
-        noAnimations, adbTimeout, testInfo, instrumentationArgs, className, methodName, testSize,
-        testRunListeners, codeCoverage, grantAll, singleInstrumentationCall,
-        clearAppDataBeforeEachTest);
+        noAnimations, adbTimeout, testTimeout, sizeTimeouts, testInfo, instrumentationArgs,
+        className, methodName, tests, skippedTests, testSize, testRunListeners, codeCoverage,
+        coverageBatchSize, grantAll, singleInstrumentationCall, clearAppDataBeforeEachTest,
+        logcatOptions, logcatService,
+        healthMonitor, gifExecutor, failFast, checkpointedTests, journal, coverage);
   }
 
   /** Build a test suite for the specified devices and configuration. */
@@ -317,6 +606,10 @@ public final class SpoonRunner {
     private boolean noAnimations;
     private IRemoteAndroidTestRunner.TestSize testSize;
     private Duration adbTimeout = DEFAULT_ADB_TIMEOUT;
+    private Duration testTimeout;
+    private Map<IRemoteAndroidTestRunner.TestSize, Duration> sizeTimeouts =
+        new EnumMap<>(IRemoteAndroidTestRunner.TestSize.class);
+    private Duration deviceProbeTimeout = SpoonUtils.DEFAULT_DEVICE_PROBE_TIMEOUT;
     private boolean allowNoDevices;
     private List<ITestRunListener> testRunListeners = new ArrayList<>();
     private boolean sequential;
@@ -324,9 +617,21 @@ public final class SpoonRunner {
     private boolean grantAll;
     private boolean terminateAdb = true;
     private boolean codeCoverage;
+    private int coverageBatchSize;
     private boolean shard = false;
     private boolean singleInstrumentationCall = false;
     private boolean clearAppDataBeforeEachTest = false;
+    private boolean failFast;
+    private boolean quarantine;
+    private boolean resume;
+    private boolean rerunFailures;
+    private Set<String> changedClasses;
+    private File coverageIndex;
+    private final Map<String, String> screenshotArgs = new LinkedHashMap<>();
+    private int logcatBufferSize = DEFAULT_LOGCAT_BUFFER_SIZE;
+    private Set<String> logcatTags = new LinkedHashSet<>();
+    private LogLevel logcatMinPriority;
+    private boolean logcatPidFilter;
 
     /** Identifying title for this execution. */
     public Builder setTitle(String title) {
@@ -384,6 +689,40 @@ public final class SpoonRunner {
       return this;
     }
 
+    /**
+     * Wall-clock budget of each test. A test which runs longer has its instrumentation killed and
+     * is failed, and the device moves on to the remaining tests.
+     */
+    public Builder setTestTimeout(Duration testTimeout) {
+      checkNotNull(testTimeout, "Test timeout cannot be null.");
+      checkArgument(!testTimeout.isNegative() && !testTimeout.isZero(),
+          "Test timeout must be positive.");
+      this.testTimeout = testTimeout;
+      return this;
+    }
+
+    /** Wall-clock budget of each test of {@code size}, overriding {@link #setTestTimeout}. */
+    public Builder setTestTimeout(IRemoteAndroidTestRunner.TestSize size, Duration testTimeout) {
+      checkNotNull(size, "Test size cannot be null.");
+      checkNotNull(testTimeout, "Test timeout cannot be null.");
+      checkArgument(!testTimeout.isNegative() && !testTimeout.isZero(),
+          "Test timeout must be positive.");
+      sizeTimeouts.put(size, testTimeout);
+      return this;
+    }
+
+    /**
+     * How long a device found on ADB may take to report its properties. One which takes longer is
+     * left out of the run rather than delaying it.
+     */
+    public Builder setDeviceProbeTimeout(Duration deviceProbeTimeout) {
+      checkNotNull(deviceProbeTimeout, "Device probe timeout cannot be null.");
+      checkArgument(!deviceProbeTimeout.isNegative() && !deviceProbeTimeout.isZero(),
+          "Device probe timeout must be positive.");
+      this.deviceProbeTimeout = deviceProbeTimeout;
+      return this;
+    }
+
     /** Add a device serial for test execution. */
     public Builder addDevice(String serial) {
       checkNotNull(serial, "Serial cannot be null.");
@@ -447,6 +786,17 @@ public final class SpoonRunner {
       return this;
     }
 
+    /**
+     * Number of tests whose coverage files are left on the device and pulled together, rather
+     * than pulling one after each test. 0, the default, pulls after each test. Files still on the
+     * device are pulled once the device has run all of its tests.
+     */
+    public Builder setCoverageBatchSize(int coverageBatchSize) {
+      checkArgument(coverageBatchSize >= 0, "Coverage batch size cannot be negative.");
+      this.coverageBatchSize = coverageBatchSize;
+      return this;
+    }
+
     public Builder setShard(boolean shard) {
       this.shard = shard;
       return this;
@@ -473,6 +823,135 @@ public final class SpoonRunner {
         return this;
     }
 
+    /**
+     * Whether the first failing test cancels the rest of the run on every device. Tests which did
+     * not get to run are reported as ignored, and no screenshots, files or coverage are pulled.
+     */
+    public Builder setFailFast(boolean failFast) {
+      this.failFast = failFast;
+      return this;
+    }
+
+    /**
+     * Whether to stop running tests on a device which keeps failing over ADB or, unless sharding,
+     * whose tests have become much slower than on the other devices. Its remaining tests are handed
+     * off to the other devices when sharding, and run there anyway otherwise. A device is never
+     * quarantined when it runs alone, nor when sharding sequentially.
+     */
+    public Builder setQuarantine(boolean quarantine) {
+      this.quarantine = quarantine;
+      return this;
+    }
+
+    /**
+     * Whether to resume the interrupted run whose output is in the output directory instead of
+     * starting over. Devices which finished keep their results, and the others only run the tests
+     * which did not end before the interruption. Devices must be sharded the same way as before.
+     */
+    public Builder setResume(boolean resume) {
+      this.resume = resume;
+      return this;
+    }
+
+    /**
+     * Whether to only run the tests which failed in the earlier run whose output is in the output
+     * directory, each on the device it failed on, and merge their results into its report.
+     */
+    public Builder setRerunFailures(boolean rerunFailures) {
+      this.rerunFailures = rerunFailures;
+      return this;
+    }
+
+    /**
+     * Skip the tests which touched none of these classes, nor a class nested in one, according
+     * to the coverage index. Classes are given by binary name, such as {@code com.example.Foo}.
+     * Tests missing from the index, such as those added since it was saved, always run. All tests
+     * run when the index is missing, was saved for another test APK or by another version, or no
+     * indexed test touched one of these classes.
+     */
+    public Builder setChangedClasses(Collection<String> changedClasses) {
+      checkNotNull(changedClasses, "Changed classes cannot be null.");
+      this.changedClasses = new LinkedHashSet<>(changedClasses);
+      return this;
+    }
+
+    /**
+     * Coverage index to select tests by changed classes from. Defaults to the one an earlier run
+     * with code coverage saved in the output directory.
+     */
+    public Builder setCoverageIndex(File coverageIndex) {
+      checkNotNull(coverageIndex, "Coverage index path not specified.");
+      this.coverageIndex = coverageIndex;
+      return this;
+    }
+
+    /** Format the client encodes screenshots in: png, jpeg or webp. Defaults to png. */
+    public Builder setScreenshotFormat(String screenshotFormat) {
+      checkNotNull(screenshotFormat, "Screenshot format cannot be null.");
+      checkArgument(ImmutableSet.of("png", "jpeg", "webp").contains(screenshotFormat),
+          "Screenshot format must be png, jpeg or webp.");
+      screenshotArgs.put(SCREENSHOT_FORMAT_ARG, screenshotFormat);
+      return this;
+    }
+
+    /** Quality the client encodes lossy screenshots at, from 0 to 100. */
+    public Builder setScreenshotQuality(int screenshotQuality) {
+      checkArgument(screenshotQuality >= 0 && screenshotQuality <= 100,
+          "Screenshot quality must be from 0 to 100.");
+      screenshotArgs.put(SCREENSHOT_QUALITY_ARG, Integer.toString(screenshotQuality));
+      return this;
+    }
+
+    /** Most pixels the longer side of a screenshot may have; larger ones are scaled down. */
+    public Builder setScreenshotMaxDimension(int screenshotMaxDimension) {
+      checkArgument(screenshotMaxDimension > 0, "Screenshot maximum dimension must be positive.");
+      screenshotArgs.put(SCREENSHOT_MAX_DIMENSION_ARG, Integer.toString(screenshotMaxDimension));
+      return this;
+    }
+
+    /** Factor by which the client scales screenshots, greater than 0 and at most 1. */
+    public Builder setScreenshotScale(float screenshotScale) {
+      checkArgument(screenshotScale > 0 && screenshotScale <= 1,
+          "Screenshot scale must be greater than 0 and at most 1.");
+      screenshotArgs.put(SCREENSHOT_SCALE_ARG, Float.toString(screenshotScale));
+      return this;
+    }
+
+    /** Number of logcat messages per device held in memory before they are spooled to disk. */
+    public Builder setLogcatBufferSize(int logcatBufferSize) {
+      checkArgument(logcatBufferSize > 0, "Logcat buffer size must be positive.");
+      this.logcatBufferSize = logcatBufferSize;
+      return this;
+    }
+
+    /**
+     * Only capture logcat messages with this tag. Adding no tags captures every tag. Crash reports
+     * are captured whatever the tags, since crash detection reads the same stream.
+     */
+    public Builder addLogcatTag(String tag) {
+      checkNotNull(tag, "Tag cannot be null.");
+      logcatTags.add(tag);
+      return this;
+    }
+
+    /** Lowest priority of logcat messages to capture. */
+    public Builder setLogcatMinPriority(LogLevel logcatMinPriority) {
+      checkNotNull(logcatMinPriority, "Priority cannot be null.");
+      this.logcatMinPriority = logcatMinPriority;
+      return this;
+    }
+
+    /**
+     * Whether devices which support it should only stream logcat from the instrumentation process
+     * once it is known. Only applies to single instrumentation calls. Crash detection reads the
+     * same stream, so it then misses ANRs and tombstones, which other processes report, and such
+     * tests only fail at their timeout.
+     */
+    public Builder setLogcatPidFilter(boolean logcatPidFilter) {
+      this.logcatPidFilter = logcatPidFilter;
+      return this;
+    }
+
     public SpoonRunner build() {
       checkNotNull(androidSdk, "SDK is required.");
       checkArgument(androidSdk.exists(), "SDK path does not exist.");
@@ -482,11 +961,32 @@ public final class SpoonRunner {
         checkArgument(!isNullOrEmpty(className),
             "Must specify class name if you're specifying a method name.");
       }
+      checkArgument(!resume || !rerunFailures, "Cannot both resume and rerun failures.");
+      if (changedClasses != null) {
+        checkArgument(!resume && !rerunFailures,
+            "Cannot select tests by changed classes when resuming or rerunning failures.");
+        checkArgument(isNullOrEmpty(className),
+            "Cannot select tests by both class name and changed classes.");
+      }
+      File coverageIndex = this.coverageIndex != null
+          ? this.coverageIndex : new File(output, CoverageIndex.FILE_NAME);
+      // The client reads the screenshot options from the instrumentation arguments.
+      Map<String, String> instrumentationArgs = this.instrumentationArgs;
+      if (!screenshotArgs.isEmpty()) {
+        instrumentationArgs = new LinkedHashMap<>();
+        if (this.instrumentationArgs != null) {
+          instrumentationArgs.putAll(this.instrumentationArgs);
+        }
+        instrumentationArgs.putAll(screenshotArgs);
+      }
 
       return new SpoonRunner(title, androidSdk, testApk, otherApks, output, debug, noAnimations,
-          adbTimeout, serials, skipDevices, shard, instrumentationArgs, className, methodName,
-          testSize, allowNoDevices, testRunListeners, sequential, initScript, grantAll,
-          terminateAdb, codeCoverage, singleInstrumentationCall, clearAppDataBeforeEachTest);
+          adbTimeout, testTimeout, sizeTimeouts, deviceProbeTimeout, serials, skipDevices, shard,
+          instrumentationArgs, className, methodName, testSize, allowNoDevices, testRunListeners,
+          sequential, initScript, grantAll, terminateAdb, codeCoverage, coverageBatchSize,
+          singleInstrumentationCall, clearAppDataBeforeEachTest, failFast, quarantine, resume,
+          rerunFailures, changedClasses, coverageIndex,
+          new LogcatOptions(logcatBufferSize, logcatTags, logcatMinPriority, logcatPidFilter));
     }
   }
 
@@ -4,6 +4,7 @@ import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
 
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -19,14 +20,16 @@ public final class SpoonSummary {
   private final long started;
   private final long duration;
   private final Map<String, DeviceResult> results;
+  private final Map<String, String> quarantinedDevices;
 
   private SpoonSummary(String title, IRemoteAndroidTestRunner.TestSize testSize, long started,
-      long duration, Map<String, DeviceResult> results) {
+      long duration, Map<String, DeviceResult> results, Map<String, String> quarantinedDevices) {
     this.title = title;
     this.testSize = testSize;
     this.started = started;
     this.duration = duration;
     this.results = unmodifiableMap(new HashMap<>(results));
+    this.quarantinedDevices = unmodifiableMap(new LinkedHashMap<>(quarantinedDevices));
   }
 
   /** Execution title. */
@@ -54,8 +57,28 @@ public final class SpoonSummary {
     return results;
   }
 
+  /** Why each device taken out of the run was taken out, by serial number. */
+  public Map<String, String> getQuarantinedDevices() {
+    return quarantinedDevices;
+  }
+
+  /**
+   * This summary with the results of {@code rerun} merged into those of its devices. The title,
+   * test size and start of this summary are kept.
+   */
+  SpoonSummary mergeRerun(SpoonSummary rerun) {
+    Map<String, DeviceResult> merged = new HashMap<>(results);
+    rerun.results.forEach((serial, result) ->
+        merged.merge(serial, result, DeviceResult::mergeRerun));
+    Map<String, String> quarantined = new LinkedHashMap<>(quarantinedDevices);
+    rerun.quarantinedDevices.forEach(quarantined::putIfAbsent);
+    return new SpoonSummary(title, testSize, started, duration + rerun.duration, merged,
+        quarantined);
+  }
+
   static class Builder {
     private final Map<String, DeviceResult> results = new HashMap<>();
+    private final Map<String, String> quarantinedDevices = new LinkedHashMap<>();
     private String title;
     private IRemoteAndroidTestRunner.TestSize testSize;
     private long started;
@@ -87,6 +110,15 @@ public final class SpoonSummary {
       return this;
     }
 
+    Builder addQuarantinedDevice(String serial, String reason) {
+      checkNotNull(serial);
+      checkNotNull(reason);
+      synchronized (quarantinedDevices) {
+        quarantinedDevices.putIfAbsent(serial, reason);
+      }
+      return this;
+    }
+
     Builder start() {
       checkState(start == 0, "Start already called.");
       start = System.nanoTime();
@@ -105,7 +137,7 @@ public final class SpoonSummary {
       checkState(title != null, "Title is required.");
       checkState(started != 0, "Never started.");
 
-      return new SpoonSummary(title, testSize, started, duration, results);
+      return new SpoonSummary(title, testSize, started, duration, results, quarantinedDevices);
     }
   }
 }
@@ -14,11 +14,21 @@ final class SpoonTestRunListener implements ITestRunListener {
   private final DeviceResult.Builder result;
   private final Map<TestIdentifier, DeviceTestResult.Builder> methodResults = new HashMap<>();
   private final boolean debug;
+  private final CheckpointJournal journal;
+  private final String serial;
 
   SpoonTestRunListener(DeviceResult.Builder result, boolean debug) {
+    this(result, debug, null, null);
+  }
+
+  /** Also records each ended test of {@code serial} in {@code journal}, if not {@code null}. */
+  SpoonTestRunListener(DeviceResult.Builder result, boolean debug, CheckpointJournal journal,
+      String serial) {
     checkNotNull(result);
     this.result = result;
     this.debug = debug;
+    this.journal = journal;
+    this.serial = serial;
   }
 
   private DeviceTestResult.Builder obtainMethodResult(TestIdentifier test) {
@@ -50,7 +60,12 @@ final class SpoonTestRunListener implements ITestRunListener {
 
   @Override public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
     logDebug(debug, "ended %s", test);
-    result.addTestResultBuilder(DeviceTest.from(test), obtainMethodResult(test).endTest());
+    DeviceTest deviceTest = DeviceTest.from(test);
+    DeviceTestResult.Builder methodResult = obtainMethodResult(test).endTest();
+    result.addTestResultBuilder(deviceTest, methodResult);
+    if (journal != null) {
+      journal.testCompleted(serial, deviceTest, methodResult.build());
+    }
   }
 
   @Override public void testRunStarted(String runName, int testCount) {
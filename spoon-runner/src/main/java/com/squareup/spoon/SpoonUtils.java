@@ -1,52 +1,117 @@
 package com.squareup.spoon;
 
 import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.CollectingOutputReceiver;
 import com.android.ddmlib.DdmPreferences;
 import com.android.ddmlib.IDevice;
+import com.google.common.base.Joiner;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
 import com.madgag.gif.fmsware.AnimatedGifEncoder;
 import java.awt.Color;
-import java.awt.image.BufferedImage;
+import java.awt.Dimension;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import org.apache.commons.io.FileUtils;
 
 import static com.android.ddmlib.FileListingService.FileEntry;
 import static com.android.ddmlib.FileListingService.TYPE_DIRECTORY;
+import static com.squareup.spoon.SpoonLogger.logError;
 
 /** Utilities for executing instrumentation tests on devices. */
 public final class SpoonUtils {
   private static final Pattern SERIAL_VALIDATION = Pattern.compile("[^a-zA-Z0-9_-]");
-  static final Gson GSON = new GsonBuilder() //
-      .registerTypeAdapter(File.class, new TypeAdapter<File>() {
-        @Override public void write(JsonWriter jsonWriter, File file) throws IOException {
-          if (file == null) {
-            jsonWriter.nullValue();
-          } else {
-            jsonWriter.value(file.getAbsolutePath());
-          }
-        }
-
-        @Override public File read(JsonReader jsonReader) throws IOException {
-          return new File(jsonReader.nextString());
-        }
-      }) //
+  static final Duration DEFAULT_DEVICE_PROBE_TIMEOUT = Duration.ofSeconds(30);
+  static final Gson GSON = gsonBuilder() //
       .setPrettyPrinting() //
       .create();
 
+  /** A builder of Gson instances which read and write results the way {@link #GSON} does. */
+  static GsonBuilder gsonBuilder() {
+    return new GsonBuilder() //
+        .registerTypeAdapter(File.class, new TypeAdapter<File>() {
+          @Override public void write(JsonWriter jsonWriter, File file) throws IOException {
+            if (file == null) {
+              jsonWriter.nullValue();
+            } else {
+              jsonWriter.value(file.getAbsolutePath());
+            }
+          }
+
+          @Override public File read(JsonReader jsonReader) throws IOException {
+            return new File(jsonReader.nextString());
+          }
+        }) //
+        // Tests are written the way they key maps of results, so that those maps read back.
+        .registerTypeAdapter(DeviceTest.class, new TypeAdapter<DeviceTest>() {
+          @Override public void write(JsonWriter jsonWriter, DeviceTest test) throws IOException {
+            if (test == null) {
+              jsonWriter.nullValue();
+            } else {
+              jsonWriter.value(test.toString());
+            }
+          }
+
+          @Override public DeviceTest read(JsonReader jsonReader) throws IOException {
+            String test = jsonReader.nextString();
+            DeviceTest deviceTest = DeviceTest.parse(test);
+            if (deviceTest == null) {
+              throw new JsonParseException("Not a test: " + test);
+            }
+            return deviceTest;
+          }
+        }) //
+        // Logs spooled to disk are written inline, so that results read back with their logs.
+        .registerTypeAdapterFactory(new TypeAdapterFactory() {
+          @SuppressWarnings("unchecked") // Only ever asked for the type it checked for.
+          @Override public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            if (type.getRawType() != DeviceTestResult.class) {
+              return null;
+            }
+            final TypeAdapter<DeviceTestResult> delegate =
+                gson.getDelegateAdapter(this, TypeToken.get(DeviceTestResult.class));
+            return (TypeAdapter<T>) new TypeAdapter<DeviceTestResult>() {
+              @Override public void write(JsonWriter jsonWriter, DeviceTestResult result)
+                  throws IOException {
+                delegate.write(jsonWriter, result != null ? result.withInlineLog() : null);
+              }
+
+              @Override public DeviceTestResult read(JsonReader jsonReader) throws IOException {
+                return delegate.read(jsonReader);
+              }
+            };
+          }
+        });
+  }
+
   /** Fetch or create a real device that corresponds to a device model. */
   static IDevice obtainRealDevice(AndroidDebugBridge adb, String serial) {
     // Get an existing real device.
@@ -58,6 +123,17 @@ public final class SpoonUtils {
     throw new IllegalArgumentException("Unknown device serial: " + serial);
   }
 
+  /** Kill every process of {@code packages}, ending any instrumentation running in them. */
+  static void forceStop(IDevice device, Collection<String> packages) {
+    String command = "am force-stop " + Joiner.on("; am force-stop ").join(packages);
+    try {
+      device.executeShellCommand(command, new CollectingOutputReceiver());
+    } catch (Exception e) {
+      logError("[%s] Unable to force-stop %s: %s", device.getSerialNumber(), packages,
+          e.getMessage());
+    }
+  }
+
   static String sanitizeSerial(String serial) {
     return SERIAL_VALIDATION.matcher(serial).replaceAll("_");
   }
@@ -100,17 +176,63 @@ public final class SpoonUtils {
    *                      version will be returned.
    */
   public static Set<String> findAllDevices(AndroidDebugBridge adb, Integer minApiLevel) {
-    Set<String> devices = new LinkedHashSet<>();
+    List<DeviceSession> sessions = new ArrayList<>();
     for (IDevice realDevice : adb.getDevices()) {
-      if (minApiLevel == null) {
-        devices.add(realDevice.getSerialNumber());
-      } else {
-        DeviceDetails deviceDetails = DeviceDetails.createForDevice(realDevice);
-        int apiLevel = deviceDetails.getApiLevel();
+      sessions.add(new DeviceSession(realDevice));
+    }
+    return findAllDevices(sessions, minApiLevel, DEFAULT_DEVICE_PROBE_TIMEOUT);
+  }
+
+  /**
+   * Find the serials of {@code sessions} whose device is at {@code minApiLevel} or above. The
+   * details read from each device stay in its session for the run which follows.
+   * <p>
+   * All devices are probed at once. One which has not answered within {@code probeTimeout} is
+   * quarantined and left out rather than holding up the others.
+   */
+  static Set<String> findAllDevices(Collection<DeviceSession> sessions, Integer minApiLevel,
+      Duration probeTimeout) {
+    Set<String> devices = new LinkedHashSet<>();
+    if (minApiLevel == null) {
+      for (DeviceSession session : sessions) {
+        devices.add(session.getSerialNumber());
+      }
+      return devices;
+    }
+
+    ExecutorService probes = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "spoon-device-probe");
+      thread.setDaemon(true); // A device which never answers must not keep the JVM alive.
+      return thread;
+    });
+    try {
+      Map<DeviceSession, Future<Integer>> apiLevels = new LinkedHashMap<>();
+      for (DeviceSession session : sessions) {
+        apiLevels.put(session, probes.submit(session::getApiLevel));
+      }
+      long deadline = System.nanoTime() + probeTimeout.toNanos();
+      for (Map.Entry<DeviceSession, Future<Integer>> entry : apiLevels.entrySet()) {
+        DeviceSession session = entry.getKey();
+        int apiLevel;
+        try {
+          apiLevel = entry.getValue().get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+          session.quarantine(
+              "Did not report its properties within " + probeTimeout.toMillis() + " ms.");
+          continue;
+        } catch (ExecutionException e) {
+          session.quarantine("Unable to read its properties: " + e.getCause());
+          continue;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException("Interrupted while probing devices.", e);
+        }
         if (apiLevel == DeviceDetails.UNKNOWN_API_LEVEL || apiLevel >= minApiLevel) {
-          devices.add(realDevice.getSerialNumber());
+          devices.add(session.getSerialNumber());
         }
       }
+    } finally {
+      probes.shutdownNow();
     }
     return devices;
   }
@@ -124,28 +246,58 @@ public final class SpoonUtils {
     return adb;
   }
 
-  static void createAnimatedGif(List<File> testScreenshots, File animatedGif) throws IOException {
+  /** Animate the screenshots of a test, unless fewer than two of them can be read. */
+  static boolean createAnimatedGif(List<File> testScreenshots, File animatedGif)
+      throws IOException {
+    // Screenshots in a format without an ImageIO reader, like WebP, are left out. Only their
+    // headers are read here, so that a single decoded frame is held at a time below.
+    List<File> frames = new ArrayList<>();
+    int width = 0;
+    int height = 0;
+    for (File testScreenshot : testScreenshots) {
+      Dimension size = readImageSize(testScreenshot);
+      if (size != null) {
+        frames.add(testScreenshot);
+        width = Math.max(size.width, width);
+        height = Math.max(size.height, height);
+      }
+    }
+    if (frames.size() < 2) {
+      return false;
+    }
+
     AnimatedGifEncoder encoder = new AnimatedGifEncoder();
     encoder.start(animatedGif.getAbsolutePath());
     encoder.setDelay(1500 /* 1.5 seconds */);
     encoder.setQuality(1 /* highest */);
     encoder.setRepeat(0 /* infinite */);
     encoder.setTransparent(Color.WHITE);
-
-    int width = 0;
-    int height = 0;
-    for (File testScreenshot : testScreenshots) {
-      BufferedImage bufferedImage = ImageIO.read(testScreenshot);
-      width = Math.max(bufferedImage.getWidth(), width);
-      height = Math.max(bufferedImage.getHeight(), height);
-    }
     encoder.setSize(width, height);
 
-    for (File testScreenshot : testScreenshots) {
-      encoder.addFrame(ImageIO.read(testScreenshot));
+    for (File frame : frames) {
+      encoder.addFrame(ImageIO.read(frame));
     }
 
     encoder.finish();
+    return true;
+  }
+
+  /** The size of an image from its header, or {@code null} if ImageIO cannot read its format. */
+  private static Dimension readImageSize(File image) throws IOException {
+    try (ImageInputStream input = ImageIO.createImageInputStream(image)) {
+      Iterator<ImageReader> readers =
+          input != null ? ImageIO.getImageReaders(input) : Collections.emptyIterator();
+      if (!readers.hasNext()) {
+        return null;
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(input);
+        return new Dimension(reader.getWidth(0), reader.getHeight(0));
+      } finally {
+        reader.dispose();
+      }
+    }
   }
 
   private static void waitForAdb(AndroidDebugBridge adb, Duration timeOut) {
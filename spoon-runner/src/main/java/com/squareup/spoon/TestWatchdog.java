@@ -0,0 +1,111 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.google.common.collect.ImmutableMap;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import static com.squareup.spoon.SpoonLogger.logInfo;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Enforces a wall-clock budget on each test, independent of the ADB output timeout. A test which
+ * overruns has its instrumentation killed so that the device can move on to the remaining tests.
+ */
+final class TestWatchdog extends RunWatcher<TestWatchdog.Timeout> {
+  /** A test which overran its budget and aborted its run. */
+  static final class Timeout {
+    final TestIdentifier test;
+    final Duration budget;
+
+    Timeout(TestIdentifier test, Duration budget) {
+      this.test = test;
+      this.budget = budget;
+    }
+
+    String getMessage() {
+      return "Test timed out after " + budget.toMillis() + " ms.";
+    }
+  }
+
+  private final Duration defaultBudget;
+  private final ImmutableMap<TestIdentifier, Duration> budgets;
+  private final ScheduledExecutorService scheduler;
+  private ScheduledFuture<?> deadline;
+  /** Incremented whenever a test starts or ends so that a stale deadline can be told apart. */
+  private int generation;
+  private Timeout timeout;
+
+  /**
+   * @param defaultBudget Budget of tests without their own, or {@code null} for no limit.
+   * @param budgets Budgets of individual tests, keyed without their parameters.
+   */
+  TestWatchdog(IDevice device, Set<String> packages, Duration defaultBudget,
+      Map<TestIdentifier, Duration> budgets) {
+    super(device, packages);
+    this.defaultBudget = defaultBudget;
+    this.budgets = ImmutableMap.copyOf(budgets);
+    this.scheduler = HostExecutors.deadlineScheduler();
+  }
+
+  @Override void onWatch() {
+    timeout = null;
+  }
+
+  @Override void onStopWatching() {
+    cancelDeadline();
+  }
+
+  @Override Timeout abortReason() {
+    return timeout;
+  }
+
+  @Override synchronized void stop() {
+    cancelDeadline();
+  }
+
+  @Override public synchronized void testStarted(TestIdentifier test) {
+    cancelDeadline();
+    if (!isWatching() || isAborted()) {
+      return;
+    }
+    Duration budget = budgets.get(LogRecordingTestRunListener.Companion
+        .stripParametersInClassName(test));
+    if (budget == null) {
+      budget = defaultBudget;
+    }
+    if (budget != null) {
+      Duration testBudget = budget;
+      int testGeneration = generation;
+      deadline = scheduler.schedule(() -> expire(test, testBudget, testGeneration),
+          budget.toMillis(), MILLISECONDS);
+    }
+  }
+
+  @Override public synchronized void testEnded(TestIdentifier test,
+      Map<String, String> testMetrics) {
+    cancelDeadline();
+  }
+
+  private synchronized void expire(TestIdentifier test, Duration budget, int testGeneration) {
+    if (!isWatching() || testGeneration != generation) {
+      return; // The test finished while the deadline fired.
+    }
+    timeout = new Timeout(test, budget);
+    logInfo("[%s] %s exceeded its %d ms budget, aborting instrumentation.",
+        device.getSerialNumber(), test, budget.toMillis());
+    abort();
+  }
+
+  private void cancelDeadline() {
+    generation++;
+    if (deadline != null) {
+      deadline.cancel(false);
+      deadline = null;
+    }
+  }
+}
@@ -1,38 +1,96 @@
 @file:JvmName("SpoonCoverageMerger")
 package com.squareup.spoon
 
+import com.google.common.util.concurrent.MoreExecutors
 import com.squareup.spoon.SpoonDeviceRunner.COVERAGE_DIR
 import com.squareup.spoon.SpoonDeviceRunner.COVERAGE_FILE
 import org.jacoco.core.tools.ExecFileLoader
 import java.io.File
 import java.io.IOException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+
+internal const val MERGED_COVERAGE_FILE = "merged-coverage.ec"
 
 @Throws(IOException::class)
 internal fun mergeCoverageFiles(serials: Set<String>, outputDirectory: File) {
-  val execFileLoader = ExecFileLoader()
-  serials.map(SpoonUtils::sanitizeSerial).forEach { serial ->
-    execFileLoader.load(File(outputDirectory, "$COVERAGE_DIR/$serial/$COVERAGE_FILE"))
-  }
-  execFileLoader.save(File(outputDirectory, "$COVERAGE_DIR/merged-coverage.ec"), false)
+  mergeCoverage(CoverageAccumulator(MoreExecutors.newDirectExecutorService()), serials,
+      outputDirectory)
 }
 
 /**
- * Merges all coverage files inside a folder into a single coverage file
+ * Saves the coverage of all [serials] to the merged coverage file, reading the coverage files of
+ * those whose coverage was not already folded into [coverage].
  */
 @Throws(IOException::class)
-internal fun mergeAllCoverageFiles(covReportsFolder: File) {
-  val covFiles = covReportsFolder.listFiles()
-  if (covFiles == null || covFiles.isEmpty())
-    throw RuntimeException("No coverage file in path")
-  SpoonLogger.logInfo("Merging code coverage files in folder %s", covReportsFolder.absolutePath);
-  val execFileLoader = ExecFileLoader()
-  covFiles.forEach { covReport ->
-      execFileLoader.load(covReport)
+internal fun mergeCoverage(coverage: CoverageAccumulator, serials: Set<String>,
+    outputDirectory: File) {
+  serials.map(SpoonUtils::sanitizeSerial).filterNot(coverage::contains).forEach { serial ->
+    coverage.add(File(outputDirectory, "$COVERAGE_DIR/$serial/$COVERAGE_FILE"))
+  }
+  coverage.save(File(outputDirectory, "$COVERAGE_DIR/$MERGED_COVERAGE_FILE"))
+}
+
+/**
+ * Folds execution data into one in-memory store as it arrives, so that the merge of it all is
+ * ready as soon as the last of it is. Loading happens on [executor], which must run one task at a
+ * time in the order they were submitted.
+ */
+internal class CoverageAccumulator(private val executor: ExecutorService) {
+  private val loader = ExecFileLoader()
+  private val pending = ArrayList<Future<*>>()
+  private val devices = HashSet<String>()
+
+  /** An empty accumulator, such as for the coverage of one device, loading on the same thread. */
+  fun newAccumulator() = CoverageAccumulator(executor)
+
+  /** Fold in the execution data [file]. */
+  fun add(file: File) {
+    submit { loader.load(file) }
   }
 
-  val mergedCovFile = File(covReportsFolder, COVERAGE_FILE)
-  if (!mergedCovFile.exists())
-    mergedCovFile.createNewFile()
-  execFileLoader.save(mergedCovFile, false)
-  SpoonLogger.logInfo("Merged code coverage file saved in %s", mergedCovFile.absolutePath);
+  /** Fold in everything [device] holds once it has loaded it, as the coverage of [serial]. */
+  @Throws(IOException::class)
+  fun add(serial: String, device: CoverageAccumulator) {
+    device.await()
+    synchronized(devices) {
+      devices += serial
+    }
+    submit {
+      device.loader.executionDataStore.accept(loader.executionDataStore)
+      device.loader.sessionInfoStore.accept(loader.sessionInfoStore)
+    }
+  }
+
+  /** Whether the coverage of [serial] was folded in. */
+  fun contains(serial: String) = synchronized(devices) { serial in devices }
+
+  /** Wait for everything added so far to be folded in. */
+  @Throws(IOException::class)
+  fun await() {
+    val futures = synchronized(pending) { ArrayList(pending).also { pending.clear() } }
+    try {
+      futures.forEach { it.get() }
+    } catch (e: ExecutionException) {
+      throw e.cause as? IOException ?: RuntimeException(e.cause)
+    } catch (e: InterruptedException) {
+      Thread.currentThread().interrupt()
+      throw IOException("Interrupted while merging coverage.", e)
+    }
+  }
+
+  /** Write everything added so far to [file]. */
+  @Throws(IOException::class)
+  fun save(file: File) {
+    await()
+    file.parentFile.mkdirs()
+    loader.save(file, false)
+  }
+
+  private fun submit(task: () -> Unit) {
+    synchronized(pending) {
+      pending += executor.submit(Runnable { task() })
+    }
+  }
 }
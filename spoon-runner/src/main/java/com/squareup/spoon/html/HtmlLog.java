@@ -9,7 +9,8 @@ import static java.util.stream.Collectors.toList;
 
 /** Model for representing a {@code log.html} page. */
 final class HtmlLog {
-  public static HtmlLog from(String name, DeviceTest test, DeviceTestResult result) {
+  public static HtmlLog from(String name, DeviceTest test, DeviceTestResult result,
+      List<LogCatMessage> messages) {
     String status;
     switch (result.getStatus()) {
       case PASS:
@@ -33,7 +34,7 @@ final class HtmlLog {
         + " in " + HtmlUtils.humanReadableDuration(result.getDuration())
         + " on " + name;
 
-    List<LogEntry> log = result.getLog().stream().map(LogEntry::from).collect(toList());
+    List<LogEntry> log = messages.stream().map(LogEntry::from).collect(toList());
 
     return new HtmlLog(title, subtitle, log);
   }
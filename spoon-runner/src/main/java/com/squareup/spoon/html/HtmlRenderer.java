@@ -4,7 +4,9 @@ import com.android.ddmlib.logcat.LogCatMessage;
 import com.github.mustachejava.DefaultMustacheFactory;
 import com.github.mustachejava.Mustache;
 import com.github.mustachejava.MustacheFactory;
+import com.google.common.base.Throwables;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.gson.Gson;
 import com.squareup.spoon.DeviceDetails;
 import com.squareup.spoon.DeviceResult;
@@ -19,9 +21,18 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.lesscss.LessCompiler;
@@ -31,6 +42,7 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 /** Renders a {@link com.squareup.spoon.SpoonSummary} as static HTML to an output directory. */
 public final class HtmlRenderer {
   public static final String INDEX_FILENAME = "index.html";
+  public static final String RESULT_FILENAME = "result.json";
   private static final String STATIC_DIRECTORY = "static";
   private static final String[] STATIC_ASSETS = {
     "bootstrap.min.css", "bootstrap-responsive.min.css", "bootstrap.min.js", "jquery.min.js",
@@ -41,11 +53,21 @@ public final class HtmlRenderer {
   private final SpoonSummary summary;
   private final Gson gson;
   private final File output;
+  private final ExecutorService executor;
 
   public HtmlRenderer(SpoonSummary summary, Gson gson, File output) {
+    this(summary, gson, output, MoreExecutors.newDirectExecutorService());
+  }
+
+  /**
+   * @param executor Runs the rendering of individual device, test and log pages, which are
+   * independent of each other.
+   */
+  public HtmlRenderer(SpoonSummary summary, Gson gson, File output, ExecutorService executor) {
     this.summary = summary;
     this.gson = gson;
     this.output = output;
+    this.executor = executor;
   }
 
   public void render() {
@@ -58,10 +80,29 @@ public final class HtmlRenderer {
     MustacheFactory mustacheFactory = new DefaultMustacheFactory();
     generateTvHtml(mustacheFactory);
     generateIndexHtml(mustacheFactory);
-    generateDeviceHtml(mustacheFactory);
-    generateTestHtml(mustacheFactory);
-    generateLogHtml(mustacheFactory);
-    saveRawLog();
+    generateDeviceHtml(mustacheFactory, serial -> true);
+    generateTestHtml(mustacheFactory, test -> true);
+    generateLogs(mustacheFactory, (serial, test) -> true);
+  }
+
+  /**
+   * Render over an earlier report of the same output only the pages which change with the
+   * results of {@code updated} tests, by device serial.
+   */
+  public void render(Map<String, ? extends Collection<DeviceTest>> updated) {
+    Set<DeviceTest> updatedTests = new HashSet<>();
+    updated.values().forEach(updatedTests::addAll);
+    BiPredicate<String, DeviceTest> isUpdated = (serial, test) ->
+        updated.containsKey(serial) && updated.get(serial).contains(test);
+
+    writeResultJson();
+
+    MustacheFactory mustacheFactory = new DefaultMustacheFactory();
+    generateTvHtml(mustacheFactory);
+    generateIndexHtml(mustacheFactory);
+    generateDeviceHtml(mustacheFactory, updated::containsKey);
+    generateTestHtml(mustacheFactory, updatedTests::contains);
+    generateLogs(mustacheFactory, isUpdated);
   }
 
   private void copyStaticAssets() {
@@ -86,7 +127,7 @@ public final class HtmlRenderer {
 
   private void writeResultJson() {
     try (Writer result = new BufferedWriter(
-        new OutputStreamWriter(new FileOutputStream(new File(output, "result.json")), UTF_8))) {
+        new OutputStreamWriter(new FileOutputStream(new File(output, RESULT_FILENAME)), UTF_8))) {
       gson.toJson(summary, result);
     } catch (IOException e) {
       throw new RuntimeException("Unable to write result.json file.", e);
@@ -107,63 +148,103 @@ public final class HtmlRenderer {
     renderMustacheToFile(mustache, scope, file);
   }
 
-  private void generateDeviceHtml(MustacheFactory mustacheFactory) {
+  private void generateDeviceHtml(MustacheFactory mustacheFactory, Predicate<String> serials) {
     Mustache mustache = mustacheFactory.compile("page/device.html");
+    List<Runnable> pages = new ArrayList<>();
     for (Map.Entry<String, DeviceResult> entry : summary.getResults().entrySet()) {
-      String serial = entry.getKey();
-      HtmlDevice scope = HtmlDevice.from(serial, entry.getValue(), output);
-      File file = FileUtils.getFile(output, "device", serial + ".html");
-      renderMustacheToFile(mustache, scope, file);
+      if (!serials.test(entry.getKey())) {
+        continue;
+      }
+      pages.add(() -> {
+        String serial = entry.getKey();
+        HtmlDevice scope = HtmlDevice.from(serial, entry.getValue(), output);
+        File file = FileUtils.getFile(output, "device", serial + ".html");
+        renderMustacheToFile(mustache, scope, file);
+      });
     }
+    runAll(pages);
   }
 
-  private void generateTestHtml(MustacheFactory mustacheFactory) {
+  private void generateTestHtml(MustacheFactory mustacheFactory, Predicate<DeviceTest> filter) {
     Mustache mustache = mustacheFactory.compile("page/test.html");
     // Create a set of unique tests.
     Set<DeviceTest> tests = new LinkedHashSet<>();
     for (DeviceResult deviceResult : summary.getResults().values()) {
       tests.addAll(deviceResult.getTestResults().keySet());
     }
+    tests.removeIf(filter.negate());
     // Generate a page for each one.
+    List<Runnable> pages = new ArrayList<>();
     for (DeviceTest test : tests) {
-      HtmlTest scope = HtmlTest.from(test, summary, output);
-      File file =
-          FileUtils.getFile(output, "test", test.getClassName(), test.getMethodName() + ".html");
-      renderMustacheToFile(mustache, scope, file);
+      pages.add(() -> {
+        HtmlTest scope = HtmlTest.from(test, summary, output);
+        File file =
+            FileUtils.getFile(output, "test", test.getClassName(), test.getMethodName() + ".html");
+        renderMustacheToFile(mustache, scope, file);
+      });
     }
+    runAll(pages);
   }
 
-  private void generateLogHtml(MustacheFactory mustacheFactory) {
+  /**
+   * Render the log page and save the raw log of each test. A spooled log is read from disk once
+   * for both.
+   */
+  private void generateLogs(MustacheFactory mustacheFactory,
+      BiPredicate<String, DeviceTest> filter) {
     Mustache mustache = mustacheFactory.compile("page/log.html");
+    List<Runnable> pages = new ArrayList<>();
     for (Map.Entry<String, DeviceResult> resultEntry : summary.getResults().entrySet()) {
       String serial = resultEntry.getKey();
       DeviceResult result = resultEntry.getValue();
       DeviceDetails details = result.getDeviceDetails();
       String name = (details != null) ? details.getName() : serial;
       for (Map.Entry<DeviceTest, DeviceTestResult> entry : result.getTestResults().entrySet()) {
-        DeviceTest test = entry.getKey();
-        HtmlLog scope = HtmlLog.from(name, test, entry.getValue());
-        File file = FileUtils.getFile(output, "logs", serial, test.getClassName(),
-            test.getMethodName() + ".html");
-        renderMustacheToFile(mustache, scope, file);
+        if (!filter.test(serial, entry.getKey())) {
+          continue;
+        }
+        pages.add(() -> {
+          DeviceTest test = entry.getKey();
+          List<LogCatMessage> log = entry.getValue().getLog();
+          HtmlLog scope = HtmlLog.from(name, test, entry.getValue(), log);
+          File file = FileUtils.getFile(output, "logs", serial, test.getClassName(),
+              test.getMethodName() + ".html");
+          renderMustacheToFile(mustache, scope, file);
+
+          File rawFile = FileUtils.getFile(output, "logs", serial, test.getClassName(),
+              test.getMethodName() + ".log");
+          FileUtils.deleteQuietly(rawFile); // Left by an earlier render of the same test.
+          saveRawLogFile(rawFile, log);
+        });
       }
     }
+    runAll(pages);
   }
 
-  private void saveRawLog() {
-    for (Map.Entry<String, DeviceResult> resultEntry : summary.getResults().entrySet()) {
-      String serial = resultEntry.getKey();
-      DeviceResult result = resultEntry.getValue();
-      for (Map.Entry<DeviceTest, DeviceTestResult> entry : result.getTestResults().entrySet()) {
-        DeviceTest test = entry.getKey();
-        File rawFile = FileUtils.getFile(output, "logs", serial, test.getClassName(),
-            test.getMethodName() + ".log");
-        saveRawLogFile(rawFile, entry.getValue());
+  /** Run {@code tasks} on the executor and wait for all of them, rethrowing the first failure. */
+  private void runAll(List<Runnable> tasks) {
+    List<Future<?>> futures = new ArrayList<>();
+    for (Runnable task : tasks) {
+      futures.add(executor.submit(task));
+    }
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } finally {
+      for (Future<?> future : futures) {
+        future.cancel(false);
       }
     }
   }
 
-  private void saveRawLogFile(File rawFile, DeviceTestResult deviceTestResult) {
+  private void saveRawLogFile(File rawFile, List<LogCatMessage> log) {
     rawFile.getParentFile().mkdirs();
     try {
       if (!rawFile.createNewFile() || !rawFile.canWrite()) {
@@ -175,7 +256,7 @@ public final class HtmlRenderer {
 
     try (Writer writer = new BufferedWriter(
         new OutputStreamWriter(new FileOutputStream(rawFile), UTF_8))) {
-      for (LogCatMessage logCatMessage : deviceTestResult.getLog()) {
+      for (LogCatMessage logCatMessage : log) {
         writer.write(logCatMessage.getTimestamp().toString());
         writer.write(" ");
         writer.write(logCatMessage.getLogLevel().getStringValue());
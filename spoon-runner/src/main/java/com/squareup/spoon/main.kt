@@ -25,13 +25,33 @@ fun main(vararg args: String) {
     setGrantAll(cli.grantAll)
     setNoAnimations(cli.disableGif)
     cli.adbTimeout?.let(this::setAdbTimeout)
+    cli.testTimeout?.let(this::setTestTimeout)
+    cli.sizeTimeouts?.forEach { (size, timeout) -> setTestTimeout(size, timeout) }
+    cli.deviceProbeTimeout?.let(this::setDeviceProbeTimeout)
     cli.serials.forEach { addDevice(it) }
     cli.skipSerials.forEach { skipDevice(it) }
     setShard(cli.shard)
     setDebug(cli.debug)
     setCodeCoverage(cli.coverage)
+    cli.coverageBatchSize?.let(this::setCoverageBatchSize)
     setSingleInstrumentationCall(cli.singleInstrumentationCall)
     setClearAppDataBeforeEachTest(cli.clearAppDataBeforeEachTest)
+    setFailFast(cli.failFast)
+    setQuarantine(cli.quarantine)
+    setResume(cli.resume)
+    setRerunFailures(cli.rerunFailures)
+    if (cli.changedClasses.isNotEmpty()) {
+      setChangedClasses(cli.changedClasses)
+    }
+    cli.coverageIndex?.let(this::setCoverageIndex)
+    cli.screenshotFormat?.let(this::setScreenshotFormat)
+    cli.screenshotQuality?.let(this::setScreenshotQuality)
+    cli.screenshotMaxDimension?.let(this::setScreenshotMaxDimension)
+    cli.screenshotScale?.let(this::setScreenshotScale)
+    cli.logcatBufferSize?.let(this::setLogcatBufferSize)
+    cli.logcatTags.forEach { addLogcatTag(it) }
+    cli.logcatPriority?.let(this::setLogcatMinPriority)
+    setLogcatPidFilter(cli.logcatPidFilter)
   }.build()
 
   if (!runner.run() && !cli.alwaysZero) {
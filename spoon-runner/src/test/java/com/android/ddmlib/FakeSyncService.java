@@ -0,0 +1,40 @@
+package com.android.ddmlib;
+
+import com.android.ddmlib.FileListingService.FileEntry;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A {@link SyncService} which pulls directories from files kept in memory by remote path, in place
+ * of those on a device. It lives in ddmlib's package since only that can extend it.
+ */
+public final class FakeSyncService extends SyncService {
+  /** The remote paths of the directories pulled, in order. */
+  public final List<String> pulled = new CopyOnWriteArrayList<>();
+  private final Map<String, byte[]> files;
+
+  public FakeSyncService(Map<String, byte[]> files) {
+    super(null, null);
+    this.files = files;
+  }
+
+  @Override public void pull(FileEntry[] entries, String localPath, ISyncProgressMonitor monitor)
+      throws IOException {
+    for (FileEntry entry : entries) {
+      String remoteDir = entry.getFullPath() + "/";
+      File localDir = new File(localPath, entry.getName());
+      localDir.mkdirs();
+      for (Map.Entry<String, byte[]> file : files.entrySet()) {
+        if (file.getKey().startsWith(remoteDir)) {
+          String name = file.getKey().substring(remoteDir.length());
+          Files.write(new File(localDir, name).toPath(), file.getValue());
+        }
+      }
+      pulled.add(entry.getFullPath());
+    }
+  }
+}
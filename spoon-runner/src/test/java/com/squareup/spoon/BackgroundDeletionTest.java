@@ -0,0 +1,33 @@
+package com.squareup.spoon;
+
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public final class BackgroundDeletionTest {
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test public void movesDirectoryAsideAndDeletesIt() throws Exception {
+    File output = temporaryFolder.newFolder("spoon-output");
+    new File(output, "image/serial").mkdirs();
+    assertThat(new File(output, "image/serial/screenshot.png").createNewFile()).isTrue();
+    // Left behind by a run which exited before its deletion finished.
+    File earlier = temporaryFolder.newFolder(".spoon-tombstone-spoon-output-1");
+    assertThat(new File(earlier, "result.json").createNewFile()).isTrue();
+
+    BackgroundDeletion deletion = BackgroundDeletion.start(output);
+    assertThat(output.exists()).isFalse();
+    assertThat(output.mkdirs()).isTrue();
+
+    deletion.await();
+    assertThat(temporaryFolder.getRoot().list()).asList().containsExactly("spoon-output");
+  }
+
+  @Test public void missingDirectoryIsNothingToDelete() throws Exception {
+    BackgroundDeletion.start(new File(temporaryFolder.getRoot(), "spoon-output")).await();
+    assertThat(temporaryFolder.getRoot().list()).isEmpty();
+  }
+}
@@ -0,0 +1,129 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatMessage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public final class CheckpointJournalTest {
+  private static final DeviceTest FIRST = new DeviceTest("com.example.FooTest", "first");
+  private static final DeviceTest SECOND = new DeviceTest("com.example.FooTest", "second");
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test public void readsBackWhatWasWritten() throws Exception {
+    File output = temporaryFolder.getRoot();
+    DeviceResult.Builder device = new DeviceResult.Builder().startTests();
+    DeviceTestResult.Builder first = new DeviceTestResult.Builder().startTest().endTest();
+    device.addTestResultBuilder(FIRST, first);
+    try (CheckpointJournal journal = new CheckpointJournal(output)) {
+      journal.testCompleted("a", FIRST, first.build());
+      journal.testCompleted("b", FIRST, first.build());
+      journal.testCompleted("b", SECOND, new DeviceTestResult.Builder().startTest().endTest()
+          .build());
+      journal.testCompleted("b", SECOND, new DeviceTestResult.Builder().startTest().endTest()
+          .markTestAsAborted("Process crashed.").build());
+      journal.testCompleted("b", FIRST, new DeviceTestResult.Builder().startTest()
+          .markTestAsIgnored().endTest().build());
+      journal.deviceCompleted("a", device.endTests().build());
+    }
+
+    CheckpointJournal.State state = CheckpointJournal.read(output);
+    assertThat(state.completedDevices.keySet()).containsExactly("a");
+    DeviceResult a = state.completedDevices.get("a");
+    assertThat(a.getTestResults().keySet()).containsExactly(FIRST);
+    assertThat(a.getTestResults().get(FIRST).getStatus()).isEqualTo(DeviceTestResult.Status.PASS);
+    assertThat(state.completedTests("b").keySet()).containsExactly(FIRST, SECOND);
+    DeviceTestResult second = state.completedTests("b").get(SECOND);
+    assertThat(second.getStatus()).isEqualTo(DeviceTestResult.Status.FAIL);
+    assertThat(second.getException().getClassName()).isEqualTo("Process crashed.");
+    assertThat(state.completedTests("c")).isEmpty();
+  }
+
+  @Test public void testsKeepTheirSpooledLog() throws Exception {
+    File output = temporaryFolder.getRoot();
+    LogcatSpool spool = new LogcatSpool(new File(output, LogcatSpool.FILE_NAME), 10);
+    spool.startTest(FIRST);
+    spool.append(new LogCatMessage(LogLevel.INFO, "inside first"));
+    LogSlice slice = spool.finishTest();
+    spool.close();
+    try (CheckpointJournal journal = new CheckpointJournal(output)) {
+      journal.testCompleted("a", FIRST, new DeviceTestResult.Builder().startTest().endTest()
+          .build());
+      // Logcat caught up with the end of the test after it was reported.
+      journal.logSpooled("a", FIRST, slice);
+      journal.logSpooled("a", SECOND, slice);
+    }
+
+    CheckpointJournal.State state = CheckpointJournal.read(output);
+    assertThat(state.completedTests("a").keySet()).containsExactly(FIRST);
+    DeviceTestResult first = DeviceTestResult.Builder
+        .restore(state.completedTests("a").get(FIRST)).build();
+    assertThat(first.getLogSlice().toString()).isEqualTo(slice.toString());
+    assertThat(first.getLog()).hasSize(1);
+    assertThat(first.getLog().get(0).getMessage()).isEqualTo("inside first");
+  }
+
+  @Test public void stopsAtLineCutShort() throws Exception {
+    File output = temporaryFolder.getRoot();
+    try (CheckpointJournal journal = new CheckpointJournal(output)) {
+      journal.testCompleted("a", FIRST, new DeviceTestResult.Builder().startTest().endTest()
+          .build());
+    }
+    try (Writer writer = new FileWriter(new File(output, CheckpointJournal.FILE_NAME), true)) {
+      writer.write("{\"serial\":\"a\",\"test\":{\"className\":\"com.exa");
+    }
+
+    CheckpointJournal.State state = CheckpointJournal.read(output);
+    assertThat(state.completedTests("a").keySet()).containsExactly(FIRST);
+  }
+
+  @Test public void resumedRunDoesNotJoinLineCutShort() throws Exception {
+    File output = temporaryFolder.getRoot();
+    try (CheckpointJournal journal = new CheckpointJournal(output)) {
+      journal.testCompleted("a", FIRST, new DeviceTestResult.Builder().startTest().endTest()
+          .build());
+    }
+    try (Writer writer = new FileWriter(new File(output, CheckpointJournal.FILE_NAME), true)) {
+      writer.write("{\"serial\":\"a\",\"test\":{\"className\":\"com.exa");
+    }
+
+    // The resumed run writes more entries and is interrupted again.
+    try (CheckpointJournal journal = new CheckpointJournal(output)) {
+      journal.testCompleted("a", SECOND, new DeviceTestResult.Builder().startTest().endTest()
+          .build());
+      journal.testCompleted("b", FIRST, new DeviceTestResult.Builder().startTest().endTest()
+          .build());
+    }
+
+    CheckpointJournal.State state = CheckpointJournal.read(output);
+    assertThat(state.completedTests("a").keySet()).containsExactly(FIRST, SECOND);
+    assertThat(state.completedTests("b").keySet()).containsExactly(FIRST);
+  }
+
+  @Test public void skipsMalformedLineBetweenEntries() throws Exception {
+    File output = temporaryFolder.getRoot();
+    try (Writer writer = new FileWriter(new File(output, CheckpointJournal.FILE_NAME))) {
+      writer.write("{\"serial\":\"a\",\"test\":{\"className\":\"com.exa\n");
+    }
+    try (CheckpointJournal journal = new CheckpointJournal(output)) {
+      journal.testCompleted("a", SECOND, new DeviceTestResult.Builder().startTest().endTest()
+          .build());
+    }
+
+    CheckpointJournal.State state = CheckpointJournal.read(output);
+    assertThat(state.completedTests("a").keySet()).containsExactly(SECOND);
+  }
+
+  @Test public void missingJournalIsEmpty() throws Exception {
+    CheckpointJournal.State state = CheckpointJournal.read(temporaryFolder.getRoot());
+    assertThat(state.completedDevices).isEmpty();
+    assertThat(state.completedTests).isEmpty();
+  }
+}
@@ -0,0 +1,147 @@
+package com.squareup.spoon
+
+import com.google.common.truth.Truth.assertThat
+import org.jacoco.core.data.ExecutionData
+import org.jacoco.core.data.ExecutionDataWriter
+import org.junit.Assert.fail
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.concurrent.Executors
+
+class CoverageIndexTest {
+  @JvmField @Rule val testFolder = TemporaryFolder()
+
+  private val testPackage = "com.example.test"
+  private val first = DeviceTest("com.example.FooTest", "first")
+  private val second = DeviceTest("com.example.FooTest", "second")
+  private val third = DeviceTest("com.example.BarTest", "third")
+
+  @Test fun indexesClassesWithHitProbes() {
+    val output = testFolder.newFolder("output")
+    val a = testFolder.newFolder("output", "coverage", "a")
+    val b = testFolder.newFolder("output", "coverage", "b")
+    writeCoverage(File(a, "${first}_coverage.ec"), "com/example/Foo" to true,
+        "com/example/Bar" to false)
+    writeCoverage(File(a, "${second}_coverage.ec"), "com/example/Foo\$Inner" to true)
+    writeCoverage(File(b, "${second}_coverage.ec"), "com/example/Bar" to true)
+    writeCoverage(File(b, "${third}_coverage.ec"), "com/example/Bar" to false)
+    // The merged coverage of a device is not that of a test.
+    writeCoverage(File(b, "coverage.ec"), "com/example/Baz" to true)
+
+    val index = build(output, "a", "b")
+
+    assertThat(index.tests).containsExactly(first, second, third)
+    assertThat(index.affectedTests(listOf("com.example.Foo"))).containsExactly(first, second)
+    assertThat(index.affectedTests(listOf("com/example/Bar"))).containsExactly(second)
+    assertThat(index.affectedTests(listOf("com.example.Foo\$Inner"))).containsExactly(second)
+    assertThat(index.affectedTests(listOf("com.example.Fo", "com.example.Baz"))).isEmpty()
+    // A changed test class affects its own tests.
+    assertThat(index.affectedTests(listOf("com.example.BarTest"))).containsExactly(third)
+  }
+
+  @Test fun changedClassesNoTestTouchedAreUnindexed() {
+    val output = testFolder.newFolder("output")
+    val a = testFolder.newFolder("output", "coverage", "a")
+    writeCoverage(File(a, "${first}_coverage.ec"), "com/example/Foo\$Inner" to true,
+        "com/example/Bar" to false)
+
+    val index = build(output, "a")
+
+    assertThat(index.unindexedClasses(listOf("com.example.Foo", "com/example/Foo\$Inner",
+        "com.example.FooTest"))).isEmpty()
+    assertThat(index.unindexedClasses(listOf("com.example.Foo", "com.example.Bar",
+        "com.example.Foo\$Other"))).containsExactly("com.example.Bar", "com.example.Foo\$Other")
+  }
+
+  @Test fun readsBackWhatWasSaved() {
+    val output = testFolder.newFolder("output")
+    val a = testFolder.newFolder("output", "coverage", "a")
+    writeCoverage(File(a, "${first}_coverage.ec"), "com/example/Foo" to true)
+    writeCoverage(File(a, "${third}_coverage.ec"), "com/example/Foo" to false)
+    val file = File(output, CoverageIndex.FILE_NAME)
+
+    build(output, "a").save(file)
+    val index = CoverageIndex.read(file)
+
+    assertThat(index.testPackage).isEqualTo(testPackage)
+    assertThat(index.tests).containsExactly(first, third)
+    assertThat(index.affectedTests(listOf("com.example.Foo"))).containsExactly(first)
+  }
+
+  @Test fun indexOfAnotherVersionIsNotRead() {
+    val file = testFolder.newFile(CoverageIndex.FILE_NAME)
+    // Written before indexes had a version.
+    file.writeText("""{"tests":["com.example.FooTest#first"],"classes":{}}""")
+
+    try {
+      CoverageIndex.read(file)
+      fail()
+    } catch (e: IOException) {
+      assertThat(e).hasMessage("Coverage index from another version of Spoon: $file")
+    }
+  }
+
+  @Test fun indexWithTestOutOfRangeIsNotRead() {
+    val file = testFolder.newFile(CoverageIndex.FILE_NAME)
+    file.writeText("""{"version":1,"testPackage":"$testPackage",
+        "tests":["com.example.FooTest#first"],"classes":{"com.example.Foo":[0,1]}}""")
+
+    try {
+      CoverageIndex.read(file)
+      fail()
+    } catch (e: IOException) {
+      assertThat(e).hasMessage("Malformed coverage index, no test 1: $file")
+    }
+  }
+
+  @Test fun indexWithoutTestsIsNotRead() {
+    val file = testFolder.newFile(CoverageIndex.FILE_NAME)
+    file.writeText("""{"version":1,"testPackage":"$testPackage","classes":{}}""")
+
+    try {
+      CoverageIndex.read(file)
+      fail()
+    } catch (e: IOException) {
+      assertThat(e).hasMessage("Malformed coverage index: $file")
+    }
+  }
+
+  @Test fun updateReplacesTestsWhichRanAgain() {
+    val earlier = testFolder.newFolder("earlier")
+    val a = testFolder.newFolder("earlier", "coverage", "a")
+    writeCoverage(File(a, "${first}_coverage.ec"), "com/example/Foo" to true)
+    writeCoverage(File(a, "${third}_coverage.ec"), "com/example/Bar" to true)
+    val later = testFolder.newFolder("later")
+    val b = testFolder.newFolder("later", "coverage", "a")
+    writeCoverage(File(b, "${first}_coverage.ec"), "com/example/Bar" to true)
+
+    val index = build(earlier, "a").update(build(later, "a"))
+
+    assertThat(index.tests).containsExactly(first, third)
+    assertThat(index.affectedTests(listOf("com.example.Foo"))).isEmpty()
+    assertThat(index.affectedTests(listOf("com.example.Bar"))).containsExactly(first, third)
+  }
+
+  private fun build(output: File, vararg serials: String): CoverageIndex {
+    val executor = Executors.newFixedThreadPool(2)
+    try {
+      return CoverageIndex.build(testPackage, serials.toSet(), output, executor)
+    } finally {
+      executor.shutdown()
+    }
+  }
+
+  private fun writeCoverage(file: File, vararg classes: Pair<String, Boolean>) {
+    FileOutputStream(file).use {
+      val writer = ExecutionDataWriter(it)
+      classes.forEach { (name, hit) ->
+        writer.visitClassExecution(
+            ExecutionData(name.hashCode().toLong(), name, booleanArrayOf(hit, false)))
+      }
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.android.ddmlib.logcat.LogCatTimestamp;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public final class CrashDetectorTest {
+  private final CrashDetector detector =
+      new CrashDetector(ImmutableSet.of("com.example", "com.example.test"));
+
+  @Test public void fatalExceptionInWatchedProcess() {
+    assertThat(detector.accept(message(100, "AndroidRuntime", "FATAL EXCEPTION: main"))).isFalse();
+    assertThat(detector.accept(message(100, "AndroidRuntime", "Process: com.example, PID: 100")))
+        .isTrue();
+    detector.accept(message(100, "AndroidRuntime", "java.lang.IllegalStateException: Boom"));
+    detector.accept(message(200, "AndroidRuntime", "unrelated"));
+
+    assertThat(detector.getReport()).isEqualTo("FATAL EXCEPTION: main\n"
+        + "Process: com.example, PID: 100\n"
+        + "java.lang.IllegalStateException: Boom");
+  }
+
+  @Test public void fatalExceptionInOtherProcessIgnored() {
+    detector.accept(message(100, "AndroidRuntime", "FATAL EXCEPTION: main"));
+    assertThat(detector.accept(message(100, "AndroidRuntime", "Process: com.other, PID: 100")))
+        .isFalse();
+    assertThat(detector.getReport()).isNull();
+  }
+
+  @Test public void anrInSubProcess() {
+    assertThat(detector.accept(message(1, "ActivityManager",
+        "ANR in com.example:remote (com.example/.RemoteService)"))).isTrue();
+  }
+
+  @Test public void nativeCrash() {
+    assertThat(detector.accept(message(300, "libc", "Fatal signal 11 (SIGSEGV), code 1, "
+        + "fault addr 0x0 in tid 301 (RenderThread), pid 300 (com.example.test)"))).isTrue();
+  }
+
+  @Test public void tombstone() {
+    assertThat(detector.accept(message(50, "DEBUG",
+        "pid: 300, tid: 301, name: RenderThread  >>> com.example <<<"))).isTrue();
+  }
+
+  @Test public void resetForgetsCrash() {
+    detector.accept(message(1, "ActivityManager", "ANR in com.example"));
+    detector.reset();
+    assertThat(detector.getReport()).isNull();
+    assertThat(detector.accept(message(1, "ActivityManager", "ANR in com.example"))).isTrue();
+  }
+
+  private static LogCatMessage message(int pid, String tag, String text) {
+    return new LogCatMessage(LogLevel.ERROR, pid, pid, "?", tag, LogCatTimestamp.ZERO, text);
+  }
+}
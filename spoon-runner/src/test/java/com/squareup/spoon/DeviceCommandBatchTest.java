@@ -0,0 +1,51 @@
+package com.squareup.spoon;
+
+import java.util.List;
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+public final class DeviceCommandBatchTest {
+  private final DeviceCommandBatch batch = new DeviceCommandBatch()
+      .add("rm -rf /sdcard/foo")
+      .add("pm grant com.example android.permission.CAMERA")
+      .add("printf hi");
+
+  @Test public void script() {
+    assertThat(batch.script()).isEqualTo(""
+        + "rm -rf /sdcard/foo; s=$?; echo; echo \"@@spoon 0 $s\"; "
+        + "pm grant com.example android.permission.CAMERA; s=$?; echo; echo \"@@spoon 1 $s\"; "
+        + "printf hi; s=$?; echo; echo \"@@spoon 2 $s\"");
+    assertThat(batch.getSavedRoundTrips()).isEqualTo(2);
+  }
+
+  @Test public void parseSplitsOutputAndStatus() {
+    List<DeviceCommandBatch.Result> results = batch.parse(""
+        + "\r\n"
+        + "@@spoon 0 0\r\n"
+        + "Operation not allowed: no such permission\r\n"
+        + "\r\n"
+        + "@@spoon 1 255\r\n"
+        + "hi\r\n"
+        + "@@spoon 2 0\r\n");
+
+    assertThat(results).hasSize(3);
+    assertThat(results.get(0).isSuccessful()).isTrue();
+    assertThat(results.get(0).output).isEmpty();
+    assertThat(results.get(1).command)
+        .isEqualTo("pm grant com.example android.permission.CAMERA");
+    assertThat(results.get(1).exitStatus).isEqualTo(255);
+    assertThat(results.get(1).output).isEqualTo("Operation not allowed: no such permission");
+    assertThat(results.get(2).output).isEqualTo("hi");
+  }
+
+  @Test public void truncatedOutputFails() {
+    try {
+      batch.parse("\n@@spoon 0 0\n");
+      fail();
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessage("Shell output ended after 1 of 3 commands.");
+    }
+  }
+}
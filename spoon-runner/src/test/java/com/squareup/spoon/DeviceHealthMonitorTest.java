@@ -0,0 +1,130 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public final class DeviceHealthMonitorTest {
+  private static final TestIdentifier TEST = new TestIdentifier("com.example.FooTest", "foo");
+
+  private final DeviceHealthMonitor monitor =
+      new DeviceHealthMonitor(Arrays.asList("fast", "slow"), true, false, true);
+
+  @Test public void slowDeviceIsQuarantined() {
+    for (int i = 0; i < 10; i++) {
+      monitor.recordTest("fast", 100);
+    }
+    for (int i = 0; i < DeviceHealthMonitor.RECENT_SAMPLES - 1; i++) {
+      monitor.recordTest("slow", 1000);
+    }
+    assertThat(monitor.getQuarantineReason("slow")).isNull();
+
+    monitor.recordTest("slow", 1000);
+    assertThat(monitor.getQuarantineReason("slow"))
+        .isEqualTo("Recent tests took 1000 ms at the median, over 4 times the suite median of "
+            + "100 ms.");
+    assertThat(monitor.getQuarantineReason("fast")).isNull();
+  }
+
+  @Test public void slowDeviceIsNotJudgedWhenSharded() {
+    DeviceHealthMonitor monitor =
+        new DeviceHealthMonitor(Arrays.asList("fast", "slow"), true, true, true);
+    for (int i = 0; i < 10; i++) {
+      monitor.recordTest("fast", 100);
+      monitor.recordTest("slow", 1000);
+    }
+    assertThat(monitor.getQuarantineReasons()).isEmpty();
+  }
+
+  @Test public void repeatedFailuresQuarantine() {
+    monitor.recordFailure("slow", "first");
+    monitor.recordFailure("slow", "second");
+    assertThat(monitor.getQuarantineReasons()).isEmpty();
+
+    monitor.recordFailure("slow", "third");
+    assertThat(monitor.getQuarantineReasons())
+        .containsExactly("slow", "3 device failures in a row, the last being: third");
+  }
+
+  @Test public void successResetsFailures() {
+    monitor.recordFailure("slow", "first");
+    monitor.recordFailure("slow", "second");
+    monitor.recordSuccess("slow");
+    monitor.recordFailure("slow", "third");
+    monitor.recordFailure("slow", "fourth");
+    monitor.recordTest("slow", 100);
+    monitor.recordFailure("slow", "fifth");
+    monitor.recordFailure("slow", "sixth");
+    assertThat(monitor.getQuarantineReasons()).isEmpty();
+  }
+
+  @Test public void disabledMonitorNeverQuarantines() {
+    DeviceHealthMonitor monitor =
+        new DeviceHealthMonitor(Arrays.asList("a", "b"), false, false, false);
+    for (int i = 0; i < DeviceHealthMonitor.MAX_FAILURES; i++) {
+      monitor.recordFailure("a", "failure");
+    }
+    monitor.quarantine("b", "Broken.");
+    assertThat(monitor.getQuarantineReasons()).isEmpty();
+  }
+
+  @Test public void orphansGoToHealthyDevices() throws Exception {
+    monitor.quarantine("slow", "Broken.");
+    assertThat(monitor.handOff(Arrays.asList(DeviceHealthMonitor.Orphan.test(TEST),
+        DeviceHealthMonitor.Orphan.shard(1)))).isTrue();
+    monitor.finish("slow");
+
+    assertThat(monitor.takeOrphan("slow")).isNull();
+    DeviceHealthMonitor.Orphan test = monitor.takeOrphan("fast");
+    assertThat(test.isShard()).isFalse();
+    assertThat(test.test).isEqualTo(TEST);
+    DeviceHealthMonitor.Orphan shard = monitor.takeOrphan("fast");
+    assertThat(shard.isShard()).isTrue();
+    assertThat(shard.shardIndex).isEqualTo(1);
+    assertThat(monitor.takeOrphan("fast")).isNull();
+  }
+
+  @Test public void healthyDevicesWithoutOrphansFinish() throws Exception {
+    Future<DeviceHealthMonitor.Orphan> slow = takeOrphanInBackground("slow");
+    Future<DeviceHealthMonitor.Orphan> fast = takeOrphanInBackground("fast");
+    assertThat(slow.get(10, TimeUnit.SECONDS)).isNull();
+    assertThat(fast.get(10, TimeUnit.SECONDS)).isNull();
+  }
+
+  @Test public void waitingDeviceTakesOrphansOfWorkingDevice() throws Exception {
+    Future<DeviceHealthMonitor.Orphan> fast = takeOrphanInBackground("fast");
+    Thread.sleep(100);
+    assertThat(fast.isDone()).isFalse(); // The slow device may still hand off work.
+
+    monitor.quarantine("slow", "Broken.");
+    monitor.handOff(Collections.singletonList(DeviceHealthMonitor.Orphan.test(TEST)));
+    assertThat(fast.get(10, TimeUnit.SECONDS).test).isEqualTo(TEST);
+
+    fast = takeOrphanInBackground("fast");
+    assertThat(monitor.takeOrphan("slow")).isNull();
+    assertThat(fast.get(10, TimeUnit.SECONDS)).isNull();
+  }
+
+  @Test public void noHandOffWithoutSharding() throws Exception {
+    DeviceHealthMonitor monitor =
+        new DeviceHealthMonitor(Arrays.asList("a", "b"), true, false, false);
+    assertThat(monitor.handOff(Collections.singletonList(DeviceHealthMonitor.Orphan.test(TEST))))
+        .isFalse();
+    assertThat(monitor.takeOrphan("a")).isNull();
+  }
+
+  private Future<DeviceHealthMonitor.Orphan> takeOrphanInBackground(String serial) {
+    FutureTask<DeviceHealthMonitor.Orphan> task =
+        new FutureTask<>(() -> monitor.takeOrphan(serial));
+    Thread thread = new Thread(task, "take-orphan-" + serial);
+    thread.setDaemon(true);
+    thread.start();
+    return task;
+  }
+}
@@ -0,0 +1,52 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.Collections.emptyMap;
+
+public final class FailFastTest {
+  private static final TestIdentifier FIRST = new TestIdentifier("com.example.FooTest", "first");
+  private static final TestIdentifier SECOND = new TestIdentifier("com.example.FooTest", "second");
+
+  @Test public void failedTestAbortsOtherDevicesOnceItEnds() {
+    FailFast failFast = new FailFast(true);
+    ITestRunListener failing = failFast.listener("a");
+    ITestRunListener other = failFast.listener("b");
+    AtomicInteger aborts = new AtomicInteger();
+    assertThat(failFast.watch("b", aborts::incrementAndGet)).isTrue();
+    other.testStarted(SECOND);
+
+    failing.testStarted(FIRST);
+    failing.testFailed(FIRST, "java.lang.AssertionError");
+    assertThat(failFast.isTripped()).isFalse();
+
+    failing.testEnded(FIRST, emptyMap());
+    assertThat(failFast.getReason())
+        .isEqualTo("Cancelled after com.example.FooTest#first failed on a.");
+    assertThat(aborts.get()).isEqualTo(1);
+    assertThat(failFast.getCurrentTest("b")).isEqualTo(SECOND);
+    assertThat(failFast.getCurrentTest("a")).isNull();
+    assertThat(failFast.watch("b", aborts::incrementAndGet)).isFalse();
+  }
+
+  @Test public void passingTestsDoNotTrip() {
+    FailFast failFast = new FailFast(true);
+    ITestRunListener listener = failFast.listener("a");
+    listener.testStarted(FIRST);
+    listener.testEnded(FIRST, emptyMap());
+    listener.testStarted(SECOND);
+    listener.testIgnored(SECOND);
+    listener.testEnded(SECOND, emptyMap());
+    assertThat(failFast.isTripped()).isFalse();
+  }
+
+  @Test public void disabledNeverTrips() {
+    FailFast failFast = new FailFast(false);
+    failFast.trip("a", "com.example.FooTest#first");
+    assertThat(failFast.isTripped()).isFalse();
+  }
+}
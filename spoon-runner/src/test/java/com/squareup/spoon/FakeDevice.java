@@ -0,0 +1,96 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.FakeSyncService;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.google.common.base.Defaults;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * An {@link IDevice} which records the shell commands it is sent and answers them from a
+ * {@link Shell}, reads its system properties from {@link Properties}, keeps the files pushed to
+ * it, and syncs the files {@link #stored} on it. Every other method returns the default value of
+ * its type.
+ */
+final class FakeDevice implements InvocationHandler {
+  interface Shell {
+    String run(String command) throws Exception;
+  }
+
+  interface Properties {
+    String get(String name) throws Exception;
+  }
+
+  final String serial;
+  final BlockingQueue<String> commands = new LinkedBlockingQueue<>();
+  /** The contents of the files pushed to the device, by remote path. */
+  final Map<String, byte[]> pushed = new ConcurrentHashMap<>();
+  /** The contents of the files on the device to be pulled, by remote path. */
+  final Map<String, byte[]> stored = new ConcurrentHashMap<>();
+  final FakeSyncService sync = new FakeSyncService(stored);
+  private volatile Shell shell = command -> "";
+  private volatile Properties properties = name -> null;
+
+  FakeDevice(String serial) {
+    this.serial = serial;
+  }
+
+  FakeDevice shell(Shell shell) {
+    this.shell = shell;
+    return this;
+  }
+
+  FakeDevice properties(Properties properties) {
+    this.properties = properties;
+    return this;
+  }
+
+  FakeDevice apiLevel(int apiLevel) {
+    return properties(name -> "ro.build.version.sdk".equals(name) ? "" + apiLevel : null);
+  }
+
+  IDevice device() {
+    return (IDevice) Proxy.newProxyInstance(IDevice.class.getClassLoader(),
+        new Class<?>[] {IDevice.class}, this);
+  }
+
+  @Override public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    switch (method.getName()) {
+      case "getSerialNumber":
+        return serial;
+      case "getProperty":
+        return properties.get((String) args[0]);
+      case "executeShellCommand":
+        String command = (String) args[0];
+        commands.add(command);
+        byte[] output = shell.run(command).getBytes(UTF_8);
+        IShellOutputReceiver receiver = (IShellOutputReceiver) args[1];
+        receiver.addOutput(output, 0, output.length);
+        receiver.flush();
+        return null;
+      case "pushFile":
+        pushed.put((String) args[1], Files.readAllBytes(Paths.get((String) args[0])));
+        return null;
+      case "getSyncService":
+        return sync;
+      case "equals":
+        return proxy == args[0];
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "toString":
+        return "FakeDevice " + serial;
+      default:
+        return Defaults.defaultValue(method.getReturnType());
+    }
+  }
+}
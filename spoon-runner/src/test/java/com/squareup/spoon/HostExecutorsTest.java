@@ -0,0 +1,34 @@
+package com.squareup.spoon;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+public final class HostExecutorsTest {
+  @Test public void deviceWorkersRunAtTheSameTime() throws Exception {
+    int devices = 8;
+    ExecutorService executor = HostExecutors.newDeviceExecutor(devices, false);
+    CountDownLatch started = new CountDownLatch(devices);
+    CountDownLatch done = new CountDownLatch(devices);
+    try {
+      for (int i = 0; i < devices; i++) {
+        executor.execute(() -> {
+          started.countDown();
+          try {
+            // Only returns if every other worker got a thread too.
+            if (started.await(10, SECONDS)) {
+              done.countDown();
+            }
+          } catch (InterruptedException ignored) {
+          }
+        });
+      }
+      assertThat(done.await(10, SECONDS)).isTrue();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
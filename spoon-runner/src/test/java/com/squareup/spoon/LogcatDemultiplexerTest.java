@@ -0,0 +1,117 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.android.ddmlib.logcat.LogCatTimestamp;
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public final class LogcatDemultiplexerTest {
+  private static final DeviceTest FIRST = new DeviceTest("com.example.FooTest", "first");
+  private static final DeviceTest SECOND = new DeviceTest("com.example.FooTest", "second");
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test public void splitsMessagesByTest() throws Exception {
+    LogcatDemultiplexer demultiplexer = newDemultiplexer(2);
+    demultiplexer.accept(message(100, "Foo", "before any test"));
+    demultiplexer.accept(message(100, "TestRunner", "started: first(com.example.FooTest)"));
+    demultiplexer.accept(message(100, "Foo", "inside first"));
+    demultiplexer.accept(message(100, "TestRunner", "finished: first(com.example.FooTest)"));
+    demultiplexer.accept(message(100, "Foo", "between tests"));
+    demultiplexer.accept(message(100, "TestRunner", "started: second(com.example.FooTest)"));
+    demultiplexer.accept(message(100, "Foo", "inside second"));
+    demultiplexer.accept(message(100, "TestRunner", "finished: second(com.example.FooTest)"));
+
+    Map<DeviceTest, LogSlice> logs = demultiplexer.finish();
+    assertThat(logs.keySet()).containsExactly(FIRST, SECOND).inOrder();
+    List<LogCatMessage> first = logs.get(FIRST).read();
+    assertThat(first).hasSize(3);
+    assertThat(first.get(1).getMessage()).isEqualTo("inside first");
+    List<LogCatMessage> second = logs.get(SECOND).read();
+    assertThat(second).hasSize(3);
+    assertThat(second.get(1).getMessage()).isEqualTo("inside second");
+    assertThat(second.get(1).getPid()).isEqualTo(100);
+    assertThat(second.get(1).getLogLevel()).isEqualTo(LogLevel.INFO);
+  }
+
+  @Test public void dropsMessagesFromOtherProcesses() throws Exception {
+    LogcatDemultiplexer demultiplexer = newDemultiplexer(100);
+    demultiplexer.accept(message(100, "TestRunner", "started: first(com.example.FooTest)"));
+    demultiplexer.accept(message(200, "Other", "other process"));
+    demultiplexer.accept(message(100, "Foo", "same process"));
+    demultiplexer.accept(message(100, "TestRunner", "finished: first(com.example.FooTest)"));
+
+    List<LogCatMessage> log = demultiplexer.finish().get(FIRST).read();
+    assertThat(log).hasSize(3);
+    assertThat(log.get(1).getMessage()).isEqualTo("same process");
+  }
+
+  @Test public void unfinishedTestKeepsItsLog() throws Exception {
+    LogcatDemultiplexer demultiplexer = newDemultiplexer(1);
+    demultiplexer.accept(message(100, "TestRunner", "started: first(com.example.FooTest)"));
+    demultiplexer.accept(message(100, "Foo", "last words"));
+
+    LogSlice slice = demultiplexer.finish().get(FIRST);
+    assertThat(slice.getCount()).isEqualTo(2);
+    assertThat(slice.read().get(1).getMessage()).isEqualTo("last words");
+  }
+
+  @Test public void unreadableSliceLeavesLogEmpty() throws Exception {
+    LogcatDemultiplexer demultiplexer = newDemultiplexer(1);
+    demultiplexer.accept(message(100, "TestRunner", "started: first(com.example.FooTest)"));
+    LogSlice slice = demultiplexer.finish().get(FIRST);
+    assertThat(slice.getFile().delete()).isTrue();
+
+    DeviceTestResult result = new DeviceTestResult.Builder().startTest().setLogSlice(slice)
+        .endTest().build();
+    assertThat(result.getLog()).isEmpty();
+  }
+
+  @Test public void sliceIsSerializedAsItsMessages() throws Exception {
+    LogcatDemultiplexer demultiplexer = newDemultiplexer(1);
+    demultiplexer.accept(message(100, "TestRunner", "started: first(com.example.FooTest)"));
+    demultiplexer.accept(message(100, "Foo", "inside first"));
+    LogSlice slice = demultiplexer.finish().get(FIRST);
+    DeviceTestResult result = new DeviceTestResult.Builder().startTest().setLogSlice(slice)
+        .endTest().build();
+
+    String json = SpoonUtils.GSON.toJson(result);
+    assertThat(json).doesNotContain("logSlice");
+    DeviceTestResult read = SpoonUtils.GSON.fromJson(json, DeviceTestResult.class);
+    assertThat(read.getLogSlice()).isNull();
+    assertThat(read.getLog()).hasSize(2);
+    assertThat(read.getLog().get(1).getMessage()).isEqualTo("inside first");
+  }
+
+  @Test public void killedTestEndsAtNextStart() throws Exception {
+    LogcatDemultiplexer demultiplexer = newDemultiplexer(10);
+    demultiplexer.accept(message(100, "TestRunner", "started: first(com.example.FooTest)"));
+    demultiplexer.accept(message(100, "Foo", "hung"));
+    demultiplexer.accept(message(200, "TestRunner", "started: second(com.example.FooTest)"));
+    demultiplexer.accept(message(200, "Foo", "inside second"));
+    demultiplexer.accept(message(200, "TestRunner", "finished: second(com.example.FooTest)"));
+
+    Map<DeviceTest, LogSlice> logs = demultiplexer.finish();
+    assertThat(logs.get(FIRST).getCount()).isEqualTo(2);
+    List<LogCatMessage> second = logs.get(SECOND).read();
+    assertThat(second).hasSize(3);
+    assertThat(second.get(1).getMessage()).isEqualTo("inside second");
+  }
+
+  private LogcatDemultiplexer newDemultiplexer(int bufferSize) throws Exception {
+    File spool = new File(temporaryFolder.newFolder(), LogcatSpool.FILE_NAME);
+    return new LogcatDemultiplexer(new LogcatSpool(spool, bufferSize));
+  }
+
+  private static LogCatMessage message(int pid, String tag, String text) {
+    return new LogCatMessage(LogLevel.INFO, pid, pid, "com.example", tag, LogCatTimestamp.ZERO,
+        text);
+  }
+}
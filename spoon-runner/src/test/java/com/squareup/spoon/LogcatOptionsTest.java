@@ -0,0 +1,43 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.Collections.emptySet;
+
+public final class LogcatOptionsTest {
+  @Test public void unfiltered() {
+    LogcatOptions options = new LogcatOptions(10, emptySet(), null, false);
+    assertThat(options.command(28, -1, null)).isEqualTo("logcat -v long -T 1");
+    assertThat(options.command(28, 123, null)).isEqualTo("logcat -v long -T 1");
+    assertThat(options.command(18, -1, null)).isEqualTo("logcat -v long");
+  }
+
+  @Test public void minimumPriorityKeepsTestRunner() {
+    LogcatOptions options = new LogcatOptions(10, emptySet(), LogLevel.WARN, false);
+    assertThat(options.command(19, -1, null))
+        .isEqualTo("logcat -v long -T 1 TestRunner:I *:W");
+  }
+
+  @Test public void priorityAboveCrashMarkersKeepsThem() {
+    LogcatOptions options = new LogcatOptions(10, emptySet(), LogLevel.ASSERT, false);
+    assertThat(options.command(19, -1, null))
+        .isEqualTo("logcat -v long -T 1 TestRunner:I AndroidRuntime:E ActivityManager:E *:F");
+  }
+
+  @Test public void tagAllowlist() {
+    LogcatOptions options = new LogcatOptions(10,
+        ImmutableSet.of("OkHttp", "TestRunner", "AndroidRuntime"), LogLevel.ASSERT, false);
+    assertThat(options.command(19, -1, null)).isEqualTo("logcat -v long -T 1 TestRunner:I"
+        + " OkHttp:F AndroidRuntime:E ActivityManager:E DEBUG:F libc:F *:S");
+  }
+
+  @Test public void pidOnlyOnNewDevices() {
+    LogcatOptions options = new LogcatOptions(10, emptySet(), null, true);
+    assertThat(options.command(24, 123, "01-02 03:04:05.678"))
+        .isEqualTo("logcat -v long --pid=123 -T '01-02 03:04:05.678'");
+    assertThat(options.command(23, 123, null)).isEqualTo("logcat -v long -T 1");
+  }
+}
@@ -0,0 +1,147 @@
+package com.squareup.spoon;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public final class LogcatServiceTest {
+  @Test public void streamsShellOutputAsLines() throws Exception {
+    try (ServerSocket adb = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      List<String> requests = new ArrayList<>();
+      Thread server = new Thread(() -> {
+        try (Socket socket = adb.accept()) {
+          DataInputStream in = new DataInputStream(socket.getInputStream());
+          OutputStream out = socket.getOutputStream();
+          requests.add(readRequest(in));
+          out.write("OKAY".getBytes(UTF_8));
+          requests.add(readRequest(in));
+          out.write("OKAY".getBytes(UTF_8));
+          out.write("first\r\nsec".getBytes(UTF_8));
+          out.flush();
+          out.write("ond\r\r\nthird".getBytes(UTF_8));
+        } catch (IOException e) {
+          throw new AssertionError(e);
+        }
+      });
+      server.start();
+
+      List<String> lines = new ArrayList<>();
+      CountDownLatch closed = new CountDownLatch(1);
+      InetSocketAddress address = new InetSocketAddress(adb.getInetAddress(), adb.getLocalPort());
+      try (LogcatService service = new LogcatService(address, 1)) {
+        LogcatService.Stream stream = service.open("abc123", "logcat -v long",
+            new LogcatService.Listener() {
+              @Override public void onLines(List<String> newLines) {
+                lines.addAll(newLines);
+              }
+
+              @Override public void onClosed(IOException error) {
+                assertThat(error).isNull();
+                closed.countDown();
+              }
+            });
+        assertThat(closed.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(stream.getBytesRead()).isEqualTo(21);
+      }
+      server.join();
+
+      assertThat(requests).containsExactly("host:transport:abc123", "shell:logcat -v long");
+      assertThat(lines).containsExactly("first", "second", "third").inOrder();
+    }
+  }
+
+  @Test public void finishDeliversQueuedLines() throws Exception {
+    int count = 2000; // More than one batch, so most lines are still queued when finishing.
+    StringBuilder output = new StringBuilder();
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      output.append("line ").append(i).append('\n');
+      expected.add("line " + i);
+    }
+    byte[] bytes = output.toString().getBytes(UTF_8);
+
+    try (ServerSocket adb = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      CountDownLatch clientClosed = new CountDownLatch(1);
+      Thread server = new Thread(() -> {
+        try (Socket socket = adb.accept()) {
+          DataInputStream in = new DataInputStream(socket.getInputStream());
+          OutputStream out = socket.getOutputStream();
+          readRequest(in);
+          out.write("OKAY".getBytes(UTF_8));
+          readRequest(in);
+          out.write("OKAY".getBytes(UTF_8));
+          out.write(bytes);
+          out.flush();
+          // Logcat never ends by itself, so the stream stays open until the client closes it.
+          assertThat(in.read()).isEqualTo(-1);
+          clientClosed.countDown();
+        } catch (IOException e) {
+          throw new AssertionError(e);
+        }
+      });
+      server.start();
+
+      List<String> lines = new ArrayList<>();
+      CountDownLatch release = new CountDownLatch(1);
+      InetSocketAddress address = new InetSocketAddress(adb.getInetAddress(), adb.getLocalPort());
+      try (LogcatService service = new LogcatService(address, 1)) {
+        LogcatService.Stream stream = service.open("abc123", "logcat -v long",
+            new LogcatService.Listener() {
+              @Override public void onLines(List<String> newLines) {
+                try {
+                  release.await();
+                } catch (InterruptedException e) {
+                  throw new AssertionError(e);
+                }
+                lines.addAll(newLines);
+              }
+
+              @Override public void onClosed(IOException error) {
+              }
+            });
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (stream.getBytesRead() < bytes.length) {
+          assertThat(System.nanoTime()).isLessThan(deadline);
+          Thread.sleep(10);
+        }
+
+        // Finish while the listener is still busy with the first batch.
+        boolean[] finished = new boolean[1];
+        Thread finisher = new Thread(() -> {
+          try {
+            finished[0] = stream.finish(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+        });
+        finisher.start();
+        assertThat(clientClosed.await(10, TimeUnit.SECONDS)).isTrue();
+        release.countDown();
+        finisher.join();
+        assertThat(finished[0]).isTrue();
+      }
+      server.join();
+      assertThat(lines).containsExactlyElementsIn(expected).inOrder();
+    }
+  }
+
+  private static String readRequest(DataInputStream in) throws IOException {
+    byte[] length = new byte[4];
+    in.readFully(length);
+    byte[] payload = new byte[Integer.parseInt(new String(length, UTF_8), 16)];
+    in.readFully(payload);
+    return new String(payload, UTF_8);
+  }
+}
@@ -1,12 +1,18 @@
 package com.squareup.spoon
 
 import com.squareup.spoon.SpoonUtils.sanitizeSerial
+import org.jacoco.core.data.ExecutionData
+import org.jacoco.core.data.ExecutionDataWriter
+import org.jacoco.core.tools.ExecFileLoader
+import org.junit.Assert.assertArrayEquals
 import org.junit.Assert.assertTrue
 import org.junit.Rule
 import org.junit.Test
 import org.junit.rules.TemporaryFolder
 import java.io.File
+import java.io.FileOutputStream
 import java.lang.String.format
+import java.util.concurrent.Executors
 
 class SpoonCoverageMergerTest {
   @JvmField @Rule val testFolder = TemporaryFolder()
@@ -22,16 +28,28 @@ class SpoonCoverageMergerTest {
     assertTrue(mergedCoverageFile.exists())
   }
 
-  @Test fun shouldMergeMultiInstrumentedCoverageFiles() {
-    val outputDirectory = testFolder.newFolder("coverage")
-    val test1 = "class1_test1"
-    val test2 = "class1_test2"
-    val test3 = "class2_test1"
-    createTemporaryMultiTestsCoverageFiles(test1, test2, test3)
+  @Test fun shouldFoldCoverageFilesAsTheyArrive() {
+    val coverageDirectory = testFolder.newFolder("coverage")
+    val first = writeExecutionData(File(coverageDirectory, "Foo#first_coverage.ec"), true, false)
+    val second = writeExecutionData(File(coverageDirectory, "Foo#second_coverage.ec"), false, true)
+    val merged = File(coverageDirectory, "merged-coverage.ec")
 
-    mergeAllCoverageFiles(outputDirectory)
-    val mergedCoverageFile = File(outputDirectory, "coverage.ec")
-    assertTrue(mergedCoverageFile.exists())
+    val executor = Executors.newSingleThreadExecutor()
+    try {
+      val run = CoverageAccumulator(executor)
+      val device = run.newAccumulator()
+      device.add(first)
+      device.add(second)
+      run.add("serial", device)
+      run.save(merged)
+      assertTrue(run.contains("serial"))
+    } finally {
+      executor.shutdown()
+    }
+
+    val loader = ExecFileLoader()
+    loader.load(merged)
+    assertArrayEquals(booleanArrayOf(true, true), loader.executionDataStore.get(1L).probes)
   }
 
   private fun createTemporaryCoverageFiles(serialId1: String, serialId2: String) {
@@ -41,9 +59,10 @@ class SpoonCoverageMergerTest {
     testFolder.newFile(format("output/coverage/%s/coverage.ec", sanitizeSerial(serialId2)))
   }
 
-  private fun createTemporaryMultiTestsCoverageFiles(test1: String, test2: String, test3: String) {
-    testFolder.newFile(format("coverage/%s-coverage.ec", test1))
-    testFolder.newFile(format("coverage/%s-coverage.ec", test2))
-    testFolder.newFile(format("coverage/%s-coverage.ec", test3))
+  private fun writeExecutionData(file: File, vararg probes: Boolean): File {
+    FileOutputStream(file).use {
+      ExecutionDataWriter(it).visitClassExecution(ExecutionData(1L, "com/example/Foo", probes))
+    }
+    return file
   }
 }
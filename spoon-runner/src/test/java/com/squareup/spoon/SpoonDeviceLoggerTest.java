@@ -0,0 +1,160 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.logcat.LogCatMessage;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public final class SpoonDeviceLoggerTest {
+  private static final DeviceTest FIRST = new DeviceTest("com.example.FooTest", "first");
+  private static final LogcatOptions OPTIONS =
+      new LogcatOptions(1000, Collections.emptySet(), null, false);
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final FakeDevice fake = new FakeDevice("abc123");
+  /** The logcat command of each connection, in order. */
+  private final BlockingQueue<String> commands = new LinkedBlockingQueue<>();
+  /** The messages handed on by the logger, in order. */
+  private final List<LogCatMessage> fresh = new CopyOnWriteArrayList<>();
+  private ServerSocket adb;
+  private LogcatService logcatService;
+
+  @Before public void setUp() throws Exception {
+    adb = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    logcatService =
+        new LogcatService(new InetSocketAddress(adb.getInetAddress(), adb.getLocalPort()), 1);
+  }
+
+  @After public void tearDown() throws Exception {
+    logcatService.close();
+    adb.close();
+  }
+
+  @Test public void streamClosedByDeviceIsReopenedFromNewestMessage() throws Exception {
+    Thread server = new Thread(() -> {
+      try {
+        try (Socket socket = accept()) {
+          // adbd restarting ends the stream in the middle of a test.
+          write(socket, "[ 01-01 00:00:01.000   100:  100 I/TestRunner ]\n"
+              + "started: first(com.example.FooTest)\n\n"
+              + "[ 01-01 00:00:02.000   100:  100 I/Foo ]\nbefore\n\n");
+        }
+        try (Socket socket = accept()) {
+          // Logcat replays from the timestamp it was given.
+          write(socket, "[ 01-01 00:00:02.000   100:  100 I/Foo ]\nbefore\n\n"
+              + "[ 01-01 00:00:03.000   100:  100 I/Foo ]\nafter\n\n"
+              + "[ 01-01 00:00:04.000   100:  100 I/TestRunner ]\n"
+              + "finished: first(com.example.FooTest)\n\n");
+          assertThat(socket.getInputStream().read()).isEqualTo(-1);
+        }
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    });
+    server.start();
+
+    SpoonDeviceLogger logger = newLogger();
+    assertThat(commands.poll(10, TimeUnit.SECONDS)).isEqualTo("logcat -v long -T 1");
+    assertThat(commands.poll(10, TimeUnit.SECONDS))
+        .isEqualTo("logcat -v long -T '01-01 00:00:02.000'");
+    awaitMessages(logger, 4);
+    Map<DeviceTest, LogSlice> logs = logger.getParsedLogs();
+    server.join();
+
+    assertThat(logger.getStreamLoss()).isNull();
+    List<LogCatMessage> log = logs.get(FIRST).read();
+    assertThat(log).hasSize(4);
+    assertThat(log.get(1).getMessage()).isEqualTo("before");
+    assertThat(log.get(2).getMessage()).isEqualTo("after");
+    // Crash detection is not handed the replayed message again.
+    assertThat(fresh).hasSize(4);
+    assertThat(fresh.get(2).getMessage()).isEqualTo("after");
+  }
+
+  @Test public void streamWhichKeepsClosingIsGivenUp() throws Exception {
+    Thread server = new Thread(() -> {
+      try {
+        for (int i = 0; i <= SpoonDeviceLogger.MAX_RECONNECTS; i++) {
+          accept().close();
+        }
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    });
+    server.start();
+
+    SpoonDeviceLogger logger = newLogger();
+    server.join();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (logger.getStreamLoss() == null) {
+      assertThat(System.nanoTime()).isLessThan(deadline);
+      Thread.sleep(10);
+    }
+    logger.getParsedLogs();
+
+    assertThat(logger.getStreamLoss())
+        .isEqualTo("Logcat stopped after 3 attempts to reconnect: the device closed the stream");
+    assertThat(commands).hasSize(SpoonDeviceLogger.MAX_RECONNECTS + 1);
+  }
+
+  private SpoonDeviceLogger newLogger() throws IOException {
+    File spool = new File(temporaryFolder.newFolder(), LogcatSpool.FILE_NAME);
+    return new SpoonDeviceLogger(fake.device(), 21, false, spool, (test, slice) -> { },
+        fresh::addAll, logcatService, OPTIONS, false);
+  }
+
+  /** Accept a logcat connection, and answer its requests as ADB would. */
+  private Socket accept() throws IOException {
+    Socket socket = adb.accept();
+    DataInputStream in = new DataInputStream(socket.getInputStream());
+    OutputStream out = socket.getOutputStream();
+    readRequest(in);
+    out.write("OKAY".getBytes(UTF_8));
+    commands.add(readRequest(in).substring("shell:".length()));
+    out.write("OKAY".getBytes(UTF_8));
+    out.flush();
+    return socket;
+  }
+
+  private static void write(Socket socket, String output) throws IOException {
+    socket.getOutputStream().write(output.getBytes(UTF_8));
+    socket.getOutputStream().flush();
+  }
+
+  private static void awaitMessages(SpoonDeviceLogger logger, int count) throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (logger.getMessagesParsed() < count) {
+      assertThat(System.nanoTime()).isLessThan(deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private static String readRequest(DataInputStream in) throws IOException {
+    byte[] length = new byte[4];
+    in.readFully(length);
+    byte[] payload = new byte[Integer.parseInt(new String(length, UTF_8), 16)];
+    in.readFully(payload);
+    return new String(payload, UTF_8);
+  }
+}
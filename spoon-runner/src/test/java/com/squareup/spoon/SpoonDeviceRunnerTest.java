@@ -0,0 +1,265 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.io.FileUtils;
+import org.jacoco.core.data.ExecutionData;
+import org.jacoco.core.data.ExecutionDataWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public final class SpoonDeviceRunnerTest {
+  private static final String SERIAL = "abc123";
+  private static final String COVERAGE_DIR = "/sdcard/" + SpoonDeviceRunner.DEVICE_COVERAGE_DIR;
+  private static final SpoonInstrumentationInfo INFO = new SpoonInstrumentationInfo(
+      "com.example", 15, "com.example.test", "android.support.test.runner.AndroidJUnitRunner");
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final FakeDevice fake = new FakeDevice(SERIAL);
+  private final DeviceSession session = new DeviceSession(fake.device());
+  /** Accepts logcat connections but never answers them. */
+  private ServerSocket adb;
+  private LogcatService logcatService;
+  private CheckpointJournal journal;
+
+  @Before public void setUp() throws Exception {
+    adb = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    logcatService =
+        new LogcatService(new InetSocketAddress(adb.getInetAddress(), adb.getLocalPort()), 1);
+    journal = new CheckpointJournal(temporaryFolder.getRoot());
+  }
+
+  @After public void tearDown() throws Exception {
+    journal.close();
+    logcatService.close();
+    adb.close();
+  }
+
+  @Test public void testsOfRunCancelledBeforeItStartsAreMarkedNotRun() throws Exception {
+    FailFast failFast = new FailFast(true);
+    SpoonDeviceRunner deviceRunner = newDeviceRunner(failFast, null, null);
+    List<TestIdentifier> tests = Arrays.asList(
+        new TestIdentifier("com.example.FooTest", "first"),
+        new TestIdentifier("com.example.FooTest", "second"));
+    // Another device's failure lands after this one checked, but before it started instrumenting.
+    failFast.trip("other", "com.example.BarTest#failed");
+
+    DeviceResult.Builder result = new DeviceResult.Builder().startTests();
+    List<ITestRunListener> listeners = Collections.singletonList(
+        new SpoonTestRunListener(result, false, journal, SERIAL));
+    CrashWatcher crashWatcher =
+        new CrashWatcher(fake.device(), ImmutableSet.of("com.example"), false);
+    TestWatchdog watchdog = new TestWatchdog(fake.device(), ImmutableSet.of("com.example"), null,
+        Collections.emptyMap());
+    try {
+      assertThat(deviceRunner.runInstrumentation(session,
+          new RemoteAndroidTestRunner(INFO.getInstrumentationPackage(), fake.device()), tests,
+          listeners, crashWatcher, watchdog, result)).isFalse();
+    } finally {
+      watchdog.stop();
+    }
+
+    DeviceResult deviceResult = result.endTests().build();
+    assertThat(deviceResult.getTestResults().keySet())
+        .containsExactly(DeviceTest.from(tests.get(0)), DeviceTest.from(tests.get(1)));
+    for (DeviceTestResult testResult : deviceResult.getTestResults().values()) {
+      assertThat(testResult.getStatus()).isEqualTo(DeviceTestResult.Status.IGNORED);
+    }
+    assertThat(fake.commands).isEmpty(); // Instrumentation never started.
+  }
+
+  @Test public void fewTestsAreSelectedOnTheCommandLine() throws Exception {
+    Set<DeviceTest> tests = ImmutableSet.of(new DeviceTest("com.example.FooTest", "first"),
+        new DeviceTest("com.example.FooTest", "second"));
+    RemoteAndroidTestRunner runner = newDeviceRunner(new FailFast(false), tests, null)
+        .createConfiguredRunner(INFO.getInstrumentationPackage(), INFO.getTestRunnerClass(),
+            session);
+
+    assertThat(runner.getAmInstrumentCommand())
+        .contains("-e class com.example.FooTest#first,com.example.FooTest#second");
+    assertThat(fake.pushed).isEmpty();
+  }
+
+  @Test public void manyTestsAreSelectedByFile() throws Exception {
+    fake.shell(command -> command.equals("echo $EXTERNAL_STORAGE") ? "/sdcard\n" : "");
+    Set<DeviceTest> tests = new LinkedHashSet<>();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      DeviceTest test = new DeviceTest("com.example.SomewhatLongerNamedTest", "test" + i);
+      tests.add(test);
+      expected.append(test).append('\n');
+    }
+    SpoonDeviceRunner deviceRunner = newDeviceRunner(new FailFast(false), tests, null);
+
+    for (int i = 0; i < 2; i++) {
+      RemoteAndroidTestRunner runner = deviceRunner.createConfiguredRunner(
+          INFO.getInstrumentationPackage(), INFO.getTestRunnerClass(), session);
+      String command = runner.getAmInstrumentCommand();
+      assertThat(command).contains("-e testFile /sdcard/" + SpoonDeviceRunner.TEST_FILE);
+      assertThat(command).doesNotContain("-e class");
+      assertThat(command.length()).isLessThan(SpoonDeviceRunner.MAX_CLASS_FILTER_LENGTH);
+    }
+    assertThat(fake.pushed.keySet()).containsExactly("/sdcard/" + SpoonDeviceRunner.TEST_FILE);
+    assertThat(new String(fake.pushed.get("/sdcard/" + SpoonDeviceRunner.TEST_FILE), UTF_8))
+        .isEqualTo(expected.toString());
+  }
+
+  @Test public void skippedTestsAreLeftOut() throws Exception {
+    Set<DeviceTest> skipped = ImmutableSet.of(new DeviceTest("com.example.FooTest", "first"),
+        new DeviceTest("com.example.BarTest", "second"));
+    RemoteAndroidTestRunner runner = newDeviceRunner(new FailFast(false), null, skipped)
+        .createConfiguredRunner(INFO.getInstrumentationPackage(), INFO.getTestRunnerClass(),
+            session);
+
+    String command = runner.getAmInstrumentCommand();
+    assertThat(command)
+        .contains("-e notClass com.example.FooTest#first,com.example.BarTest#second");
+    assertThat(command).doesNotContain("-e class");
+  }
+
+  @Test public void manySkippedTestsAreLeftOutByFile() throws Exception {
+    fake.shell(command -> command.equals("echo $EXTERNAL_STORAGE") ? "/sdcard\n" : "");
+    Set<DeviceTest> skipped = new LinkedHashSet<>();
+    for (int i = 0; i < 200; i++) {
+      skipped.add(new DeviceTest("com.example.SomewhatLongerNamedTest", "test" + i));
+    }
+    RemoteAndroidTestRunner runner = newDeviceRunner(new FailFast(false), null, skipped)
+        .createConfiguredRunner(INFO.getInstrumentationPackage(), INFO.getTestRunnerClass(),
+            session);
+
+    String command = runner.getAmInstrumentCommand();
+    assertThat(command).contains("-e notTestFile /sdcard/" + SpoonDeviceRunner.TEST_FILE);
+    assertThat(command).doesNotContain("-e notClass");
+    assertThat(fake.pushed.keySet()).containsExactly("/sdcard/" + SpoonDeviceRunner.TEST_FILE);
+  }
+
+  @Test public void fullBatchOfCoverageIsPulledAndNamedAfterItsTests() throws Exception {
+    SpoonDeviceRunner deviceRunner = newCoverageRunner(2);
+    TestIdentifier first = new TestIdentifier("com.example.FooTest", "first");
+    TestIdentifier second = new TestIdentifier("com.example.FooTest", "second");
+
+    runWithCoverage(deviceRunner, first);
+    assertThat(fake.sync.pulled).isEmpty();
+    runWithCoverage(deviceRunner, second);
+
+    assertThat(fake.sync.pulled).containsExactly(COVERAGE_DIR);
+    assertThat(fake.commands).contains("rm -f " + COVERAGE_DIR + "/*");
+    assertThat(pulledCoverage()).containsExactly(DeviceTest.from(first), DeviceTest.from(second));
+    // Nothing is left for the end of the run.
+    deviceRunner.pullCoverageBatch(session);
+    assertThat(fake.sync.pulled).hasSize(1);
+  }
+
+  @Test public void testBeyondFullBatchIsPulledAtEndOfRun() throws Exception {
+    SpoonDeviceRunner deviceRunner = newCoverageRunner(2);
+    TestIdentifier first = new TestIdentifier("com.example.FooTest", "first");
+    TestIdentifier second = new TestIdentifier("com.example.FooTest", "second");
+    TestIdentifier third = new TestIdentifier("com.example.BarTest", "third");
+
+    runWithCoverage(deviceRunner, first);
+    runWithCoverage(deviceRunner, second);
+    runWithCoverage(deviceRunner, third);
+    assertThat(fake.sync.pulled).hasSize(1);
+    assertThat(pulledCoverage()).containsExactly(DeviceTest.from(first), DeviceTest.from(second));
+
+    deviceRunner.pullCoverageBatch(session);
+    assertThat(fake.sync.pulled).hasSize(2);
+    assertThat(pulledCoverage()).containsExactly(DeviceTest.from(first), DeviceTest.from(second),
+        DeviceTest.from(third));
+  }
+
+  @Test public void emptyBatchOfCoverageIsNotPulled() throws Exception {
+    SpoonDeviceRunner deviceRunner = newCoverageRunner(2);
+
+    deviceRunner.pullCoverageBatch(session);
+
+    assertThat(fake.sync.pulled).isEmpty();
+    assertThat(fake.commands).isEmpty();
+  }
+
+  private SpoonDeviceRunner newDeviceRunner(FailFast failFast, Set<DeviceTest> tests,
+      Set<DeviceTest> skippedTests) {
+    return newDeviceRunner(failFast, tests, skippedTests, null, 0);
+  }
+
+  private SpoonDeviceRunner newCoverageRunner(int coverageBatchSize) {
+    fake.shell(command -> command.equals("echo $EXTERNAL_STORAGE") ? "/sdcard\n" : "");
+    return newDeviceRunner(new FailFast(false), null, null,
+        new CoverageAccumulator(MoreExecutors.newDirectExecutorService()), coverageBatchSize);
+  }
+
+  private SpoonDeviceRunner newDeviceRunner(FailFast failFast, Set<DeviceTest> tests,
+      Set<DeviceTest> skippedTests, CoverageAccumulator coverage, int coverageBatchSize) {
+    return new SpoonDeviceRunner(null, Collections.emptyList(), output(), SERIAL, 0, 0, false,
+        false, Duration.ofMinutes(1), null, Collections.emptyMap(), INFO, null, null, null, tests,
+        skippedTests, null, null, coverage != null, coverageBatchSize, false, false, false,
+        new LogcatOptions(1000, Collections.emptySet(), null, false), logcatService,
+        new DeviceHealthMonitor(Collections.singleton(SERIAL), false, false, false), null, failFast,
+        Collections.emptyMap(), journal, coverage);
+  }
+
+  private File output() {
+    return new File(temporaryFolder.getRoot(), "output");
+  }
+
+  /** Have {@code test} leave coverage of its own on the device, as if it had run. */
+  private void runWithCoverage(SpoonDeviceRunner deviceRunner, TestIdentifier test)
+      throws Exception {
+    RemoteAndroidTestRunner runner =
+        new RemoteAndroidTestRunner(INFO.getInstrumentationPackage(), fake.device());
+    deviceRunner.addCoverageFile(session, runner, test);
+    Matcher coverageFile =
+        Pattern.compile("-e coverageFile (\\S+)").matcher(runner.getAmInstrumentCommand());
+    assertThat(coverageFile.find()).isTrue();
+    fake.stored.put(coverageFile.group(1), coverageOf(test.getTestName()));
+    deviceRunner.pullCoverage(session, test);
+  }
+
+  /** The tests whose coverage was pulled, checking that each file holds that of its test. */
+  private Set<DeviceTest> pulledCoverage() throws Exception {
+    File[] files = FileUtils.getFile(output(), SpoonDeviceRunner.COVERAGE_DIR, SERIAL).listFiles();
+    Set<DeviceTest> tests = new LinkedHashSet<>();
+    for (File file : files != null ? files : new File[0]) {
+      String name = file.getName();
+      int suffix = name.lastIndexOf("_" + SpoonDeviceRunner.COVERAGE_FILE);
+      DeviceTest test = DeviceTest.parse(name.substring(0, suffix));
+      assertThat(Files.readAllBytes(file.toPath())).isEqualTo(coverageOf(test.getMethodName()));
+      tests.add(test);
+    }
+    return tests;
+  }
+
+  /** Execution data of a class of its own for each test method. */
+  private static byte[] coverageOf(String methodName) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    String name = "com/example/" + methodName;
+    new ExecutionDataWriter(bytes).visitClassExecution(
+        new ExecutionData(name.hashCode(), name, new boolean[] {true}));
+    return bytes.toByteArray();
+  }
+}
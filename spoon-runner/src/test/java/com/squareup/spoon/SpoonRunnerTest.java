@@ -1,8 +1,10 @@
 package com.squareup.spoon;
 
+import com.google.common.collect.ImmutableSet;
 import org.junit.Test;
 
 import static com.google.common.truth.Truth.assertThat;
+import static com.squareup.spoon.SpoonRunner.failedTests;
 import static com.squareup.spoon.SpoonRunner.parseOverallSuccess;
 
 public final class SpoonRunnerTest {
@@ -112,4 +114,54 @@ public final class SpoonRunnerTest {
         .build(); //
     assertThat(parseOverallSuccess(summary)).isTrue();
   }
+
+  @Test public void rerunOfFailuresMergesIntoEarlierSummary() {
+    DeviceTest passed = new DeviceTest("foo", "passed");
+    DeviceTest flaky = new DeviceTest("foo", "flaky");
+    SpoonSummary earlier = new SpoonSummary.Builder() //
+        .setTitle("test") //
+        .start() //
+        .addResult("123", new DeviceResult.Builder() //
+            .startTests() //
+            .addTestResultBuilder(passed, new DeviceTestResult.Builder() //
+                .startTest() //
+                .endTest()) //
+            .addTestResultBuilder(flaky, new DeviceTestResult.Builder() //
+                .startTest() //
+                .markTestAsFailed("java.fake.Exception: Failed!") //
+                .endTest()) //
+            .endTests() //
+            .addShellRoundTripsSaved(7) //
+            .addSessionCacheHits(3) //
+            .build()) //
+        .end() //
+        .build();
+    // Earlier results are read back from their result.json.
+    earlier = SpoonUtils.GSON.fromJson(SpoonUtils.GSON.toJson(earlier), SpoonSummary.class);
+    assertThat(failedTests(earlier)).containsExactly("123", ImmutableSet.of(flaky));
+    assertThat(parseOverallSuccess(earlier)).isFalse();
+
+    SpoonSummary rerun = new SpoonSummary.Builder() //
+        .setTitle("test") //
+        .start() //
+        .addResult("123", new DeviceResult.Builder() //
+            .startTests() //
+            .addTestResultBuilder(flaky, new DeviceTestResult.Builder() //
+                .startTest() //
+                .endTest()) //
+            .endTests() //
+            .addShellRoundTripsSaved(7) //
+            .addSessionCacheHits(2) //
+            .build()) //
+        .end() //
+        .build();
+    SpoonSummary merged = earlier.mergeRerun(rerun);
+    assertThat(merged.getResults().get("123").getTestResults().keySet())
+        .containsExactly(passed, flaky);
+    assertThat(failedTests(merged)).isEmpty();
+    assertThat(parseOverallSuccess(merged)).isTrue();
+    // Batching and the session save round trips in different ways, so they are counted apart.
+    assertThat(merged.getResults().get("123").getShellRoundTripsSaved()).isEqualTo(14);
+    assertThat(merged.getResults().get("123").getSessionCacheHits()).isEqualTo(5);
+  }
 }
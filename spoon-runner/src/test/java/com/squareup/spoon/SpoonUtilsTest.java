@@ -1,14 +1,99 @@
 package com.squareup.spoon;
 
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
 
 public final class SpoonUtilsTest {
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   @Test public void serialSanitizer() {
     assertThat(SpoonUtils.sanitizeSerial("1234")).isEqualTo("1234");
     assertThat(SpoonUtils.sanitizeSerial("FooBarBaz")).isEqualTo("FooBarBaz");
     assertThat(SpoonUtils.sanitizeSerial("ST-398H984")).isEqualTo("ST-398H984");
     assertThat(SpoonUtils.sanitizeSerial("10.0.0.1:1234")).isEqualTo("10_0_0_1_1234");
   }
+
+  @Test public void devicesAreProbedConcurrently() {
+    // Each probe waits for the others, so probing one after another would time out.
+    CyclicBarrier allProbing = new CyclicBarrier(3);
+    DeviceSession old = probedSession("old", 19, allProbing);
+    DeviceSession current = probedSession("current", 21, allProbing);
+    DeviceSession latest = probedSession("latest", 23, allProbing);
+
+    assertThat(SpoonUtils.findAllDevices(Arrays.asList(old, current, latest), 21,
+        Duration.ofSeconds(10))).containsExactly("current", "latest").inOrder();
+    assertThat(old.getQuarantineReason()).isNull();
+    assertThat(old.getApiLevel()).isEqualTo(19);
+  }
+
+  @Test public void hungDeviceIsLeftOut() {
+    CountDownLatch release = new CountDownLatch(1);
+    DeviceSession healthy = new DeviceSession(new FakeDevice("healthy").apiLevel(23).device());
+    DeviceSession hung = new DeviceSession(new FakeDevice("hung").properties(name -> {
+      release.await();
+      return null;
+    }).device());
+    DeviceSession broken = new DeviceSession(new FakeDevice("broken").properties(name -> {
+      throw new IllegalStateException("offline");
+    }).device());
+    try {
+      long start = System.nanoTime();
+      assertThat(SpoonUtils.findAllDevices(Arrays.asList(hung, healthy, broken), 21,
+          Duration.ofMillis(200))).containsExactly("healthy");
+      assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(5));
+      assertThat(hung.getQuarantineReason())
+          .isEqualTo("Did not report its properties within 200 ms.");
+      assertThat(broken.getQuarantineReason())
+          .isEqualTo("Unable to read its properties: java.lang.IllegalStateException: offline");
+      assertThat(healthy.getQuarantineReason()).isNull();
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test public void animatedGifLeavesOutUnreadableScreenshots() throws Exception {
+    File first = writeImage("1_first.png", "png");
+    File second = writeImage("2_second.jpg", "jpeg");
+    File third = temporaryFolder.newFile("3_third.webp");
+    Files.write(third.toPath(), new byte[] {'R', 'I', 'F', 'F'});
+    File animatedGif = new File(temporaryFolder.getRoot(), "test.gif");
+
+    assertThat(SpoonUtils.createAnimatedGif(Arrays.asList(first, third), animatedGif)).isFalse();
+    assertThat(animatedGif.exists()).isFalse();
+    assertThat(SpoonUtils.createAnimatedGif(Arrays.asList(first, second, third), animatedGif))
+        .isTrue();
+    assertThat(ImageIO.read(animatedGif).getWidth()).isEqualTo(8);
+  }
+
+  private File writeImage(String name, String format) throws Exception {
+    File file = temporaryFolder.newFile(name);
+    int type = "png".equals(format) ? TYPE_INT_ARGB : TYPE_INT_RGB;
+    assertThat(ImageIO.write(new BufferedImage(8, 4, type), format, file)).isTrue();
+    return file;
+  }
+
+  private static DeviceSession probedSession(String serial, int apiLevel,
+      CyclicBarrier allProbing) {
+    return new DeviceSession(new FakeDevice(serial).properties(name -> {
+      if (!"ro.build.version.sdk".equals(name)) {
+        return null;
+      }
+      allProbing.await(10, TimeUnit.SECONDS);
+      return "" + apiLevel;
+    }).device());
+  }
 }
@@ -0,0 +1,57 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.Collections.emptyMap;
+
+public final class TestWatchdogTest {
+  private final FakeDevice fake = new FakeDevice("abc123");
+  private final IDevice device = fake.device();
+  private final TestWatchdog watchdog = new TestWatchdog(device,
+      ImmutableSet.of("com.example", "com.example.test"), Duration.ofMillis(100),
+      ImmutableMap.of(new TestIdentifier("com.example.Slow", "quick"), Duration.ofSeconds(10)));
+
+  @After public void tearDown() {
+    watchdog.stop();
+  }
+
+  @Test public void hungTestIsAbortedAndNextTestRuns() throws Exception {
+    TestIdentifier hung = new TestIdentifier("com.example.Slow", "hangs");
+    watchdog.watch(new RemoteAndroidTestRunner("com.example.test", device));
+    watchdog.testStarted(hung);
+
+    assertThat(fake.commands.poll(10, TimeUnit.SECONDS))
+        .isEqualTo("am force-stop com.example; am force-stop com.example.test");
+    TestWatchdog.Timeout timeout = watchdog.stopWatching();
+    assertThat(timeout.test).isEqualTo(hung);
+    assertThat(timeout.getMessage()).isEqualTo("Test timed out after 100 ms.");
+
+    // The remaining tests run in a new instrumentation, which is watched afresh.
+    TestIdentifier next = new TestIdentifier("com.example.Slow", "quick");
+    watchdog.watch(new RemoteAndroidTestRunner("com.example.test", device));
+    watchdog.testStarted(next);
+    Thread.sleep(300); // Longer than the default budget, but within its own.
+    watchdog.testEnded(next, emptyMap());
+    assertThat(watchdog.stopWatching()).isNull();
+    assertThat(fake.commands).isEmpty();
+  }
+
+  @Test public void testWhichEndsInTimeIsNotAborted() throws Exception {
+    TestIdentifier test = new TestIdentifier("com.example.Fast", "test");
+    watchdog.watch(new RemoteAndroidTestRunner("com.example.test", device));
+    watchdog.testStarted(test);
+    watchdog.testEnded(test, emptyMap());
+    Thread.sleep(300);
+    assertThat(watchdog.stopWatching()).isNull();
+    assertThat(fake.commands).isEmpty();
+  }
+}
@@ -0,0 +1,112 @@
+package com.squareup.spoon.internal.thirdparty.axmlparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reads what spoon-runner needs from a manifest, from a stream and from heap and direct buffers.
+ * The manifest is inflated up front so that only parsing is measured. Pass {@code -p apk=<path>}
+ * to measure other APKs than those the tests use.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ManifestParseBenchmark {
+    @Param({"manifestUtf8.apk", "manifestUtf16.apk"})
+    public String apk;
+
+    private byte[] manifest;
+    private ByteBuffer direct;
+
+    @Setup
+    public void setUp() throws IOException {
+        File file = new File(apk);
+        try (InputStream in = file.exists() ? new FileInputStream(file)
+                : ManifestParseBenchmark.class.getResourceAsStream("/" + apk)) {
+            if (in == null) {
+                throw new IOException("No such APK: " + apk);
+            }
+            manifest = readManifest(new ZipInputStream(in));
+        }
+        direct = ByteBuffer.allocateDirect(manifest.length);
+        direct.put(manifest).flip();
+    }
+
+    @Benchmark
+    public void stream(Blackhole blackhole) throws IOException {
+        parse(new AXMLParser(new ByteArrayInputStream(manifest)), blackhole);
+    }
+
+    @Benchmark
+    public void heapBuffer(Blackhole blackhole) throws IOException {
+        parse(new AXMLParser(ByteBuffer.wrap(manifest)), blackhole);
+    }
+
+    @Benchmark
+    public void directBuffer(Blackhole blackhole) throws IOException {
+        parse(new AXMLParser(direct), blackhole);
+    }
+
+    /** Reads the same attributes as SpoonInstrumentationInfo.parseFromFile. */
+    private static void parse(AXMLParser parser, Blackhole blackhole) throws IOException {
+        for (int type = parser.getType(); type != AXMLParser.END_DOCUMENT; type = parser.next()) {
+            if (type != AXMLParser.START_TAG) {
+                continue;
+            }
+            String name = parser.getName();
+            boolean isManifest = "manifest".equals(name);
+            boolean isUsesSdk = "uses-sdk".equals(name);
+            boolean isInstrumentation = "instrumentation".equals(name);
+            if (isManifest || isUsesSdk || isInstrumentation) {
+                for (int i = 0; i < parser.getAttributeCount(); i++) {
+                    String attribute = parser.getAttributeName(i);
+                    if (isManifest && "package".equals(attribute)) {
+                        blackhole.consume(parser.getAttributeValueString(i));
+                    } else if (isUsesSdk && "minSdkVersion".equals(attribute)) {
+                        blackhole.consume(parser.getAttributeValue(i));
+                    } else if (isInstrumentation && ("targetPackage".equals(attribute)
+                            || "name".equals(attribute))) {
+                        blackhole.consume(parser.getAttributeValueString(i));
+                    }
+                }
+            }
+        }
+    }
+
+    private static byte[] readManifest(ZipInputStream zip) throws IOException {
+        for (ZipEntry entry; (entry = zip.getNextEntry()) != null; ) {
+            if ("AndroidManifest.xml".equals(entry.getName())) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] block = new byte[8192];
+                for (int read; (read = zip.read(block)) != -1; ) {
+                    bytes.write(block, 0, read);
+                }
+                return bytes.toByteArray();
+            }
+        }
+        throw new IOException("No AndroidManifest.xml in the APK.");
+    }
+}
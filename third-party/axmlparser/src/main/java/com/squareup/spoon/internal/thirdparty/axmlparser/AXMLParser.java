@@ -17,6 +17,7 @@ package com.squareup.spoon.internal.thirdparty.axmlparser;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * @author Dmitry Skiba
@@ -42,32 +43,40 @@ public final class AXMLParser {
     /**
      * Creates object and reads file info.
      * Call next() to read first tag.
+     * The rest of the stream is read into memory in blocks.
      */
     public AXMLParser(InputStream stream) throws IOException {
-        m_stream=stream;
+        m_reader=new IntReader(stream,false);
+        doStart();
+    }
+
+    /**
+     * Creates object and reads file info from the buffer, which may be
+     * on the heap or memory-mapped, from its position to its limit.
+     * Neither of them is changed, and strings are not copied out of it.
+     * Call next() to read first tag.
+     */
+    public AXMLParser(ByteBuffer buffer) throws IOException {
+        m_reader=new IntReader(buffer,false);
         doStart();
     }
 
     /**
      * Closes parser:
-     * 	* closes (and nulls) underlying stream
+     * 	* closes (and nulls) underlying stream, if any
      * 	* nulls dynamic data
      * 	* moves object to 'closed' state, where methods
      * 	  return invalid values and next() throws IOException.
      */
     public final void close() {
-        if (m_stream==null) {
+        if (m_reader==null) {
             return;
         }
-        try {
-            m_stream.close();
-        }
-        catch (IOException e) {
-        }
+        m_reader.close();
         if (m_nextException==null) {
             m_nextException=new IOException("Closed.");
         }
-        m_stream=null;
+        m_reader=null;
         resetState();
     }
 
@@ -119,31 +128,28 @@ public final class AXMLParser {
      * Returns count of attributes for the current tag.
      */
     public final int getAttributeCount() {
-        if (m_tagAttributes==null) {
-            return -1;
-        }
-        return m_tagAttributes.length;
+        return m_attributeCount;
     }
 
     /**
      * Returns attribute namespace.
      */
     public final String getAttributeNamespace(int index) {
-        return getString(getAttribute(index).namespace);
+        return getString(m_attributes[getAttribute(index)+ATTRIBUTE_NAMESPACE]);
     }
 
     /**
      * Returns attribute name.
      */
     public final String getAttributeName(int index) {
-        return getString(getAttribute(index).name);
+        return getString(m_attributes[getAttribute(index)+ATTRIBUTE_NAME]);
     }
 
     /**
      * Returns attribute resource ID.
      */
     public final int getAttributeResourceID(int index) {
-        int resourceIndex=getAttribute(index).name;
+        int resourceIndex=m_attributes[getAttribute(index)+ATTRIBUTE_NAME];
         if (m_resourceIDs==null ||
                 resourceIndex<0 || resourceIndex>=m_resourceIDs.length)
         {
@@ -157,7 +163,7 @@ public final class AXMLParser {
      * See TypedValue.TYPE_ values.
      */
     public final int getAttributeValueType(int index) {
-        return getAttribute(index).valueType;
+        return m_attributes[getAttribute(index)+ATTRIBUTE_VALUE_TYPE];
     }
 
     /**
@@ -165,7 +171,7 @@ public final class AXMLParser {
      *  string value. For other types returns empty string.
      */
     public final String getAttributeValueString(int index) {
-        return getString(getAttribute(index).valueString);
+        return getString(m_attributes[getAttribute(index)+ATTRIBUTE_VALUE_STRING]);
     }
 
     /**
@@ -173,38 +179,30 @@ public final class AXMLParser {
      * This integer interpreted according to attribute type.
      */
     public final int getAttributeValue(int index) {
-        return getAttribute(index).value;
+        return m_attributes[getAttribute(index)+ATTRIBUTE_VALUE];
     }
 
     ///////////////////////////////////////////// implementation
 
-    private static final class TagAttribute {
-        public int namespace;
-        public int name;
-        public int valueString;
-        public int valueType;
-        public int value;
-    }
-
     private final void resetState() {
         m_tagType=-1;
         m_tagSourceLine=-1;
         m_tagName=-1;
-        m_tagAttributes=null;
+        m_attributeCount=-1;
     }
 
     private final void doStart() throws IOException {
-        ReadUtil.readCheckType(m_stream,AXML_CHUNK_TYPE);
-        /*chunk size*/ReadUtil.readInt(m_stream);
+        ReadUtil.readCheckType(m_reader,AXML_CHUNK_TYPE);
+        /*chunk size*/m_reader.skipInt();
 
-        m_strings=StringBlock.read(new IntReader(m_stream,false));
+        m_strings=StringBlock.read(m_reader);
 
-        ReadUtil.readCheckType(m_stream,RESOURCEIDS_CHUNK_TYPE);
-        int chunkSize=ReadUtil.readInt(m_stream);
+        ReadUtil.readCheckType(m_reader,RESOURCEIDS_CHUNK_TYPE);
+        int chunkSize=m_reader.readInt();
         if (chunkSize<8 || (chunkSize%4)!=0) {
             throw new IOException("Invalid resource ids size ("+chunkSize+").");
         }
-        m_resourceIDs=ReadUtil.readIntArray(m_stream,chunkSize/4-2);
+        m_resourceIDs=m_reader.readIntArray(chunkSize/4-2);
 
         resetState();
     }
@@ -214,57 +212,57 @@ public final class AXMLParser {
             return END_DOCUMENT;
         }
 
-        m_tagType=(ReadUtil.readInt(m_stream) & 0xFF);/*other 3 bytes?*/
-        /*some source length*/ReadUtil.readInt(m_stream);
-        m_tagSourceLine=ReadUtil.readInt(m_stream);
-        /*0xFFFFFFFF*/ReadUtil.readInt(m_stream);
+        m_tagType=(m_reader.readInt() & 0xFF);/*other 3 bytes?*/
+        /*some source length*/m_reader.skipInt();
+        m_tagSourceLine=m_reader.readInt();
+        /*0xFFFFFFFF*/m_reader.skipInt();
 
         m_tagName=-1;
-        m_tagAttributes=null;
+        m_attributeCount=-1;
 
         switch (m_tagType) {
             case START_DOCUMENT:
             {
-                /*namespace?*/ReadUtil.readInt(m_stream);
-                /*name?*/ReadUtil.readInt(m_stream);
+                /*namespace?*/m_reader.skipInt();
+                /*name?*/m_reader.skipInt();
                 break;
             }
             case START_TAG:
             {
-                /*0xFFFFFFFF*/ReadUtil.readInt(m_stream);
-                m_tagName=ReadUtil.readInt(m_stream);
-                /*flags?*/ReadUtil.readInt(m_stream);
-                int attributeCount=ReadUtil.readInt(m_stream);
-                /*?*/ReadUtil.readInt(m_stream);
-                m_tagAttributes=new TagAttribute[attributeCount];
-                for (int i=0;i!=attributeCount;++i) {
-                    TagAttribute attribute=new TagAttribute();
-                    attribute.namespace=ReadUtil.readInt(m_stream);
-                    attribute.name=ReadUtil.readInt(m_stream);
-                    attribute.valueString=ReadUtil.readInt(m_stream);
-                    attribute.valueType=(ReadUtil.readInt(m_stream)>>>24);/*other 3 bytes?*/
-                    attribute.value=ReadUtil.readInt(m_stream);
-                    m_tagAttributes[i]=attribute;
+                /*0xFFFFFFFF*/m_reader.skipInt();
+                m_tagName=m_reader.readInt();
+                /*flags?*/m_reader.skipInt();
+                int attributeCount=m_reader.readInt();
+                /*?*/m_reader.skipInt();
+                // Attributes of every tag share one array, grown as needed.
+                int length=attributeCount*ATTRIBUTE_LENGTH;
+                if (m_attributes.length<length) {
+                    m_attributes=new int[length];
                 }
+                m_reader.readIntArray(m_attributes,0,length);
+                for (int i=ATTRIBUTE_VALUE_TYPE;i<length;i+=ATTRIBUTE_LENGTH) {
+                    m_attributes[i]>>>=24;/*other 3 bytes?*/
+                }
+                m_attributeCount=attributeCount;
                 break;
             }
             case END_TAG:
             {
-                /*0xFFFFFFFF*/ReadUtil.readInt(m_stream);
-                m_tagName=ReadUtil.readInt(m_stream);
+                /*0xFFFFFFFF*/m_reader.skipInt();
+                m_tagName=m_reader.readInt();
                 break;
             }
             case TEXT:
             {
-                m_tagName=ReadUtil.readInt(m_stream);
-                /*?*/ReadUtil.readInt(m_stream);
-                /*?*/ReadUtil.readInt(m_stream);
+                m_tagName=m_reader.readInt();
+                /*?*/m_reader.skipInt();
+                /*?*/m_reader.skipInt();
                 break;
             }
             case END_DOCUMENT:
             {
-                /*namespace?*/ReadUtil.readInt(m_stream);
-                /*name?*/ReadUtil.readInt(m_stream);
+                /*namespace?*/m_reader.skipInt();
+                /*name?*/m_reader.skipInt();
                 break;
             }
             default:
@@ -275,14 +273,17 @@ public final class AXMLParser {
         return m_tagType;
     }
 
-    private final TagAttribute getAttribute(int index) {
-        if (m_tagAttributes==null) {
+    /**
+     * Returns the offset of the attribute in the attributes array.
+     */
+    private final int getAttribute(int index) {
+        if (m_attributeCount==-1) {
             throw new IndexOutOfBoundsException("Attributes are not available.");
         }
-        if (index>=m_tagAttributes.length) {
+        if (index>=m_attributeCount) {
             throw new IndexOutOfBoundsException("Invalid attribute index ("+index+").");
         }
-        return m_tagAttributes[index];
+        return index*ATTRIBUTE_LENGTH;
     }
 
     private final String getString(int index) {
@@ -294,7 +295,7 @@ public final class AXMLParser {
 
     /////////////////////////////////// data
 
-    private InputStream m_stream;
+    private IntReader m_reader;
 
     private StringBlock m_strings;
     private int[] m_resourceIDs;
@@ -304,7 +305,20 @@ public final class AXMLParser {
     private int m_tagType;
     private int m_tagSourceLine;
     private int m_tagName;
-    private TagAttribute[] m_tagAttributes;
+    private int[] m_attributes=new int[0];
+    private int m_attributeCount;
+
+    /**
+     * Each attribute is five ints: namespace, name and value string,
+     * which are string indexes, value type and value.
+     */
+    private static final int
+            ATTRIBUTE_NAMESPACE		=0,
+            ATTRIBUTE_NAME			=1,
+            ATTRIBUTE_VALUE_STRING	=2,
+            ATTRIBUTE_VALUE_TYPE	=3,
+            ATTRIBUTE_VALUE			=4,
+            ATTRIBUTE_LENGTH		=5;
 
     private static final int
             AXML_CHUNK_TYPE			=0x00080003,
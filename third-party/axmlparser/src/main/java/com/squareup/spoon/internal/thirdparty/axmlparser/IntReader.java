@@ -15,43 +15,59 @@
  */
 package com.squareup.spoon.internal.thirdparty.axmlparser;
 
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * @author Dmitry Skiba
  *
  * Simple helper class that allows reading of integers.
  *
- * TODO:
- * 	* implement buffering
+ * Reads from a ByteBuffer, which may be on the heap or memory-mapped,
+ * with bulk reads in the buffer's byte order. A stream is read into a
+ * heap buffer up front.
  *
  */
 public final class IntReader {
 
     public IntReader() {
     }
-    public IntReader(InputStream stream,boolean bigEndian) {
+    public IntReader(InputStream stream,boolean bigEndian) throws IOException {
         reset(stream,bigEndian);
     }
+    public IntReader(ByteBuffer buffer,boolean bigEndian) {
+        reset(buffer,bigEndian);
+    }
 
-    public final void reset(InputStream stream,boolean bigEndian) {
+    public final void reset(InputStream stream,boolean bigEndian) throws IOException {
+        reset(stream!=null?readFully(stream):null,bigEndian);
         m_stream=stream;
-        m_bigEndian=bigEndian;
-        m_position=0;
+    }
+
+    /**
+     * Reads from the buffer's position to its limit, without changing
+     * either of them.
+     */
+    public final void reset(ByteBuffer buffer,boolean bigEndian) {
+        m_stream=null;
+        m_buffer=(buffer!=null)?buffer.slice():null;
+        setBigEndian(bigEndian);
     }
 
     public final void close() {
-        if (m_stream==null) {
-            return;
-        }
-        try {
-            m_stream.close();
-        }
-        catch (IOException e) {
+        if (m_stream!=null) {
+            try {
+                m_stream.close();
+            }
+            catch (IOException e) {
+            }
         }
-        reset(null,false);
+        m_stream=null;
+        m_buffer=null;
     }
 
     public final InputStream getStream() {
@@ -63,42 +79,38 @@ public final class IntReader {
     }
     public final void setBigEndian(boolean bigEndian) {
         m_bigEndian=bigEndian;
+        if (m_buffer!=null) {
+            m_buffer.order(bigEndian?ByteOrder.BIG_ENDIAN:ByteOrder.LITTLE_ENDIAN);
+        }
     }
 
     public final int readByte() throws IOException {
-        return readInt(1);
+        require(1);
+        return m_buffer.get() & 0xFF;
     }
     public final int readShort() throws IOException {
-        return readInt(2);
+        require(2);
+        return m_buffer.getShort() & 0xFFFF;
     }
     public final int readInt() throws IOException {
-        return readInt(4);
+        require(4);
+        return m_buffer.getInt();
     }
 
     public final int readInt(int length) throws IOException {
         if (length<0 || length>4) {
             throw new IllegalArgumentException();
         }
+        switch (length) {
+            case 1: return readByte();
+            case 2: return readShort();
+            case 4: return readInt();
+        }
+        require(length);
         int result=0;
-        if (m_bigEndian) {
-            for (int i=(length-1)*8;i>=0;i-=8) {
-                int b=m_stream.read();
-                if (b==-1) {
-                    throw new EOFException();
-                }
-                m_position+=1;
-                result|=(b<<i);
-            }
-        } else {
-            length*=8;
-            for (int i=0;i!=length;i+=8) {
-                int b=m_stream.read();
-                if (b==-1) {
-                    throw new EOFException();
-                }
-                m_position+=1;
-                result|=(b<<i);
-            }
+        for (int i=0;i!=length;++i) {
+            int b=m_buffer.get() & 0xFF;
+            result|=m_bigEndian?(b<<((length-1-i)*8)):(b<<(i*8));
         }
         return result;
     }
@@ -110,30 +122,36 @@ public final class IntReader {
     }
 
     public final void readIntArray(int[] array,int offset,int length) throws IOException {
-        for (;length>0;length-=1) {
-            array[offset++]=readInt();
-        }
+        require(length*4);
+        m_buffer.asIntBuffer().get(array,offset,length);
+        m_buffer.position(m_buffer.position()+length*4);
     }
 
     public final byte[] readByteArray(int length) throws IOException {
+        require(length);
         byte[] array=new byte[length];
-        int read=m_stream.read(array);
-        m_position+=read;
-        if (read!=length) {
-            throw new EOFException();
-        }
+        m_buffer.get(array);
         return array;
     }
 
+    /**
+     * Returns the next bytes as a buffer which shares their content
+     * rather than copying it, with its position at zero.
+     */
+    public final ByteBuffer readSlice(int length) throws IOException {
+        require(length);
+        ByteBuffer slice=m_buffer.slice();
+        slice.limit(length);
+        m_buffer.position(m_buffer.position()+length);
+        return slice.order(m_buffer.order());
+    }
+
     public final void skip(int bytes) throws IOException {
         if (bytes<=0) {
             return;
         }
-        long skipped=m_stream.skip(bytes);
-        m_position+=skipped;
-        if (skipped!=bytes) {
-            throw new EOFException();
-        }
+        require(bytes);
+        m_buffer.position(m_buffer.position()+bytes);
     }
 
     public final void skipInt() throws IOException {
@@ -141,16 +159,37 @@ public final class IntReader {
     }
 
     public final int available() throws IOException {
-        return m_stream.available();
+        return m_buffer.remaining();
     }
 
     public final int getPosition() {
-        return m_position;
+        return m_buffer.position();
+    }
+
+    ///////////////////////////////////////////// implementation
+
+    private final void require(int bytes) throws EOFException {
+        if (bytes<0 || m_buffer.remaining()<bytes) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Reads what is left of the stream into a heap buffer, in blocks
+     * rather than a byte at a time.
+     */
+    static ByteBuffer readFully(InputStream stream) throws IOException {
+        ByteArrayOutputStream bytes=new ByteArrayOutputStream(Math.max(stream.available(),8192));
+        byte[] block=new byte[8192];
+        for (int read;(read=stream.read(block))!=-1;) {
+            bytes.write(block,0,read);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
     }
 
     /////////////////////////////////// data
 
     private InputStream m_stream;
+    private ByteBuffer m_buffer;
     private boolean m_bigEndian;
-    private int m_position;
-}
\ No newline at end of file
+}
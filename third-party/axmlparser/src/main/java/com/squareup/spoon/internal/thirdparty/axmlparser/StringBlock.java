@@ -18,12 +18,16 @@ package com.squareup.spoon.internal.thirdparty.axmlparser;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 
 /**
  * @author Dmitry Skiba
  *
  * Block of strings, used in binary xml and arsc.
  *
+ * Strings are decoded from the pool the first time they are asked for
+ * and kept, so that the same instance is returned every time after.
+ *
  * TODO:
  * - implement get()
  *
@@ -53,7 +57,8 @@ public class StringBlock {
             if ((size%4)!=0) {
                 throw new IOException("String data size is not multiple of 4 ("+size+").");
             }
-            block.m_stringPool =reader.readByteArray(size);
+            // Shares the bytes of the reader's buffer rather than copying them.
+            block.m_stringPool=reader.readSlice(size).order(ByteOrder.LITTLE_ENDIAN);
         }
         if (stylesOffset!=0) {
             int size=(chunkSize-stylesOffset);
@@ -66,10 +71,8 @@ public class StringBlock {
         // Set field flag to determine if stored in UTF-8 (or false for UTF-16).
         block.m_isUtf8 = (flags & UTF8_FLAG) == UTF8_FLAG;
 
-        block.m_strings =new String[block.getCount()];
-        for (int i=0;i!=block.getCount();++i) {
-            block.m_strings[i]=block.stringAt(i);
-        }
+        // Decoded on first access.
+        block.m_strings=new String[block.getCount()];
 
         return block;
     }
@@ -92,7 +95,12 @@ public class StringBlock {
             return null;
         }
 
-        return m_strings[index];
+        String string = m_strings[index];
+        if (string == null) {
+            string = stringAt(index);
+            m_strings[index] = string;
+        }
+        return string;
     }
 
     /**
@@ -170,8 +178,8 @@ public class StringBlock {
             return -1;
         }
 
-        for (int i = 0; i < m_strings.length - 1; i++) {
-            if (m_strings[i].equals(string)) {
+        for (int i = 0; i < m_strings.length; i++) {
+            if (getRaw(i).equals(string)) {
                 return i;
             }
         }
@@ -232,32 +240,20 @@ public class StringBlock {
      * If the high bit is set, then there are two characters or 2 bytes of length
      * data encoded. In that case, drop the high bit of the first character and
      * add it together with the next character.
+     * <p>
+     * Each string is preceded by its length in characters and then its length
+     * in bytes, both encoded this way.
+     *
+     * @return The length, with the number of bytes it took in its high bits.
      */
-    private int decodeLengthUtf8(ByteBuffer buffer) {
-        int length = buffer.get();
-        if ((length & 0x8000) != 0) {
-            length = ((length & 0x7FFF) << 16) | buffer.get();
-        } else {
-            // Advance past the 2nd useless duplicate length byte.
-            buffer.get();
+    private int decodeLengthUtf8(int offset) {
+        int length = m_stringPool.get(offset) & 0xFF;
+        if ((length & 0x80) == 0) {
+            return (1 << 16) | length;
         }
-        return length;
+        return (2 << 16) | ((length & 0x7F) << 8) | (m_stringPool.get(offset + 1) & 0xFF);
     }
 
-    /**
-     * Called to decode string length located at the start of each
-     * string in the string pool. Redirects call the the appropriate
-     * decoding handler for either UTF-8 or UTF-16 string pools.
-     *
-     * @param byteBuffer A ByteBuffer whose current index points to
-     *                   the encoded length value.
-     * @return A decoded string length.
-     */
-    private int decodeLength(ByteBuffer byteBuffer) {
-        return m_isUtf8 ? decodeLengthUtf8(byteBuffer) : decodeLengthUtf16(byteBuffer);
-    }
-
-
     /**
      * (Comment taken from platform ResourceTypes.cpp)
      * <p>
@@ -269,17 +265,20 @@ public class StringBlock {
      * If the high bit is set, then there are two characters or 4 bytes of length
      * data encoded. In that case, drop the high bit of the first character and
      * add it together with the next character.
+     *
+     * @return The length in characters.
      */
-    private static int decodeLengthUtf16(ByteBuffer buffer) {
-        int length = buffer.get();
-        if ((length & 0x80) != 0) {
-            length = ((length & 0x7F) << 8) | buffer.get();
+    private int decodeLengthUtf16(int offset) {
+        int length = m_stringPool.getShort(offset) & 0xFFFF;
+        if ((length & 0x8000) == 0) {
+            return length;
         }
-        return length;
+        return ((length & 0x7FFF) << 16) | (m_stringPool.getShort(offset + 2) & 0xFFFF);
     }
 
     /**
-     * Extracts a string from the string pool at the given index.
+     * Decodes a string from the string pool at the given index. Reads are
+     * absolute, so the pool's position never moves.
      *
      * @param index Position of string in the string pool.
      * @return A String representation of the encoded string pool entry.
@@ -288,32 +287,37 @@ public class StringBlock {
         // Determine the offset from the start of the string pool.
         int offset = m_stringOffsets[index];
 
-        // For convenience, wrap the string pool in ByteBuffer
-        // so that it will handle advancing the buffer index.
-        ByteBuffer buffer =
-                ByteBuffer.wrap(m_stringPool, offset, m_stringPool.length - offset)
-                        .order(ByteOrder.BIG_ENDIAN);
-
-        // Now get the decoded string length.
-        int length = decodeLength(buffer);
-
-        StringBuilder stringBuilder = new StringBuilder();
-
+        if (m_isUtf8) {
+            // Skip the length in characters; the length in bytes is what is decoded.
+            offset += decodeLengthUtf8(offset) >>> 16;
+            int length = decodeLengthUtf8(offset);
+            return decodeUtf8(offset + (length >>> 16), length & 0xFFFF);
+        }
+        int length = decodeLengthUtf16(offset);
+        offset += (length > 0x7FFF) ? 4 : 2;
+        // Copying the units out is cheaper than a charset decoder for short strings.
+        char[] chars = new char[length];
         for (int i = 0; i < length; i++) {
-            if (m_isUtf8) {
-                stringBuilder.append((char) buffer.get());
-            } else {
-                int byte1 = buffer.get();
-                int byte2 = buffer.get();
-                stringBuilder.append((char) (byte2 | byte1));
-            }
+            chars[i] = m_stringPool.getChar(offset + i * 2);
         }
+        return new String(chars);
+    }
 
-        return stringBuilder.toString();
+    /** Decodes UTF-8 bytes of the pool straight from its array when it has one. */
+    private String decodeUtf8(int offset, int length) {
+        if (m_stringPool.hasArray()) {
+            return new String(m_stringPool.array(), m_stringPool.arrayOffset() + offset, length,
+                    StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer buffer = m_stringPool.duplicate();
+        buffer.position(offset);
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 
     private boolean m_isUtf8;
-    private byte[] m_stringPool;
+    private ByteBuffer m_stringPool;
     private String[] m_strings;
     private int[] m_stringOffsets;
     private int[] m_styleOffsets;
@@ -2,11 +2,18 @@ package com.squareup.spoon.internal.thirdparty.axmlparser;
 
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -135,6 +142,136 @@ public class StringBlockTests {
         testApkForExpectedStringsInStringPool(APK_MANIFEST_UTF_16, EXPECTED_STRINGS_UTF_16);
     }
 
+    /**
+     * Tests that parsing a manifest from a heap buffer, or from a direct
+     * one as a memory-mapped file would be, finds the same tags and
+     * attributes as parsing it from a stream, without moving the buffer.
+     *
+     * @throws Exception Any test exception.
+     */
+    @Test
+    public void testParseFromBufferMatchesStream() throws Exception {
+        for (String apk : new String[]{APK_MANIFEST_UTF_8, APK_MANIFEST_UTF_16}) {
+            byte[] manifest = readManifest(apk);
+            ByteBuffer direct = ByteBuffer.allocateDirect(manifest.length);
+            direct.put(manifest).flip();
+
+            List<String> expected = describe(new AXMLParser(new ByteArrayInputStream(manifest)));
+            assertTrue(expected.contains("instrumentation"));
+            assertEquals(expected, describe(new AXMLParser(ByteBuffer.wrap(manifest))));
+            assertEquals(expected, describe(new AXMLParser(direct)));
+            assertEquals("Buffer position should not move.", 0, direct.position());
+        }
+    }
+
+    /**
+     * Tests that strings outside of ASCII, and strings long enough that
+     * their lengths take two units, decode from both UTF-8 and UTF-16
+     * pools, whether or not the pool's buffer has an array, and that a
+     * decoded string is kept.
+     *
+     * @throws IOException Any test exception.
+     */
+    @Test
+    public void testDecodesNonAsciiAndLongStrings() throws IOException {
+        String longAscii = new String(new char[300]).replace('\0', 'a');
+        String[] utf8 = {"", "caf\u00e9", "\u65e5\u672c\u8a9e", "\ud83d\ude00", longAscii + "\u00e9"};
+        String[] utf16 = {"", "caf\u00e9", "\u65e5\u672c\u8a9e", "\ud83d\ude00",
+                new String(new char[40000]).replace('\0', '\u00e9')};
+        for (boolean isUtf8 : new boolean[]{true, false}) {
+            String[] strings = isUtf8 ? utf8 : utf16;
+            byte[] chunk = stringBlock(isUtf8, strings);
+            ByteBuffer direct = ByteBuffer.allocateDirect(chunk.length);
+            direct.put(chunk).flip();
+            for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.wrap(chunk), direct}) {
+                StringBlock block = StringBlock.read(new IntReader(buffer, false));
+                assertEquals(strings.length, block.getCount());
+                for (int i = 0; i < strings.length; i++) {
+                    assertEquals(strings[i], block.getRaw(i));
+                }
+                assertSame(block.getRaw(2), block.getRaw(2));
+                assertEquals(strings.length - 1, block.find(strings[strings.length - 1]));
+            }
+        }
+    }
+
+    /** A string block chunk holding {@code strings}, without styles. */
+    private static byte[] stringBlock(boolean utf8, String... strings) {
+        ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        int[] offsets = new int[strings.length];
+        for (int i = 0; i < strings.length; i++) {
+            offsets[i] = pool.size();
+            if (utf8) {
+                byte[] bytes = strings[i].getBytes(StandardCharsets.UTF_8);
+                writeLengthUtf8(pool, strings[i].length());
+                writeLengthUtf8(pool, bytes.length);
+                pool.write(bytes, 0, bytes.length);
+                pool.write(0);
+            } else {
+                byte[] bytes = strings[i].getBytes(StandardCharsets.UTF_16LE);
+                int length = strings[i].length();
+                if (length > 0x7FFF) {
+                    writeShort(pool, 0x8000 | (length >>> 16));
+                }
+                writeShort(pool, length & (length > 0x7FFF ? 0xFFFF : 0x7FFF));
+                pool.write(bytes, 0, bytes.length);
+                writeShort(pool, 0);
+            }
+        }
+        while (pool.size() % 4 != 0) {
+            pool.write(0);
+        }
+        int stringsOffset = 7 * 4 + offsets.length * 4;
+        ByteBuffer chunk = ByteBuffer.allocate(stringsOffset + pool.size())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        chunk.putInt(0x001C0001).putInt(chunk.capacity()).putInt(strings.length).putInt(0)
+                .putInt(utf8 ? 1 << 8 : 0).putInt(stringsOffset).putInt(0);
+        for (int offset : offsets) {
+            chunk.putInt(offset);
+        }
+        chunk.put(pool.toByteArray());
+        return chunk.array();
+    }
+
+    private static void writeLengthUtf8(ByteArrayOutputStream out, int length) {
+        if (length > 0x7F) {
+            out.write(0x80 | (length >>> 8));
+        }
+        out.write(length & 0xFF);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+
+    private byte[] readManifest(String apkFilePath) throws IOException {
+        try (ZipFile zip = new ZipFile(getTestDataFileFromResources(apkFilePath))) {
+            InputStream inputStream = zip.getInputStream(zip.getEntry("AndroidManifest.xml"));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] block = new byte[4096];
+            for (int read; (read = inputStream.read(block)) != -1; ) {
+                bytes.write(block, 0, read);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    /** The names of the tags the parser reads, each followed by its attributes. */
+    private static List<String> describe(AXMLParser parser) throws IOException {
+        List<String> events = new ArrayList<>();
+        for (int type = parser.getType(); type != AXMLParser.END_DOCUMENT; type = parser.next()) {
+            if (type == AXMLParser.START_TAG) {
+                events.add(parser.getName());
+                for (int i = 0; i < parser.getAttributeCount(); i++) {
+                    events.add(parser.getAttributeName(i) + "=" + parser.getAttributeValueString(i)
+                            + "/" + parser.getAttributeValue(i));
+                }
+            }
+        }
+        return events;
+    }
+
     /**
      * Helper that constructs File object for test APK files located
      * in test/res/file directory.